@@ -2,15 +2,10 @@ package com.berrontech.weight.demo;
 
 import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
-import android.util.Log;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
@@ -26,7 +21,10 @@ import com.berrontech.weight.demo.util.Toasts;
 import com.berrontech.weight.scale.ScaleApi;
 import com.berrontech.weight.scale.ScaleApiConfig;
 import com.berrontech.weight.scale.ble.BleScaleApi;
+import com.berrontech.weight.scale.scan.ScaleScanner;
+import com.berrontech.weight.scale.scan.ScannedDevice;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -45,7 +43,7 @@ import java.util.concurrent.TimeUnit;
  * @author levent
  */
 public class MainActivity extends AppCompatActivity implements View.OnClickListener,
-        AdapterView.OnItemSelectedListener {
+        AdapterView.OnItemSelectedListener, ScaleScanner.ScanListener {
     private final Handler handler = new Handler(Looper.getMainLooper());
     private static final String DEVICE_NAME = "name";
     private static final int REQUEST_CODE_ENABLE_BLUETOOTH = 0x01;
@@ -61,10 +59,10 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     private Button btnSetDecimal;
     private BluetoothAdapter bluetoothAdapter;
     private BaseAdapter devicesAdapter;
-    private Map<String, BluetoothDevice> deviceMap;
+    private List<ScannedDevice> devices = new ArrayList<>();
     private final List<Map<String, String>> spDeviceArray = new ArrayList<>();
-    private BluetoothDeviceScanReceiver bluetoothDeviceScanReceiver;
-    private BluetoothDevice selectedDevice;
+    private ScaleScanner scaleScanner;
+    private ScannedDevice selectedDevice;
     private EditText tvInfo;
     private ScaleApi scaleApi;
 
@@ -75,8 +73,9 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         initView();
         checkBluetooth();
-        bluetoothDeviceScanReceiver = new BluetoothDeviceScanReceiver(this);
-        registerReceiver(bluetoothDeviceScanReceiver, BluetoothDeviceScanReceiver.FILTER);
+        scaleScanner = new ScaleScanner(this).setListener(this);
+        // known scales from the last scan
+        refreshDevices(scaleScanner.getDevices());
     }
 
 
@@ -139,17 +138,45 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         }
     }
 
-    public void refreshDevices(Map<String, BluetoothDevice> deviceMap) {
-        this.deviceMap = deviceMap;
+    public void refreshDevices(List<ScannedDevice> devices) {
+        this.devices = devices;
         this.spDeviceArray.clear();
-        for (Map.Entry<String, BluetoothDevice> entry : deviceMap.entrySet()) {
-            final String name = entry.getKey();
+        for (ScannedDevice device : devices) {
+            String name = displayName(device) + "/" + device.getAddress();
+            if (device.isInRange()) {
+                name += " (" + device.getRssi() + "dBm)";
+            }
             final Map<String, String> item = new HashMap<>(1);
             item.put(DEVICE_NAME, name);
             this.spDeviceArray.add(item);
         }
         devicesAdapter.notifyDataSetChanged();
-        btnConnect.setEnabled(true);
+        btnConnect.setEnabled(!devices.isEmpty());
+    }
+
+    /**
+     * 缓存中或广播里没有名称的设备用地址代替
+     */
+    private static String displayName(ScannedDevice device) {
+        final String name = device.getName();
+        return name == null || name.isEmpty() ? device.getAddress() : name;
+    }
+
+    @Override
+    public void onDevicesChanged(List<ScannedDevice> devices) {
+        final String selectedAddress = selectedDevice == null ? null : selectedDevice.getAddress();
+        refreshDevices(devices);
+        for (int i = 0; i < devices.size(); i++) {
+            if (devices.get(i).getAddress().equals(selectedAddress)) {
+                spDevices.setSelection(i);
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void onScanFailed(int errorCode) {
+        Toasts.showShortToast(this, "Scan failed:" + errorCode);
     }
 
     @Override
@@ -217,7 +244,8 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         final byte[] bytes = envItems.toString().getBytes();
         threadPool.execute(() -> {
             try {
-                final int res = scaleApi.sendCmd(bytes, 10 * 1000);
+                final int res = scaleApi.sendCmd(ByteBuffer.wrap(bytes), 10 * 1000,
+                        (sent, total) -> appendInfo("Sending:" + sent + "/" + total));
                 appendInfo("Sent:" + res);
             } catch (Exception e) {
                 e.printStackTrace();
@@ -252,7 +280,11 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     }
 
     private void doInit() {
-        bluetoothAdapter.startDiscovery();
+        try {
+            scaleScanner.start();
+        } catch (Exception e) {
+            Toasts.showShortToast(this, "Scan error:" + e.getMessage());
+        }
     }
 
     private void doConnect() {
@@ -260,9 +292,9 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
             Toasts.showShortToast(this, "请选择设备");
             return;
         }
-        bluetoothAdapter.cancelDiscovery();
+        scaleScanner.stop();
         final ScaleApiConfig apiConfig = new ScaleApiConfig()
-                .with(ScaleApiConfig.DEVICE_NAME, selectedDevice.getName())
+                .with(ScaleApiConfig.DEVICE_NAME, displayName(selectedDevice))
                 .with(ScaleApiConfig.DEVICE_ADDRESS, selectedDevice.getAddress());
         scaleApi = new BleScaleApi(apiConfig);
         threadPool.execute(() -> {
@@ -292,7 +324,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        unregisterReceiver(bluetoothDeviceScanReceiver);
+        scaleScanner.stop();
         if (scaleApi != null) {
             try {
                 scaleApi.close();
@@ -312,9 +344,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 
     @Override
     public void onItemSelected(AdapterView<?> adapterView, View view, int id, long position) {
-        final Map<String, String> item = spDeviceArray.get(id);
-        final String name = item.get(DEVICE_NAME);
-        this.selectedDevice = deviceMap.get(name);
+        this.selectedDevice = devices.get(id);
     }
 
     @Override
@@ -323,28 +353,6 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     }
 }
 
-class BluetoothDeviceScanReceiver extends BroadcastReceiver {
-    private static final String TAG = "DeviceScanReceiver";
-    public static final IntentFilter FILTER = new IntentFilter(BluetoothDevice.ACTION_FOUND);
-    private final Map<String, BluetoothDevice> deviceMap = new HashMap<>(16);
-    private final MainActivity activity;
-
-    BluetoothDeviceScanReceiver(MainActivity activity) {
-        this.activity = activity;
-    }
-
-    @Override
-    public void onReceive(Context context, Intent intent) {
-        final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-        final String name = device.getName();
-        final String address = device.getAddress();
-        final String deviceKey = name + "/" + address;
-        Log.d(TAG, "Found device:" + deviceKey);
-        deviceMap.put(deviceKey, device);
-        activity.refreshDevices(deviceMap);
-    }
-}
-
 class ConnectTask implements Callable<Boolean> {
     private final ScaleApi scaleApi;
 
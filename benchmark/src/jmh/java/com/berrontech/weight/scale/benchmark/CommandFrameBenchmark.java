@@ -0,0 +1,37 @@
+package com.berrontech.weight.scale.benchmark;
+
+import com.berrontech.weight.scale.ble.BleCommandMetadata;
+import com.berrontech.weight.scale.ble.CommandEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Create by levent8421 2021/2/11 11:05
+ * CommandFrameBenchmark
+ * Command framing as done by sendCmd4Response, setPoint and sendCmd
+ *
+ * @author levent8421
+ */
+@State(Scope.Thread)
+public class CommandFrameBenchmark {
+    private final CommandEncoder encoder = new CommandEncoder();
+    private int decimals = 3;
+    private int length = 4096;
+
+    @Benchmark
+    public byte[] simpleCommand() {
+        return CommandEncoder.frameOf(BleCommandMetadata.CMD_READ_WEIGHT);
+    }
+
+    @Benchmark
+    public int decimalCommand() {
+        return encoder.decimal(decimals).length();
+    }
+
+    @Benchmark
+    public int sendDataCommand() {
+        return encoder.sendData(length, 5000).length();
+    }
+}
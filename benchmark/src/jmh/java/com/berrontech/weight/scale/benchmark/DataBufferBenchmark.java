@@ -0,0 +1,67 @@
+package com.berrontech.weight.scale.benchmark;
+
+import com.berrontech.weight.scale.ble.BleCommandMetadata;
+import com.berrontech.weight.scale.commons.DataBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Create by levent8421 2021/2/11 10:20
+ * DataBufferBenchmark
+ * DataBuffer push / readLine / lookup with {@link #fill} bytes already queued
+ *
+ * @author levent8421
+ */
+@State(Scope.Thread)
+public class DataBufferBenchmark {
+    private static final byte[] LINE = "W A = S 1.000 0.000 1.000 kg\r\n".getBytes();
+    private static final byte[] PARTIAL = {'x'};
+
+    /**
+     * Bytes queued in the buffer before each operation
+     */
+    @Param({"0", "1024", "16384"})
+    public int fill;
+
+    private DataBuffer lines;
+    private DataBuffer partial;
+
+    @Setup
+    public void setUp() {
+        // complete lines, readLine pops the oldest one so the fill level stays constant
+        lines = new DataBuffer();
+        for (int i = 0; i < fill / LINE.length; i++) {
+            lines.push(LINE);
+        }
+        // bytes without a line end, lookup scans for a terminator that never arrives
+        partial = new DataBuffer();
+        for (int i = 0; i < fill; i++) {
+            partial.push(PARTIAL);
+        }
+    }
+
+    @Benchmark
+    public byte[] pushReadLine() {
+        lines.push(LINE);
+        return lines.readLine(BleCommandMetadata.LINE_END);
+    }
+
+    @Benchmark
+    public int pushLookup() {
+        partial.push(PARTIAL);
+        final int index = partial.lookup(BleCommandMetadata.LINE_END);
+        partial.delete(0, PARTIAL.length);
+        return index;
+    }
+
+    @Benchmark
+    public int lookupAfterReset() {
+        // a different terminator resets the scan index, so the whole buffer is scanned again
+        partial.lookup(PARTIAL);
+        return partial.lookup(BleCommandMetadata.LINE_END);
+    }
+}
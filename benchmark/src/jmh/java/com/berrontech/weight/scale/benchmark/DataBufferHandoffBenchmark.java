@@ -0,0 +1,58 @@
+package com.berrontech.weight.scale.benchmark;
+
+import com.berrontech.weight.scale.ble.BleCommandMetadata;
+import com.berrontech.weight.scale.commons.DataBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Create by levent8421 2021/2/11 10:40
+ * DataBufferHandoffBenchmark
+ * Cross-thread readLine wake-up: a line is pushed to an echo thread parked in readLine and the
+ * echoed line is read back, ops/s is the inverse of the round trip (two wake-ups)
+ *
+ * @author levent8421
+ */
+@State(Scope.Thread)
+public class DataBufferHandoffBenchmark {
+    private static final byte[] LINE = "W A = S 1.000 0.000 1.000 kg\r\n".getBytes();
+    private static final int TIMEOUT = 1000;
+
+    private DataBuffer requests;
+    private DataBuffer responses;
+    private Thread echo;
+    private volatile boolean running;
+
+    @Setup
+    public void setUp() {
+        requests = new DataBuffer();
+        responses = new DataBuffer();
+        running = true;
+        echo = new Thread(() -> {
+            while (running) {
+                final byte[] line = requests.readLine(BleCommandMetadata.LINE_END, 100);
+                if (line != null) {
+                    responses.push(LINE);
+                }
+            }
+        }, "HandoffEcho");
+        echo.setDaemon(true);
+        echo.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        running = false;
+        echo.join();
+    }
+
+    @Benchmark
+    public byte[] roundTrip() {
+        requests.push(LINE);
+        return responses.readLine(BleCommandMetadata.LINE_END, TIMEOUT);
+    }
+}
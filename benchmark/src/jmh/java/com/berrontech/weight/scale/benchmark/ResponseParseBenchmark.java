@@ -0,0 +1,38 @@
+package com.berrontech.weight.scale.benchmark;
+
+import com.berrontech.weight.scale.WeightReading;
+import com.berrontech.weight.scale.ble.CommandFrames;
+import com.berrontech.weight.scale.ble.WeightResponseParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Create by levent8421 2021/2/11 10:45
+ * ResponseParseBenchmark
+ * Splitting response lines as BleScaleApi does, compared with the byte level weight parser
+ *
+ * @author levent8421
+ */
+@State(Scope.Thread)
+public class ResponseParseBenchmark {
+    private final byte[] weightLine = "W A = S 12.345 1.000 11.345 kg".getBytes();
+    private final byte[] statusLine = "T A".getBytes();
+    private final WeightReading reading = new WeightReading();
+
+    @Benchmark
+    public String[] parseWeightResponse() {
+        return CommandFrames.parseResponse(weightLine);
+    }
+
+    @Benchmark
+    public String[] parseStatusResponse() {
+        return CommandFrames.parseResponse(statusLine);
+    }
+
+    @Benchmark
+    public boolean parseWeightReading() {
+        return WeightResponseParser.parse(weightLine, reading);
+    }
+}
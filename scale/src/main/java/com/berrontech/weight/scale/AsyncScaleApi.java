@@ -0,0 +1,105 @@
+package com.berrontech.weight.scale;
+
+import android.content.Context;
+
+import com.berrontech.weight.scale.commons.ScaleFuture;
+import com.berrontech.weight.scale.metrics.CommandSnapshot;
+
+import java.util.Map;
+
+/**
+ * Create by levent8421 2021/2/15 10:05
+ * AsyncScaleApi
+ * 异步Scale Api：方法立即返回，结果由接收线程完成，等待回应期间不占用线程；
+ * 超时以与{@link ScaleApi}相同的异常完成，取消Future会放弃等待
+ *
+ * @author levent8421
+ */
+public interface AsyncScaleApi {
+    /**
+     * Api Init
+     *
+     * @param context context
+     * @throws Exception exception
+     */
+    void init(Context context) throws Exception;
+
+    /**
+     * 连接
+     *
+     * @return 连接就绪时完成
+     */
+    ScaleFuture<Void> connect();
+
+    /**
+     * 断开
+     */
+    void close();
+
+    /**
+     * 获取重量（毛重、皮重、净重、稳定标志、单位）
+     *
+     * @param reading 输出，完成前不要读取
+     * @return 完成时返回reading
+     */
+    ScaleFuture<WeightReading> readWeight(WeightReading reading);
+
+    /**
+     * 去皮
+     *
+     * @return status
+     */
+    ScaleFuture<Integer> clearTare();
+
+    /**
+     * 清零
+     *
+     * @return status
+     */
+    ScaleFuture<Integer> zeroClear();
+
+    /**
+     * 获取最大量程
+     *
+     * @return 量程
+     */
+    ScaleFuture<Float> getMaxWeight();
+
+    /**
+     * 设置保留小数位数
+     *
+     * @param num num
+     * @return 设置完成时完成
+     */
+    ScaleFuture<Void> setPoint(int num);
+
+    /**
+     * 发送数据
+     *
+     * @param bytes   data
+     * @param timeout 设备接收数据的超时（毫秒）
+     * @return 发送的字节数
+     */
+    ScaleFuture<Integer> sendCmd(byte[] bytes, int timeout);
+
+    /**
+     * 获取状态
+     *
+     * @return status
+     */
+    int getStatus();
+
+    /**
+     * 获取连续称重数据流
+     *
+     * @return weight stream
+     */
+    WeightStream getWeightStream();
+
+    /**
+     * 各命令的耗时分布与超时、无效回应、操作失败计数
+     *
+     * @return 命令名称 - 统计快照
+     */
+    Map<String, CommandSnapshot> getMetricsSnapshot();
+}
@@ -0,0 +1,81 @@
+package com.berrontech.weight.scale;
+
+/**
+ * Create by levent8421 2021/2/18 9:20
+ * DeviceMetadata
+ * 仪表在一次连接中不变的信息：量程、小数位数、单位。
+ * 量程在连接就绪时读取，小数位数和单位取自设置（DECIMAL）或仪表上报的重量
+ *
+ * @author levent8421
+ */
+public class DeviceMetadata {
+    /**
+     * 未知的小数位数
+     */
+    public static final int DECIMALS_UNKNOWN = -1;
+    /**
+     * 量程（kg），NaN表示未知
+     */
+    private float capacity = Float.NaN;
+    private int decimals = DECIMALS_UNKNOWN;
+    private WeightUnit unit = WeightUnit.UNKNOWN;
+
+    public float getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(float capacity) {
+        this.capacity = capacity;
+    }
+
+    public boolean isCapacityKnown() {
+        return !Float.isNaN(capacity);
+    }
+
+    public int getDecimals() {
+        return decimals;
+    }
+
+    public void setDecimals(int decimals) {
+        this.decimals = decimals;
+    }
+
+    public WeightUnit getUnit() {
+        return unit;
+    }
+
+    public void setUnit(WeightUnit unit) {
+        this.unit = unit;
+    }
+
+    /**
+     * 记录读数中的小数位数和单位
+     *
+     * @param reading reading
+     */
+    public void update(WeightReading reading) {
+        decimals = reading.getDecimals();
+        unit = reading.getUnit();
+    }
+
+    public void clear() {
+        capacity = Float.NaN;
+        decimals = DECIMALS_UNKNOWN;
+        unit = WeightUnit.UNKNOWN;
+    }
+
+    public void copyFrom(DeviceMetadata other) {
+        capacity = other.capacity;
+        decimals = other.decimals;
+        unit = other.unit;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceMetadata{" +
+                "capacity=" + capacity +
+                ", decimals=" + decimals +
+                ", unit=" + unit +
+                '}';
+    }
+}
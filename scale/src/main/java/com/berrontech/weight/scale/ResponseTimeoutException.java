@@ -0,0 +1,14 @@
+package com.berrontech.weight.scale;
+
+/**
+ * Create by levent8421 2021/2/12 9:20
+ * ResponseTimeoutException
+ * 未在超时内收到回应（或回应丢失）
+ *
+ * @author levent8421
+ */
+public class ResponseTimeoutException extends InvalidateResponseException {
+    public ResponseTimeoutException(String message) {
+        super(message);
+    }
+}
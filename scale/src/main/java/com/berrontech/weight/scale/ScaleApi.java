@@ -2,6 +2,12 @@ package com.berrontech.weight.scale;
 
 import android.content.Context;
 
+import com.berrontech.weight.scale.metrics.CommandSnapshot;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
 /**
  * Create by levent8421 2021/1/27 16:55
  * ScaleApi
@@ -57,6 +63,14 @@ public interface ScaleApi {
      */
     String[] getWeight() throws Exception;
 
+    /**
+     * 获取重量（毛重、皮重、净重、稳定标志、单位），解析时不分配内存
+     *
+     * @param reading 输出
+     * @throws Exception exception
+     */
+    void readWeight(WeightReading reading) throws Exception;
+
     /**
      * 清零
      *
@@ -90,4 +104,52 @@ public interface ScaleApi {
     void setPoint(int num) throws Exception;
 
     int sendCmd(byte[] bytes, int timeout) throws Exception;
+
+    /**
+     * 发送数据流，按块读取并写入连接，内存占用与数据大小无关
+     *
+     * @param in       数据
+     * @param length   数据长度，流提前结束时抛出{@link java.io.EOFException}
+     * @param timeout  设备接收数据的超时（毫秒）
+     * @param listener 进度，可以为null
+     * @return 发送的字节数
+     * @throws Exception any error
+     */
+    int sendCmd(InputStream in, int length, int timeout, SendProgressListener listener) throws Exception;
+
+    /**
+     * 发送position到limit之间的数据，不改变data的position
+     *
+     * @param data     数据，可以是direct或memory-mapped buffer
+     * @param timeout  设备接收数据的超时（毫秒）
+     * @param listener 进度，可以为null
+     * @return 发送的字节数
+     * @throws Exception any error
+     */
+    int sendCmd(ByteBuffer data, int timeout, SendProgressListener listener) throws Exception;
+
+    /**
+     * 发送文件，文件以只读方式映射到内存
+     *
+     * @param path     文件路径
+     * @param timeout  设备接收数据的超时（毫秒）
+     * @param listener 进度，可以为null
+     * @return 发送的字节数
+     * @throws Exception any error
+     */
+    int sendCmd(String path, int timeout, SendProgressListener listener) throws Exception;
+
+    /**
+     * 获取连续称重数据流，订阅后每个读数都会推送给监听器
+     *
+     * @return weight stream
+     */
+    WeightStream getWeightStream();
+
+    /**
+     * 各命令的耗时分布（p50/p90/p99/max，微秒）与超时、无效回应、操作失败计数
+     *
+     * @return 命令名称 - 统计快照
+     */
+    Map<String, CommandSnapshot> getMetricsSnapshot();
 }
@@ -1,6 +1,8 @@
 package com.berrontech.weight.scale;
 
 import com.berrontech.weight.scale.ble.BleCommandMetadata;
+import com.berrontech.weight.scale.ble.BleConnectionFactory;
+import com.berrontech.weight.scale.commons.ConnectionFactory;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -13,15 +15,48 @@ import java.util.Map;
  * @author levent8421
  */
 public class ScaleApiConfig {
+    /**
+     * Reconnect with backoff after the link is lost
+     */
     public static final String AUTO_CONNECT = "auto_connect";
     public static final String CONNECT_TIMEOUT = "connect_timeout";
     public static final String CMD_TIMEOUT = "cmd_timeout";
+    /**
+     * getWeight / readWeight reuse a W response younger than this (milliseconds) and join a W request
+     * already in flight, 0 disables the cache. Tare and zero invalidate it
+     */
+    public static final String WEIGHT_CACHE_TIME = "weight_cache_time";
+    /**
+     * Max commands waiting for response at the same time
+     */
+    public static final String PIPELINE_DEPTH = "pipeline_depth";
+    /**
+     * MTU requested after connected, 23 ~ 517
+     */
+    public static final String MTU = "mtu";
+    /**
+     * Write SEND payload without response
+     */
+    public static final String BULK_WRITE = "bulk_write";
+    /**
+     * Request LE 2M PHY and high connection priority during SEND transfers
+     */
+    public static final String THROUGHPUT_PROFILE = "throughput_profile";
+    /**
+     * Command that starts / stops continuous weight output, empty if the indicator outputs continuously by itself
+     */
+    public static final String STREAM_START_CMD = "stream_start_cmd";
+    public static final String STREAM_STOP_CMD = "stream_stop_cmd";
     /**
      * Required BLE device name
      */
     public static final String DEVICE_NAME = "device_name";
 
     public static final String DEVICE_ADDRESS = "device_address";
+    /**
+     * {@link ConnectionFactory} that creates the transport, BLE by default
+     */
+    public static final String CONNECTION_FACTORY = "connection_factory";
 
     private final Map<String, Object> config = new HashMap<>(16);
 
@@ -32,7 +67,15 @@ public class ScaleApiConfig {
     private void loadDefaults() {
         with(AUTO_CONNECT, Boolean.FALSE)
                 .with(CONNECT_TIMEOUT, BleCommandMetadata.CONNECT_TIMEOUT)
-                .with(CMD_TIMEOUT, BleCommandMetadata.RESPONSE_TIMEOUT);
+                .with(CMD_TIMEOUT, BleCommandMetadata.RESPONSE_TIMEOUT)
+                .with(WEIGHT_CACHE_TIME, 0)
+                .with(PIPELINE_DEPTH, BleCommandMetadata.PIPELINE_DEPTH)
+                .with(MTU, BleCommandMetadata.REQUEST_MTU)
+                .with(BULK_WRITE, Boolean.FALSE)
+                .with(THROUGHPUT_PROFILE, Boolean.FALSE)
+                .with(STREAM_START_CMD, "")
+                .with(STREAM_STOP_CMD, "")
+                .with(CONNECTION_FACTORY, new BleConnectionFactory());
     }
 
     public ScaleApiConfig with(String name, Object value) {
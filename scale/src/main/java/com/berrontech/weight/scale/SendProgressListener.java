@@ -0,0 +1,18 @@
+package com.berrontech.weight.scale;
+
+/**
+ * Create by levent8421 2021/2/17 9:30
+ * SendProgressListener
+ * SEND数据写入进度，在调用sendCmd的线程中回调
+ *
+ * @author levent8421
+ */
+public interface SendProgressListener {
+    /**
+     * 每写入一块数据后调用
+     *
+     * @param sent  已写入连接的字节数
+     * @param total 总字节数
+     */
+    void onProgress(int sent, int total);
+}
@@ -0,0 +1,302 @@
+package com.berrontech.weight.scale;
+
+import com.berrontech.weight.scale.commons.ScaleFuture;
+import com.berrontech.weight.scale.commons.ScaleScheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Create by levent8421 2021/2/16 9:40
+ * StabilityDetector
+ * 稳定重量检测：最近的读数（毛重）都在允许波动范围内、数量和持续时间都达到要求，
+ * 并且（可选）设备稳定标志为S时判定为稳定，每次由不稳定变为稳定时通知一次。
+ * 读数保存在固定大小的环形缓冲区中，处理读数时不分配内存
+ * <p>
+ * 可以直接订阅{@link WeightStream}，也可以在轮询读数后调用{@link #onWeight(WeightReading)}
+ *
+ * @author levent8421
+ */
+public class StabilityDetector implements WeightStream.WeightListener {
+    public static final int DEFAULT_CAPACITY = 32;
+
+    private final long[] values;
+    private final long[] times;
+    private final List<StableListener> listeners = new CopyOnWriteArrayList<>();
+    private final WeightReading latest = new WeightReading();
+    private List<Waiter> waiters;
+    /**
+     * 允许的波动范围，读数单位
+     */
+    private double band = 0;
+    private long minDuration = 0;
+    private int sampleCount = 3;
+    private boolean requireDeviceFlag = true;
+
+    private int head;
+    private int count;
+    private long runStart;
+    private long bandRaw;
+    private int decimals = -1;
+    private WeightUnit unit;
+    private boolean stable;
+
+    public StabilityDetector() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity 最多保存的读数，不能小于sampleCount
+     */
+    public StabilityDetector(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity [" + capacity + "]");
+        }
+        values = new long[capacity];
+        times = new long[capacity];
+    }
+
+    /**
+     * 允许的波动范围（最大值 - 最小值）
+     *
+     * @param band 读数单位，如kg
+     * @return this
+     */
+    public synchronized StabilityDetector setBand(double band) {
+        if (band < 0) {
+            throw new IllegalArgumentException("Invalid band [" + band + "]");
+        }
+        this.band = band;
+        reset();
+        return this;
+    }
+
+    /**
+     * 最短稳定时间
+     *
+     * @param minDuration 毫秒
+     * @return this
+     */
+    public synchronized StabilityDetector setMinDuration(long minDuration) {
+        this.minDuration = minDuration;
+        reset();
+        return this;
+    }
+
+    /**
+     * 最少读数数量
+     *
+     * @param sampleCount 1 ~ capacity
+     * @return this
+     */
+    public synchronized StabilityDetector setSampleCount(int sampleCount) {
+        if (sampleCount <= 0 || sampleCount > values.length) {
+            throw new IllegalArgumentException("Invalid sample count [" + sampleCount + "], capacity=" + values.length);
+        }
+        this.sampleCount = sampleCount;
+        reset();
+        return this;
+    }
+
+    /**
+     * 是否要求设备稳定标志
+     *
+     * @param requireDeviceFlag true: 标志为D的读数使检测重新开始
+     * @return this
+     */
+    public synchronized StabilityDetector setRequireDeviceFlag(boolean requireDeviceFlag) {
+        this.requireDeviceFlag = requireDeviceFlag;
+        reset();
+        return this;
+    }
+
+    public void addListener(StableListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(StableListener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized boolean isStable() {
+        return stable;
+    }
+
+    /**
+     * 清空已保存的读数，重新开始检测
+     */
+    public synchronized void reset() {
+        count = 0;
+        stable = false;
+        decimals = -1;
+    }
+
+    @Override
+    public void onWeight(WeightReading reading) {
+        final List<Waiter> toComplete;
+        synchronized (this) {
+            if (!append(reading)) {
+                stable = false;
+                return;
+            }
+            final boolean nowStable = count >= sampleCount && reading.getTimestamp() - runStart >= minDuration;
+            if (nowStable) {
+                latest.copyFrom(reading);
+            }
+            if (!nowStable || stable) {
+                stable = nowStable;
+                return;
+            }
+            stable = true;
+            toComplete = waiters;
+            waiters = null;
+        }
+        for (StableListener listener : listeners) {
+            listener.onStable(reading);
+        }
+        if (toComplete != null) {
+            for (Waiter waiter : toComplete) {
+                waiter.deliver(reading);
+            }
+        }
+    }
+
+    /**
+     * 加入读数并移出与其差距超出范围的旧读数
+     *
+     * @return false: 读数使检测重新开始
+     */
+    private boolean append(WeightReading reading) {
+        if (requireDeviceFlag && !reading.isStable()) {
+            count = 0;
+            return false;
+        }
+        if (reading.getDecimals() != decimals || reading.getUnit() != unit) {
+            decimals = reading.getDecimals();
+            unit = reading.getUnit();
+            bandRaw = (long) Math.floor(band * WeightReading.pow10(decimals) + 1e-6);
+            count = 0;
+        }
+        final long value = reading.getGross();
+        final long time = reading.getTimestamp();
+        if (count == values.length) {
+            // full: the run goes on, the oldest reading is only forgotten
+            head = (head + 1) % values.length;
+            count--;
+        }
+        boolean evicted = false;
+        while (count > 0 && !withinBand(value)) {
+            head = (head + 1) % values.length;
+            count--;
+            evicted = true;
+        }
+        if (count == 0) {
+            head = 0;
+            runStart = time;
+        } else if (evicted) {
+            // a new run starts at the oldest reading still within band
+            runStart = times[head];
+            stable = false;
+        }
+        final int tail = (head + count) % values.length;
+        values[tail] = value;
+        times[tail] = time;
+        count++;
+        return true;
+    }
+
+    private boolean withinBand(long value) {
+        long min = value;
+        long max = value;
+        for (int i = 0; i < count; i++) {
+            final long v = values[(head + i) % values.length];
+            if (v < min) {
+                min = v;
+            } else if (v > max) {
+                max = v;
+            }
+        }
+        return max - min <= bandRaw;
+    }
+
+    /**
+     * 等待稳定读数，当前已稳定时立即以最近的读数完成
+     *
+     * @param reading 输出
+     * @param timeout 超时（毫秒），超时以{@link TimeoutException}完成
+     * @return 完成时返回reading
+     */
+    public ScaleFuture<WeightReading> awaitStable(WeightReading reading, long timeout) {
+        final Waiter waiter = new Waiter(reading);
+        synchronized (this) {
+            if (stable) {
+                reading.copyFrom(latest);
+                waiter.deliver(null);
+                return waiter;
+            }
+            if (waiters == null) {
+                waiters = new ArrayList<>(2);
+            }
+            waiters.add(waiter);
+        }
+        final ScheduledFuture<?> timer = ScaleScheduler.shared().schedule(() -> {
+            if (waiter.completeExceptionally(new TimeoutException("Not stable in " + timeout + "ms"))) {
+                removeWaiter(waiter);
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        waiter.addListener((result, error) -> timer.cancel(false));
+        return waiter;
+    }
+
+    private synchronized void removeWaiter(Waiter waiter) {
+        if (waiters != null) {
+            waiters.remove(waiter);
+        }
+    }
+
+    private class Waiter extends ScaleFuture<WeightReading> {
+        private final WeightReading output;
+
+        Waiter(WeightReading output) {
+            this.output = output;
+        }
+
+        /**
+         * @param reading 稳定读数，null表示output已写入
+         */
+        void deliver(WeightReading reading) {
+            synchronized (this) {
+                if (isDone()) {
+                    return;
+                }
+                if (reading != null) {
+                    output.copyFrom(reading);
+                }
+            }
+            complete(output);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                removeWaiter(this);
+            }
+            return cancelled;
+        }
+    }
+
+    public interface StableListener {
+        /**
+         * Call once every time the readings become stable, in the thread delivering the reading.
+         * The reading instance is reused, copy it if it is needed after this call
+         *
+         * @param reading the first stable reading
+         */
+        void onStable(WeightReading reading);
+    }
+}
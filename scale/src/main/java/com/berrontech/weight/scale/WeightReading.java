@@ -0,0 +1,132 @@
+package com.berrontech.weight.scale;
+
+/**
+ * Create by levent8421 2021/2/8 10:05
+ * WeightReading
+ * 一次称重读数，重量为定点数：实际值 = 数值 / 10^decimals
+ * 可重复使用，解析时不分配内存
+ *
+ * @author levent8421
+ */
+public class WeightReading {
+    private static final long[] POW10 = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L,
+            10000000L, 100000000L, 1000000000L};
+    /**
+     * 支持的最大小数位数
+     */
+    public static final int MAX_DECIMALS = POW10.length - 1;
+    private long gross;
+    private long tare;
+    private long net;
+    private int decimals;
+    private WeightUnit unit = WeightUnit.UNKNOWN;
+    private boolean stable;
+    /**
+     * 收到读数的时间（毫秒）
+     */
+    private long timestamp;
+
+    public long getGross() {
+        return gross;
+    }
+
+    public void setGross(long gross) {
+        this.gross = gross;
+    }
+
+    public long getTare() {
+        return tare;
+    }
+
+    public void setTare(long tare) {
+        this.tare = tare;
+    }
+
+    public long getNet() {
+        return net;
+    }
+
+    public void setNet(long net) {
+        this.net = net;
+    }
+
+    public int getDecimals() {
+        return decimals;
+    }
+
+    public void setDecimals(int decimals) {
+        this.decimals = decimals;
+    }
+
+    public WeightUnit getUnit() {
+        return unit;
+    }
+
+    public void setUnit(WeightUnit unit) {
+        this.unit = unit;
+    }
+
+    public boolean isStable() {
+        return stable;
+    }
+
+    public void setStable(boolean stable) {
+        this.stable = stable;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public double getGrossValue() {
+        return toDouble(gross);
+    }
+
+    public double getTareValue() {
+        return toDouble(tare);
+    }
+
+    public double getNetValue() {
+        return toDouble(net);
+    }
+
+    private double toDouble(long fixed) {
+        return (double) fixed / POW10[decimals];
+    }
+
+    /**
+     * 10的n次方
+     *
+     * @param n 0 ~ MAX_DECIMALS
+     * @return 10^n
+     */
+    public static long pow10(int n) {
+        return POW10[n];
+    }
+
+    public void copyFrom(WeightReading other) {
+        this.gross = other.gross;
+        this.tare = other.tare;
+        this.net = other.net;
+        this.decimals = other.decimals;
+        this.unit = other.unit;
+        this.stable = other.stable;
+        this.timestamp = other.timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "WeightReading{" +
+                "gross=" + getGrossValue() +
+                ", tare=" + getTareValue() +
+                ", net=" + getNetValue() +
+                ", unit=" + unit +
+                ", stable=" + stable +
+                ", timestamp=" + timestamp +
+                '}';
+    }
+}
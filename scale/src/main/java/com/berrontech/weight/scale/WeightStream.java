@@ -0,0 +1,148 @@
+package com.berrontech.weight.scale;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Create by levent8421 2021/2/8 10:20
+ * WeightStream
+ * 连续称重数据流：设备主动上报或轮询得到的每个读数都会分发给订阅者
+ *
+ * @author levent8421
+ */
+public class WeightStream {
+    private final List<WeightListener> listeners = new CopyOnWriteArrayList<>();
+    private final StreamControl control;
+    /**
+     * 订阅者变化与开启/关闭连续输出一起串行执行，设备状态总与是否有订阅者一致
+     */
+    private final Object controlLock = new Object();
+    private final WeightReading latest = new WeightReading();
+    private long sequence = 0;
+
+    public WeightStream(StreamControl control) {
+        this.control = control;
+    }
+
+    /**
+     * 订阅读数，第一个订阅者加入时开启设备连续输出
+     *
+     * @param listener listener
+     * @throws Exception 开启失败
+     */
+    public void subscribe(WeightListener listener) throws Exception {
+        synchronized (controlLock) {
+            final boolean first = listeners.isEmpty();
+            listeners.add(listener);
+            if (first) {
+                try {
+                    control.start();
+                } catch (Exception e) {
+                    listeners.remove(listener);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * 取消订阅，最后一个订阅者离开时关闭设备连续输出
+     *
+     * @param listener listener
+     * @throws Exception 关闭失败
+     */
+    public void unsubscribe(WeightListener listener) throws Exception {
+        synchronized (controlLock) {
+            if (listeners.remove(listener) && listeners.isEmpty()) {
+                control.stop();
+            }
+        }
+    }
+
+    public boolean hasSubscribers() {
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * 发布一个读数（由接收线程调用）
+     *
+     * @param reading reading
+     */
+    public void publish(WeightReading reading) {
+        synchronized (latest) {
+            latest.copyFrom(reading);
+            sequence++;
+            latest.notifyAll();
+        }
+        for (WeightListener listener : listeners) {
+            listener.onWeight(reading);
+        }
+    }
+
+    /**
+     * 读取最近一次读数
+     *
+     * @param reading 输出
+     * @return 还没有收到读数时返回false
+     */
+    public boolean readLatest(WeightReading reading) {
+        synchronized (latest) {
+            if (sequence == 0) {
+                return false;
+            }
+            reading.copyFrom(latest);
+            return true;
+        }
+    }
+
+    /**
+     * 等待下一个读数
+     *
+     * @param reading 输出
+     * @param timeout 超时（毫秒）
+     * @return 超时返回false
+     * @throws InterruptedException interrupted
+     */
+    public boolean awaitNext(WeightReading reading, long timeout) throws InterruptedException {
+        synchronized (latest) {
+            final long target = sequence + 1;
+            final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (sequence < target) {
+                final long remaining = end - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(latest, remaining);
+            }
+            reading.copyFrom(latest);
+            return true;
+        }
+    }
+
+    public interface WeightListener {
+        /**
+         * Call on every reading, in the receive thread.
+         * The reading instance is reused, copy it if it is needed after this call
+         *
+         * @param reading reading
+         */
+        void onWeight(WeightReading reading);
+    }
+
+    public interface StreamControl {
+        /**
+         * Start continuous output
+         *
+         * @throws Exception any error
+         */
+        void start() throws Exception;
+
+        /**
+         * Stop continuous output
+         *
+         * @throws Exception any error
+         */
+        void stop() throws Exception;
+    }
+}
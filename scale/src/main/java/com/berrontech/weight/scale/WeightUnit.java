@@ -0,0 +1,80 @@
+package com.berrontech.weight.scale;
+
+/**
+ * Create by levent8421 2021/2/9 9:40
+ * WeightUnit
+ * 重量单位
+ *
+ * @author levent8421
+ */
+public enum WeightUnit {
+    /**
+     * 千克
+     */
+    KG("kg"),
+    /**
+     * 克
+     */
+    G("g"),
+    /**
+     * 磅
+     */
+    LB("lb"),
+    /**
+     * 盎司
+     */
+    OZ("oz"),
+    /**
+     * 无法识别的单位
+     */
+    UNKNOWN("");
+
+    private static final WeightUnit[] UNITS = values();
+    private final String symbol;
+    private final byte[] symbolBytes;
+
+    WeightUnit(String symbol) {
+        this.symbol = symbol;
+        this.symbolBytes = symbol.getBytes();
+    }
+
+    public String getSymbol() {
+        return symbol;
+    }
+
+    /**
+     * 解析单位（不区分大小写），不分配内存
+     *
+     * @param buf    buffer
+     * @param offset offset
+     * @param length length
+     * @return unit, UNKNOWN if not matched
+     */
+    public static WeightUnit parse(byte[] buf, int offset, int length) {
+        for (WeightUnit unit : UNITS) {
+            if (unit.matches(buf, offset, length)) {
+                return unit;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    public static WeightUnit parse(String symbol) {
+        final byte[] bytes = symbol.getBytes();
+        return parse(bytes, 0, bytes.length);
+    }
+
+    private boolean matches(byte[] buf, int offset, int length) {
+        if (this == UNKNOWN || length != symbolBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            final int c = buf[offset + i];
+            final int lower = (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+            if (lower != symbolBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,388 @@
+package com.berrontech.weight.scale.ble;
+
+import android.content.Context;
+
+import com.berrontech.weight.scale.AsyncScaleApi;
+import com.berrontech.weight.scale.ResponseTimeoutException;
+import com.berrontech.weight.scale.ScaleApiConfig;
+import com.berrontech.weight.scale.WeightReading;
+import com.berrontech.weight.scale.WeightStream;
+import com.berrontech.weight.scale.commons.ScaleFuture;
+import com.berrontech.weight.scale.commons.ScaleScheduler;
+import com.berrontech.weight.scale.metrics.CommandMetrics;
+import com.berrontech.weight.scale.metrics.CommandSnapshot;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Create by levent8421 2021/2/15 10:30
+ * AsyncBleScaleApi
+ * 异步蓝牙Scale Api，与{@link BleScaleApi}共用连接、流水线和统计：
+ * 命令进入流水线后立即返回，回应由接收线程解析并完成Future，超时由{@link ScaleScheduler}触发
+ *
+ * @author levent8421
+ */
+public class AsyncBleScaleApi implements AsyncScaleApi {
+    private final BleScaleApi api;
+    private final CommandMetrics weightMetrics;
+    private final CommandMetrics tareMetrics;
+    private final CommandMetrics zeroMetrics;
+    private final CommandMetrics capacityMetrics;
+    private final CommandMetrics decimalMetrics;
+    private final CommandMetrics sendMetrics;
+
+    public AsyncBleScaleApi(ScaleApiConfig scaleApiConfig) {
+        this(new BleScaleApi(scaleApiConfig));
+    }
+
+    /**
+     * @param api 同步Api，两者可以同时使用
+     */
+    public AsyncBleScaleApi(BleScaleApi api) {
+        this.api = api;
+        weightMetrics = api.getMetrics().command(new String(BleCommandMetadata.CMD_READ_WEIGHT));
+        tareMetrics = api.getMetrics().command(new String(BleCommandMetadata.CMD_CLEAR_TARE));
+        zeroMetrics = api.getMetrics().command(new String(BleCommandMetadata.ZERO_CMD));
+        capacityMetrics = api.getMetrics().command(new String(BleCommandMetadata.CMD_CAPACITY));
+        decimalMetrics = api.getMetrics().command(new String(BleCommandMetadata.CMD_DECIMAL));
+        sendMetrics = api.getMetrics().command(new String(BleCommandMetadata.CMD_SEND_DATA));
+    }
+
+    public BleScaleApi getScaleApi() {
+        return api;
+    }
+
+    @Override
+    public void init(Context context) throws Exception {
+        api.init(context);
+    }
+
+    @Override
+    public ScaleFuture<Void> connect() {
+        final int timeout = api.getConfig().get(ScaleApiConfig.CONNECT_TIMEOUT, Integer.class);
+        final ScaleFuture<Void> result = new ScaleFuture<>();
+        final ScheduledFuture<?> timer = ScaleScheduler.shared().schedule(() -> {
+            if (result.completeExceptionally(new BleConnectionException("Connection timeout"))) {
+                api.close();
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        result.addListener((ignored, error) -> {
+            timer.cancel(false);
+            if (error instanceof CancellationException) {
+                api.close();
+            }
+        });
+        // open() may wait up to the setup gate timeout for other devices to finish their setup,
+        // the caller does not wait
+        ScaleScheduler.blocking().execute(() -> {
+            if (result.isDone()) {
+                return;
+            }
+            final ScaleFuture<Void> ready;
+            try {
+                ready = api.open();
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+                return;
+            }
+            ready.addListener((ignored, error) -> {
+                if (error == null) {
+                    result.complete(null);
+                } else {
+                    result.completeExceptionally(error);
+                }
+            });
+        });
+        return result;
+    }
+
+    @Override
+    public void close() {
+        api.close();
+    }
+
+    @Override
+    public ScaleFuture<WeightReading> readWeight(final WeightReading reading) {
+        try {
+            api.makeSureReady();
+        } catch (Exception e) {
+            return ScaleFuture.failed(e);
+        }
+        // shares WEIGHT_CACHE_TIME caching and in-flight requests with the blocking api
+        return api.requestWeightAsync(this::loadWeight).handle((line, error) -> {
+            if (error != null) {
+                throw error instanceof Exception ? (Exception) error : new ExecutionException(error);
+            }
+            BleScaleApi.parseWeight(line, reading);
+            api.updateMetadata(reading);
+            return reading;
+        });
+    }
+
+    /**
+     * 向设备发出W命令，只有真正的往返计入耗时统计
+     */
+    private ScaleFuture<byte[]> loadWeight() {
+        return request(weightMetrics, BleCommandMetadata.CMD_READ_WEIGHT, CommandEncoder.FRAME_READ_WEIGHT, line -> line);
+    }
+
+    @Override
+    public ScaleFuture<Integer> clearTare() {
+        api.invalidateWeightCache();
+        return request(tareMetrics, BleCommandMetadata.CMD_CLEAR_TARE, CommandEncoder.FRAME_CLEAR_TARE, line -> {
+            api.invalidateWeightCache();
+            return BleScaleApi.parseTare(line);
+        });
+    }
+
+    @Override
+    public ScaleFuture<Integer> zeroClear() {
+        api.invalidateWeightCache();
+        return request(zeroMetrics, BleCommandMetadata.ZERO_CMD, CommandEncoder.FRAME_ZERO, line -> {
+            api.invalidateWeightCache();
+            return BleScaleApi.parseZero(line);
+        });
+    }
+
+    @Override
+    public ScaleFuture<Float> getMaxWeight() {
+        final Float cached = api.cachedCapacity();
+        if (cached != null) {
+            final ScaleFuture<Float> future = new ScaleFuture<>();
+            future.complete(cached);
+            return future;
+        }
+        final long generation = api.currentMetadataGeneration();
+        return request(capacityMetrics, BleCommandMetadata.CMD_CAPACITY, CommandEncoder.FRAME_CAPACITY, line -> {
+            final float capacity = BleScaleApi.parseCapacity(line);
+            api.storeCapacity(capacity, generation);
+            return capacity;
+        });
+    }
+
+    @Override
+    public ScaleFuture<Void> setPoint(int num) {
+        final CommandEncoder encoder = api.getEncoder();
+        final byte[] frame;
+        synchronized (encoder) {
+            // queued until a slot is free, keep a copy
+            frame = encoder.decimal(num).toFrame();
+        }
+        return request(decimalMetrics, BleCommandMetadata.CMD_DECIMAL, frame, line -> {
+            BleScaleApi.parseDecimal(line);
+            api.onDecimalsSet(num);
+            return null;
+        });
+    }
+
+    @Override
+    public ScaleFuture<Integer> sendCmd(byte[] bytes, int timeout) {
+        final SendOperation operation = new SendOperation(bytes, timeout);
+        operation.start();
+        return operation;
+    }
+
+    @Override
+    public int getStatus() {
+        return api.getStatus();
+    }
+
+    @Override
+    public WeightStream getWeightStream() {
+        return api.getWeightStream();
+    }
+
+    @Override
+    public Map<String, CommandSnapshot> getMetricsSnapshot() {
+        return api.getMetricsSnapshot();
+    }
+
+    private <R> ScaleFuture<R> request(final CommandMetrics metrics, final byte[] cmd, final byte[] frame,
+                                       final ResponseParser<R> parser) {
+        final long start = System.nanoTime();
+        final int timeout = api.getConfig().get(ScaleApiConfig.CMD_TIMEOUT, Integer.class);
+        try {
+            api.makeSureReady();
+        } catch (Exception e) {
+            metrics.onError(start, e);
+            return ScaleFuture.failed(e);
+        }
+        final ScaleFuture<byte[]> response = api.getPipeline().submitAsync(cmd, frame, timeout);
+        return response.handle((line, error) -> {
+            try {
+                if (error != null) {
+                    throw asException(error, cmd, timeout);
+                }
+                final R result = parser.parse(line);
+                metrics.onSuccess(start);
+                return result;
+            } catch (Exception e) {
+                metrics.onError(start, e);
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * 转换为与同步Api相同的异常
+     */
+    private static Exception asException(Throwable error, byte[] cmd, long timeout) {
+        if (error instanceof TimeoutException) {
+            return new ResponseTimeoutException("No response for [" + new String(cmd) + "] in " + timeout + "ms");
+        }
+        if (error instanceof Exception) {
+            return (Exception) error;
+        }
+        return new ExecutionException(error);
+    }
+
+    private interface ResponseParser<R> {
+        /**
+         * Parse a response line
+         *
+         * @param line line without line end
+         * @return result
+         * @throws Exception invalid response or operation failed
+         */
+        R parse(byte[] line) throws Exception;
+    }
+
+    /**
+     * SEND：独占流水线 - 发送命令 - 等待B - 写入数据 - 等待A - 释放独占，每一步由上一步的回应触发。
+     * 写入数据会因发送缓冲区满而阻塞，在{@link ScaleScheduler#blocking()}上执行，不占用回调线程
+     */
+    private class SendOperation extends ScaleFuture<Integer> {
+        private final byte[] bytes;
+        private final int timeout;
+        private final int cmdTimeout;
+        private final long start = System.nanoTime();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private final CommandPipeline pipeline;
+        private volatile ScaleFuture<byte[]> stage;
+        private volatile boolean locked;
+
+        SendOperation(byte[] bytes, int timeout) {
+            this.bytes = bytes;
+            this.timeout = timeout;
+            this.cmdTimeout = api.getConfig().get(ScaleApiConfig.CMD_TIMEOUT, Integer.class);
+            this.pipeline = api.getPipeline();
+        }
+
+        void start() {
+            try {
+                api.makeSureReady();
+            } catch (Exception e) {
+                finish(e);
+                return;
+            }
+            final ScaleFuture<byte[]> lock = pipeline.lockExclusiveAsync(cmdTimeout);
+            stage = lock;
+            lock.addListener(this::onLocked);
+        }
+
+        private void onLocked(byte[] result, Throwable error) {
+            if (error != null) {
+                finish(asException(error, BleCommandMetadata.CMD_SEND_DATA, cmdTimeout));
+                return;
+            }
+            locked = true;
+            if (isDone()) {
+                finish(new CancellationException());
+                return;
+            }
+            try {
+                final CommandEncoder encoder = api.getEncoder();
+                final ScaleFuture<byte[]> header;
+                synchronized (encoder) {
+                    encoder.sendData(bytes.length, timeout);
+                    header = pipeline.submitExclusive(BleCommandMetadata.CMD_SEND_DATA, encoder.buffer(), encoder.length(), cmdTimeout);
+                }
+                stage = header;
+                header.addListener(this::onReady);
+            } catch (Exception e) {
+                finish(e);
+            }
+        }
+
+        private void onReady(byte[] line, Throwable error) {
+            try {
+                if (error != null) {
+                    throw asException(error, BleCommandMetadata.CMD_SEND_DATA, cmdTimeout);
+                }
+                BleScaleApi.parseSendReady(line);
+                if (isDone()) {
+                    throw new CancellationException();
+                }
+                final ScaleFuture<byte[]> resultFuture = pipeline.expectExclusive(BleCommandMetadata.CMD_SEND_DATA, timeout);
+                stage = resultFuture;
+                ScaleScheduler.blocking().execute(() -> writePayload(resultFuture));
+            } catch (Exception e) {
+                finish(e);
+            }
+        }
+
+        private void writePayload(ScaleFuture<byte[]> resultFuture) {
+            try {
+                api.writePayload(bytes);
+            } catch (Exception e) {
+                // the scale is still waiting for the rest of the payload
+                pipeline.markDesync();
+                pipeline.discard(resultFuture);
+                finish(e);
+                return;
+            }
+            resultFuture.addListener(this::onResult);
+        }
+
+        private void onResult(byte[] line, Throwable error) {
+            try {
+                if (error != null) {
+                    throw asException(error, BleCommandMetadata.CMD_SEND_DATA, timeout);
+                }
+                BleScaleApi.parseSendResult(line);
+                finish(null);
+            } catch (Exception e) {
+                finish(e);
+            }
+        }
+
+        private void finish(Exception error) {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            if (locked) {
+                api.getConnection().endHighThroughput();
+                pipeline.unlockExclusive();
+            }
+            if (error == null) {
+                sendMetrics.onSuccess(start);
+                complete(bytes.length);
+            } else {
+                if (!(error instanceof CancellationException)) {
+                    sendMetrics.onError(start, error);
+                }
+                completeExceptionally(error);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!super.cancel(mayInterruptIfRunning)) {
+                return false;
+            }
+            final ScaleFuture<byte[]> current = stage;
+            if (current != null) {
+                // the device may still be waiting for or reading the payload
+                pipeline.markDesync();
+                pipeline.discard(current);
+            }
+            return true;
+        }
+    }
+}
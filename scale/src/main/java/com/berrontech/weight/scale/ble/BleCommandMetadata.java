@@ -16,6 +16,14 @@ public class BleCommandMetadata {
      * 蓝牙连接超时
      */
     public static final int CONNECT_TIMEOUT = 20 * 1000;
+    /**
+     * 同时等待回应的最大命令数
+     */
+    public static final int PIPELINE_DEPTH = 4;
+    /**
+     * 连接后请求的MTU
+     */
+    public static final int REQUEST_MTU = 247;
     /**
      * 行尾结束符
      */
@@ -37,6 +45,10 @@ public class BleCommandMetadata {
      * 取重量命令回应数据长度
      */
     public static final int CMD_READ_WEIGHT_RESPONSE_LENGTH = 8;
+    /**
+     * 取重量回应中的稳定标志（D:动态 S:稳定）
+     */
+    public static final byte WEIGHT_STABLE_FLAG = 'S';
     public static final byte[] CMD_CLEAR_TARE = {'T'};
     /**
      * 清零命令
@@ -0,0 +1,32 @@
+package com.berrontech.weight.scale.ble;
+
+import android.content.Context;
+
+import com.berrontech.weight.scale.ScaleApiConfig;
+import com.berrontech.weight.scale.commons.BasicConnection;
+import com.berrontech.weight.scale.commons.BleConnection;
+import com.berrontech.weight.scale.commons.ConnectionFactory;
+
+/**
+ * Create by levent8421 2021/2/10 9:48
+ * BleConnectionFactory
+ * 创建蓝牙连接
+ *
+ * @author levent8421
+ */
+public class BleConnectionFactory implements ConnectionFactory {
+    @Override
+    public BasicConnection create(Context context, ScaleApiConfig config, BasicConnection.StateListener listener) {
+        final String name = config.get(ScaleApiConfig.DEVICE_NAME, String.class);
+        final String address = config.get(ScaleApiConfig.DEVICE_ADDRESS, String.class);
+        final Integer mtu = config.get(ScaleApiConfig.MTU, Integer.class);
+        final Boolean throughputProfile = config.get(ScaleApiConfig.THROUGHPUT_PROFILE, Boolean.class);
+        final Boolean autoConnect = config.get(ScaleApiConfig.AUTO_CONNECT, Boolean.class);
+        return new BleConnection(context, new BleConnectionStateListener(listener))
+                .setParam(name, address)
+                .setRequestMtu(mtu)
+                .setThroughputProfile(throughputProfile)
+                .setAutoConnect(autoConnect)
+                .setCanDoNotify(true);
+    }
+}
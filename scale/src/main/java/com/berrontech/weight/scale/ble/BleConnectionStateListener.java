@@ -2,22 +2,23 @@ package com.berrontech.weight.scale.ble;
 
 import android.util.Log;
 
+import com.berrontech.weight.scale.commons.BasicConnection;
 import com.berrontech.weight.scale.commons.BleConnection;
 import com.berrontech.weight.scale.commons.BleConnectionReceiver;
 
 /**
  * Create by levent8421 2021/1/27 19:38
  * BleConnectionStateListener
- * 蓝牙连接状态监听器
+ * 蓝牙连接状态监听器，将蓝牙广播事件转换为与传输无关的状态回调
  *
  * @author levent8421
  */
 public class BleConnectionStateListener implements BleConnectionReceiver.BleConnectionListener {
     private static final String TAG = "StateListener";
-    private final BleScaleApi scaleApi;
+    private final BasicConnection.StateListener stateListener;
 
-    public BleConnectionStateListener(BleScaleApi scaleApi) {
-        this.scaleApi = scaleApi;
+    public BleConnectionStateListener(BasicConnection.StateListener stateListener) {
+        this.stateListener = stateListener;
     }
 
     @Override
@@ -26,7 +27,7 @@ public class BleConnectionStateListener implements BleConnectionReceiver.BleConn
 
     @Override
     public void onSppReady(BleConnection connection) {
-        scaleApi.setReadyState(true);
+        stateListener.onReady(connection);
     }
 
     @Override
@@ -36,18 +37,27 @@ public class BleConnectionStateListener implements BleConnectionReceiver.BleConn
 
     @Override
     public void onDataSentError(BleConnection connection) {
-
+        Log.w(TAG, "onDataSentError: " + connection.getAddress());
     }
 
     @Override
     public void onDataReceived(BleConnection connection) {
-        final byte[] lineBytes = connection.getRecvBuffer().readLine(BleCommandMetadata.LINE_END);
-        final String line = new String(lineBytes);
-        Log.d(TAG, "onDataReceived: " + line);
+        connection.notifyReceived();
     }
 
     @Override
     public void onDisconnected(BleConnection connection) {
-        scaleApi.setReadyState(false);
+        stateListener.onDisconnected(connection);
+    }
+
+    @Override
+    public void onLinkUpdated(BleConnection connection) {
+        final int txPhy = connection.getTxPhy();
+        final int rxPhy = connection.getRxPhy();
+        final float interval = connection.getConnectionInterval();
+        Log.i(TAG, "onLinkUpdated: txPhy=" + txPhy + ",rxPhy=" + rxPhy + ",interval=" + interval + "ms"
+                + (connection.isConnectionIntervalNegotiated() ? "" : "(nominal)"));
+        connection.getStats().setLink(txPhy, rxPhy, interval);
+        stateListener.onLinkUpdated(connection, txPhy, rxPhy, interval);
     }
 }
@@ -3,20 +3,39 @@ package com.berrontech.weight.scale.ble;
 import android.content.Context;
 import android.util.Log;
 
+import com.berrontech.weight.scale.DeviceMetadata;
 import com.berrontech.weight.scale.InvalidateResponseException;
 import com.berrontech.weight.scale.OperationFailedException;
+import com.berrontech.weight.scale.ResponseTimeoutException;
 import com.berrontech.weight.scale.ScaleApi;
 import com.berrontech.weight.scale.ScaleApiConfig;
-import com.berrontech.weight.scale.commons.BleConnection;
+import com.berrontech.weight.scale.SendProgressListener;
+import com.berrontech.weight.scale.WeightReading;
+import com.berrontech.weight.scale.WeightStream;
+import com.berrontech.weight.scale.commons.BasicConnection;
+import com.berrontech.weight.scale.commons.ConnectionFactory;
+import com.berrontech.weight.scale.commons.ConnectionStats;
+import com.berrontech.weight.scale.commons.ScaleFuture;
+import com.berrontech.weight.scale.commons.ScaleScheduler;
+import com.berrontech.weight.scale.metrics.CacheStats;
+import com.berrontech.weight.scale.metrics.CommandMetrics;
+import com.berrontech.weight.scale.metrics.CommandSnapshot;
+import com.berrontech.weight.scale.metrics.ScaleMetrics;
 import com.berrontech.weight.scale.utils.CmdUtils;
 
-import java.util.concurrent.CountDownLatch;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Create by levent8421 2021/1/27 16:59
  * BleScaleApi
- * Bluetooth Scale APi
+ * Bluetooth Scale APi, the transport is created by {@link ScaleApiConfig#CONNECTION_FACTORY}
  *
  * @author levent8421
  */
@@ -25,25 +44,66 @@ public class BleScaleApi implements ScaleApi {
     private static final String UNIT_KG = "kg";
     private static final String UNIT_G = "g";
 
-    private static final byte[] DEFAULT_DATA_CHANNEL = {'0'};
     /**
      * 清零指令最小回应数据数量
      */
     public static final int ZERO_RESPONSE_MIN_ITEMS = 2;
     public static final String STATUS_SUCCESS = "A";
     private static final String SEND_DATA_STATUS_READY = "B";
-    private static final String[] EMPTY_RESPONSE = {};
+    /**
+     * 流式发送时每次读取并写入连接的字节数
+     */
+    private static final int PAYLOAD_CHUNK = 4 * 1024;
 
     private final ScaleApiConfig scaleApiConfig;
     private Context context;
-    private BleConnection connection;
-    private final BleConnectionStateListener stateListener;
-    private boolean ready;
-    private CountDownLatch readyWatcherLatch;
+    private BasicConnection connection;
+    private final BasicConnection.StateListener stateListener;
+    /**
+     * 应用的连接状态监听器
+     */
+    private volatile BasicConnection.StateListener userStateListener;
+    private volatile boolean ready;
+    private volatile ScaleFuture<Void> readyFuture;
+    /**
+     * close()后需要重新创建连接
+     */
+    private boolean closed;
+    private CommandPipeline pipeline;
+    private final WeightStream weightStream;
+    /**
+     * 接收线程解析数据流时复用
+     */
+    private final WeightReading streamReading = new WeightReading();
+    /**
+     * 带参数命令的编码缓冲区，使用时同步
+     */
+    private final CommandEncoder encoder = new CommandEncoder();
+    private final ScaleMetrics metrics = new ScaleMetrics();
+    private final CommandMetrics weightMetrics = metrics.command(new String(BleCommandMetadata.CMD_READ_WEIGHT));
+    private final CommandMetrics tareMetrics = metrics.command(new String(BleCommandMetadata.CMD_CLEAR_TARE));
+    private final CommandMetrics zeroMetrics = metrics.command(new String(BleCommandMetadata.ZERO_CMD));
+    private final CommandMetrics capacityMetrics = metrics.command(new String(BleCommandMetadata.CMD_CAPACITY));
+    private final CommandMetrics decimalMetrics = metrics.command(new String(BleCommandMetadata.CMD_DECIMAL));
+    private final CommandMetrics sendMetrics = metrics.command(new String(BleCommandMetadata.CMD_SEND_DATA));
+    private final CacheStats weightCacheStats = new CacheStats();
+    /**
+     * 最近的W回应，见{@link ScaleApiConfig#WEIGHT_CACHE_TIME}
+     */
+    private final ResponseCache weightCache = new ResponseCache(weightCacheStats);
+    /**
+     * 连接就绪时读取，断线和设置小数位数时失效，使用时同步
+     */
+    private final DeviceMetadata metadata = new DeviceMetadata();
+    /**
+     * 每次失效加一，失效前发出的请求的回应不再写入
+     */
+    private long metadataGeneration;
 
     public BleScaleApi(ScaleApiConfig scaleApiConfig) {
         this.scaleApiConfig = scaleApiConfig;
-        stateListener = new BleConnectionStateListener(this);
+        stateListener = new ReadyWatcher();
+        weightStream = new WeightStream(new StreamSwitch());
     }
 
     @Override
@@ -52,37 +112,60 @@ public class BleScaleApi implements ScaleApi {
     }
 
     @Override
-    public synchronized void connect() throws Exception {
-        connection = new BleConnection(context, stateListener);
-        final String name = scaleApiConfig.get(ScaleApiConfig.DEVICE_NAME, String.class);
-        final String address = scaleApiConfig.get(ScaleApiConfig.DEVICE_ADDRESS, String.class);
+    public void connect() throws Exception {
         final Integer timeout = scaleApiConfig.get(ScaleApiConfig.CONNECT_TIMEOUT, Integer.class);
-        readyWatcherLatch = new CountDownLatch(1);
-        connection.setParam(name, address)
-                .setCanDoNotify(false)
-                .open();
-        final boolean success = readyWatcherLatch.await(timeout, TimeUnit.MILLISECONDS);
-        if (!success) {
+        final ScaleFuture<Void> future = open();
+        try {
+            future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
             close();
             throw new BleConnectionException("Connection timeout");
         }
     }
 
+    /**
+     * 打开连接，不等待连接就绪。断线后（未调用close）再次连接时复用原连接，不重新发现服务
+     *
+     * @return 连接就绪（SPP服务可用）时完成
+     * @throws Exception 创建或打开连接失败
+     */
+    synchronized ScaleFuture<Void> open() throws Exception {
+        final ScaleFuture<Void> future = new ScaleFuture<>();
+        readyFuture = future;
+        if (connection == null || closed) {
+            final ConnectionFactory connectionFactory = scaleApiConfig.get(ScaleApiConfig.CONNECTION_FACTORY, ConnectionFactory.class);
+            final Integer pipelineDepth = scaleApiConfig.get(ScaleApiConfig.PIPELINE_DEPTH, Integer.class);
+            connection = connectionFactory.create(context, scaleApiConfig, stateListener);
+            pipeline = new CommandPipeline(connection, pipelineDepth);
+            pipeline.setLineObserver(this::onLine);
+            closed = false;
+        } else if (ready) {
+            // still connected
+            future.complete(null);
+            return future;
+        }
+        connection.open();
+        return future;
+    }
+
     public void setReadyState(boolean ready) {
         this.ready = ready;
-        if (ready && this.readyWatcherLatch != null) {
-            this.readyWatcherLatch.countDown();
+        final ScaleFuture<Void> future = readyFuture;
+        if (ready && future != null) {
+            future.complete(null);
         }
     }
 
     @Override
-    public void close() {
+    public synchronized void close() {
+        closed = true;
+        weightCache.invalidate();
         if (connection != null) {
             connection.close();
         }
     }
 
-    private void makeSureReady() throws BleConnectionException {
+    void makeSureReady() throws BleConnectionException {
         if (!ready || !connection.isConnected()) {
             throw new BleConnectionException("Connection closed!");
         }
@@ -90,7 +173,29 @@ public class BleScaleApi implements ScaleApi {
 
     @Override
     public int clearTare() throws Exception {
-        final String[] response = sendCmd4Response(BleCommandMetadata.CMD_CLEAR_TARE);
+        final long start = System.nanoTime();
+        try {
+            final int result = doClearTare();
+            tareMetrics.onSuccess(start);
+            return result;
+        } catch (Exception e) {
+            tareMetrics.onError(start, e);
+            throw e;
+        }
+    }
+
+    private int doClearTare() throws Exception {
+        invalidateWeightCache();
+        try {
+            return parseTare(request(BleCommandMetadata.CMD_CLEAR_TARE));
+        } finally {
+            // a W answered while the tare was in flight may be stale too
+            invalidateWeightCache();
+        }
+    }
+
+    static int parseTare(byte[] line) throws Exception {
+        final String[] response = CommandFrames.parseResponse(line);
         if (response.length < 2) {
             throw new InvalidateResponseException("Invalidate response[T]:" + CmdUtils.asPlainText(response));
         }
@@ -102,17 +207,108 @@ public class BleScaleApi implements ScaleApi {
         // Response Format:
         // 0 1 2  3    4    5    6   7
         // W A = D/S Gross Tare Net kg/g
-        final String[] response = sendCmd4Response(BleCommandMetadata.CMD_READ_WEIGHT);
+        final String[] response = CommandFrames.parseResponse(requestWeight());
         if (response.length != BleCommandMetadata.CMD_READ_WEIGHT_RESPONSE_LENGTH) {
             throw new InvalidateResponseException("Invalidate Response(W) from device:" + CmdUtils.asPlainText(response));
         }
         return new String[]{response[6], response[7]};
     }
 
+    @Override
+    public void readWeight(WeightReading reading) throws Exception {
+        parseWeight(requestWeight(), reading);
+        updateMetadata(reading);
+    }
+
+    /**
+     * 读取W回应，启用缓存时复用有效期内的回应或进行中的请求；连接未就绪时不使用缓存，直接失败
+     */
+    private byte[] requestWeight() throws Exception {
+        makeSureReady();
+        final int maxAge = scaleApiConfig.get(ScaleApiConfig.WEIGHT_CACHE_TIME, Integer.class);
+        if (maxAge <= 0) {
+            return loadWeight();
+        }
+        final int timeout = scaleApiConfig.get(ScaleApiConfig.CMD_TIMEOUT, Integer.class);
+        return weightCache.get(maxAge, timeout, this::loadWeight);
+    }
+
+    /**
+     * 异步读取W回应，与同步调用共用缓存和进行中的请求
+     *
+     * @param loader 未命中时发出请求
+     * @return W回应
+     */
+    ScaleFuture<byte[]> requestWeightAsync(ResponseCache.AsyncLoader loader) {
+        final int maxAge = scaleApiConfig.get(ScaleApiConfig.WEIGHT_CACHE_TIME, Integer.class);
+        if (maxAge <= 0) {
+            return loader.load();
+        }
+        return weightCache.getAsync(maxAge, loader);
+    }
+
+    /**
+     * 向设备发出W命令，只有真正的往返计入耗时统计，缓存命中不计入
+     */
+    private byte[] loadWeight() throws Exception {
+        final long start = System.nanoTime();
+        try {
+            final byte[] line = request(BleCommandMetadata.CMD_READ_WEIGHT);
+            weightMetrics.onSuccess(start);
+            return line;
+        } catch (Exception e) {
+            weightMetrics.onError(start, e);
+            throw e;
+        }
+    }
+
+    /**
+     * 丢弃缓存的重量，去皮、清零时调用
+     */
+    void invalidateWeightCache() {
+        weightCache.invalidate();
+    }
+
+    /**
+     * 重量缓存的命中统计
+     *
+     * @return stats
+     */
+    public CacheStats getWeightCacheStats() {
+        return weightCacheStats;
+    }
+
+    static void parseWeight(byte[] line, WeightReading reading) throws Exception {
+        if (!WeightResponseParser.parse(line, reading)) {
+            throw new InvalidateResponseException("Invalidate Response(W) from device:" + new String(line));
+        }
+    }
+
 
     @Override
     public int zeroClear() throws Exception {
-        final String[] response = sendCmd4Response(BleCommandMetadata.ZERO_CMD);
+        final long start = System.nanoTime();
+        try {
+            final int result = doZeroClear();
+            zeroMetrics.onSuccess(start);
+            return result;
+        } catch (Exception e) {
+            zeroMetrics.onError(start, e);
+            throw e;
+        }
+    }
+
+    private int doZeroClear() throws Exception {
+        invalidateWeightCache();
+        try {
+            return parseZero(request(BleCommandMetadata.ZERO_CMD));
+        } finally {
+            invalidateWeightCache();
+        }
+    }
+
+    static int parseZero(byte[] line) throws Exception {
+        final String[] response = CommandFrames.parseResponse(line);
         if (response.length < ZERO_RESPONSE_MIN_ITEMS) {
             throw new InvalidateResponseException("Invalidate response(Z) from device:" + CmdUtils.asPlainText(response));
         }
@@ -129,7 +325,32 @@ public class BleScaleApi implements ScaleApi {
 
     @Override
     public float getMaxWeight() throws Exception {
-        final String[] response = sendCmd4Response(BleCommandMetadata.CMD_CAPACITY);
+        final long start = System.nanoTime();
+        try {
+            final float result = doGetMaxWeight();
+            capacityMetrics.onSuccess(start);
+            return result;
+        } catch (Exception e) {
+            capacityMetrics.onError(start, e);
+            throw e;
+        }
+    }
+
+    private float doGetMaxWeight() throws Exception {
+        final long generation;
+        synchronized (metadata) {
+            if (metadata.isCapacityKnown()) {
+                return metadata.getCapacity();
+            }
+            generation = metadataGeneration;
+        }
+        final float capacity = parseCapacity(request(BleCommandMetadata.CMD_CAPACITY));
+        storeCapacity(capacity, generation);
+        return capacity;
+    }
+
+    static float parseCapacity(byte[] line) throws Exception {
+        final String[] response = CommandFrames.parseResponse(line);
         if (response.length < 4) {
             throw new InvalidateResponseException("Invalidate response[CAPACITY]:" + CmdUtils.asPlainText(response));
         }
@@ -152,13 +373,30 @@ public class BleScaleApi implements ScaleApi {
 
     @Override
     public void setPoint(int num) throws Exception {
-        final byte[] numBytes = String.valueOf(num).getBytes();
-        final byte[] cmdBytes = new byte[BleCommandMetadata.CMD_DECIMAL.length + numBytes.length + 1];
-        System.arraycopy(BleCommandMetadata.CMD_DECIMAL, 0, cmdBytes, 0, BleCommandMetadata.CMD_DECIMAL.length);
-        cmdBytes[BleCommandMetadata.CMD_DECIMAL.length] = BleCommandMetadata.SP_BYTE;
-        System.arraycopy(numBytes, 0, cmdBytes, BleCommandMetadata.CMD_DECIMAL.length + 1, numBytes.length);
+        final long start = System.nanoTime();
+        try {
+            doSetPoint(num);
+            decimalMetrics.onSuccess(start);
+        } catch (Exception e) {
+            decimalMetrics.onError(start, e);
+            throw e;
+        }
+    }
 
-        final String[] response = sendCmd4Response(cmdBytes);
+    private void doSetPoint(int num) throws Exception {
+        makeSureReady();
+        final int timeout = scaleApiConfig.get(ScaleApiConfig.CMD_TIMEOUT, Integer.class);
+        final ScaleFuture<byte[]> future;
+        synchronized (encoder) {
+            encoder.decimal(num);
+            future = pipeline.submit(BleCommandMetadata.CMD_DECIMAL, encoder.buffer(), encoder.length(), timeout);
+        }
+        parseDecimal(awaitResponse(future, BleCommandMetadata.CMD_DECIMAL, timeout));
+        onDecimalsSet(num);
+    }
+
+    static Void parseDecimal(byte[] line) throws Exception {
+        final String[] response = CommandFrames.parseResponse(line);
         if (response.length < 2) {
             throw new InvalidateResponseException("Invalidate response[DECIMAL]:" + CmdUtils.asPlainText(response));
         }
@@ -166,41 +404,116 @@ public class BleScaleApi implements ScaleApi {
         if (!STATUS_SUCCESS.equals(status)) {
             throw new OperationFailedException("Operation[DECIMAL] fail:" + CmdUtils.asPlainText(response));
         }
+        return null;
     }
 
 
     @Override
     public int sendCmd(byte[] bytes, int timeout) throws Exception {
-        Log.e(TAG, "sendCmd: LEN=" + bytes.length);
-        final byte[] len = String.valueOf(bytes.length).getBytes();
-        final byte[] timeoutBytes = String.valueOf(timeout).getBytes();
-        // FORMAT: SEND Channel length timeout CR LF
-        final byte[] cmdBytes = new byte[BleCommandMetadata.CMD_SEND_DATA.length
-                + DEFAULT_DATA_CHANNEL.length
-                + len.length
-                + timeoutBytes.length
-                + 3];
-        // SEND
-        int pos = 0;
-        System.arraycopy(BleCommandMetadata.CMD_SEND_DATA, 0, cmdBytes, pos, BleCommandMetadata.CMD_SEND_DATA.length);
-        pos += BleCommandMetadata.CMD_SEND_DATA.length;
-        cmdBytes[pos] = BleCommandMetadata.SP_BYTE;
-        pos++;
-        // Channel
-        System.arraycopy(DEFAULT_DATA_CHANNEL, 0, cmdBytes, pos, DEFAULT_DATA_CHANNEL.length);
-        pos += DEFAULT_DATA_CHANNEL.length;
-        cmdBytes[pos] = BleCommandMetadata.SP_BYTE;
-        pos++;
-        // Length
-        System.arraycopy(len, 0, cmdBytes, pos, len.length);
-        pos += len.length;
-        cmdBytes[pos] = BleCommandMetadata.SP_BYTE;
-        pos++;
-        // Timeout
-        System.arraycopy(timeoutBytes, 0, cmdBytes, pos, timeoutBytes.length);
-        //        pos += timeoutBytes.length;
-
-        final String[] response = sendCmd4Response(cmdBytes);
+        return send(bytes.length, timeout, () -> writePayload(bytes));
+    }
+
+    @Override
+    public int sendCmd(InputStream in, int length, int timeout, SendProgressListener listener) throws Exception {
+        return send(length, timeout, () -> {
+            final byte[] chunk = new byte[Math.min(PAYLOAD_CHUNK, Math.max(length, 1))];
+            final boolean bulk = beginPayload();
+            int sent = 0;
+            while (sent < length) {
+                final int n = in.read(chunk, 0, Math.min(chunk.length, length - sent));
+                if (n < 0) {
+                    throw new EOFException("Stream ended at " + sent + " of " + length + " bytes");
+                }
+                writeChunk(chunk, n, bulk);
+                sent += n;
+                if (listener != null) {
+                    listener.onProgress(sent, length);
+                }
+            }
+        });
+    }
+
+    @Override
+    public int sendCmd(ByteBuffer data, int timeout, SendProgressListener listener) throws Exception {
+        // keep the position of the caller's buffer
+        final ByteBuffer source = data.duplicate();
+        final int length = source.remaining();
+        return send(length, timeout, () -> {
+            final byte[] chunk = new byte[Math.min(PAYLOAD_CHUNK, Math.max(length, 1))];
+            final boolean bulk = beginPayload();
+            while (source.hasRemaining()) {
+                final int n = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, n);
+                writeChunk(chunk, n, bulk);
+                if (listener != null) {
+                    listener.onProgress(length - source.remaining(), length);
+                }
+            }
+        });
+    }
+
+    @Override
+    public int sendCmd(String path, int timeout, SendProgressListener listener) throws Exception {
+        final ByteBuffer mapped;
+        try (RandomAccessFile file = new RandomAccessFile(path, "r");
+             FileChannel channel = file.getChannel()) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("File too large to send: " + size + " bytes");
+            }
+            // the mapping stays valid after the channel is closed
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        return sendCmd(mapped, timeout, listener);
+    }
+
+    private int send(int length, int timeout, PayloadWriter writer) throws Exception {
+        final long start = System.nanoTime();
+        try {
+            final int result = doSendCmd(length, timeout, writer);
+            sendMetrics.onSuccess(start);
+            return result;
+        } catch (Exception e) {
+            sendMetrics.onError(start, e);
+            throw e;
+        }
+    }
+
+    private int doSendCmd(int length, int timeout, PayloadWriter writer) throws Exception {
+        if (length < 0) {
+            throw new IllegalArgumentException("Invalid length [" + length + "]");
+        }
+        Log.d(TAG, "sendCmd: LEN=" + length);
+        final int cmdTimeout = scaleApiConfig.get(ScaleApiConfig.CMD_TIMEOUT, Integer.class);
+        makeSureReady();
+        // the payload must not interleave with other commands
+        pipeline.lockExclusive(cmdTimeout);
+        try {
+            final ScaleFuture<byte[]> readyFuture;
+            synchronized (encoder) {
+                // FORMAT: SEND Channel length timeout CR LF
+                encoder.sendData(length, timeout);
+                readyFuture = pipeline.submitExclusive(BleCommandMetadata.CMD_SEND_DATA, encoder.buffer(), encoder.length(), cmdTimeout);
+            }
+            parseSendReady(awaitResponse(readyFuture, BleCommandMetadata.CMD_SEND_DATA, cmdTimeout));
+            final ScaleFuture<byte[]> resultFuture = pipeline.expectExclusive(BleCommandMetadata.CMD_SEND_DATA, timeout);
+            try {
+                writer.write();
+            } catch (Exception e) {
+                // the scale is still waiting for the rest of the payload
+                pipeline.markDesync();
+                throw e;
+            }
+            parseSendResult(awaitResponse(resultFuture, BleCommandMetadata.CMD_SEND_DATA, timeout));
+            return length;
+        } finally {
+            connection.endHighThroughput();
+            pipeline.unlockExclusive();
+        }
+    }
+
+    static void parseSendReady(byte[] line) throws Exception {
+        final String[] response = CommandFrames.parseResponse(line);
         if (response.length < 2) {
             throw new InvalidateResponseException("Invalidate response[SEND]:" + CmdUtils.asPlainText(response));
         }
@@ -208,9 +521,10 @@ public class BleScaleApi implements ScaleApi {
         if (!SEND_DATA_STATUS_READY.equals(readyStatus)) {
             throw new OperationFailedException("Operation fail:" + CmdUtils.asPlainText(response));
         }
-        connection.write(bytes);
-        final byte[] lineBytes = connection.getRecvBuffer().readLine(BleCommandMetadata.LINE_END, timeout);
-        final String[] res = parseResponse(lineBytes);
+    }
+
+    static void parseSendResult(byte[] line) throws Exception {
+        final String[] res = CommandFrames.parseResponse(line);
         if (res.length < 2) {
             throw new InvalidateResponseException("Invalidate response[SEND RES]:" + CmdUtils.asPlainText(res));
         }
@@ -218,34 +532,293 @@ public class BleScaleApi implements ScaleApi {
         if (!STATUS_SUCCESS.equals(sendStatus)) {
             throw new InvalidateResponseException("Invalidate response[SEND RES]:" + CmdUtils.asPlainText(res));
         }
-        return bytes.length;
     }
 
-    private String[] parseResponse(byte[] bytes) {
-        if (bytes == null) {
-            return EMPTY_RESPONSE;
+    /**
+     * 写入SEND命令的数据，调用方持有独占并在结束后调用{@link BasicConnection#endHighThroughput()}
+     *
+     * @param bytes data
+     * @throws Exception 写入失败
+     */
+    void writePayload(byte[] bytes) throws Exception {
+        writeChunk(bytes, bytes.length, beginPayload());
+    }
+
+    /**
+     * @return 是否使用无回应写入
+     */
+    private boolean beginPayload() {
+        connection.beginHighThroughput();
+        return scaleApiConfig.get(ScaleApiConfig.BULK_WRITE, Boolean.class);
+    }
+
+    /**
+     * 写入一块数据，发送缓冲区已满时阻塞，直到连接发送出足够的数据
+     */
+    private void writeChunk(byte[] chunk, int count, boolean bulk) throws Exception {
+        if (bulk) {
+            connection.writeBulk(chunk, 0, count);
+        } else {
+            connection.writeBuf(chunk, 0, count);
+        }
+    }
+
+    /**
+     * 在持有独占、收到B之后写入SEND数据
+     */
+    private interface PayloadWriter {
+        void write() throws Exception;
+    }
+
+    /**
+     * 连接统计（MTU、每次写入的分包数和字节数）
+     *
+     * @return stats, null if never connected
+     */
+    /**
+     * 监听连接状态：就绪、断开，以及PHY与连接间隔的变化，在连接的事件线程上回调
+     *
+     * @param listener listener, null to remove
+     */
+    public void setStateListener(BasicConnection.StateListener listener) {
+        this.userStateListener = listener;
+    }
+
+    public ConnectionStats getConnectionStats() {
+        return connection == null ? null : connection.getStats();
+    }
+
+    @Override
+    public Map<String, CommandSnapshot> getMetricsSnapshot() {
+        return metrics.snapshot();
+    }
+
+    /**
+     * 清空统计
+     */
+    public void resetMetrics() {
+        metrics.reset();
+        weightCacheStats.reset();
+    }
+
+    @Override
+    public WeightStream getWeightStream() {
+        return weightStream;
+    }
+
+    /**
+     * 所有收到的数据行，重量数据（包括主动上报的）发布到数据流
+     *
+     * @param line line
+     */
+    private void onLine(byte[] line) {
+        if (!CmdUtils.isResponseOf(BleCommandMetadata.CMD_READ_WEIGHT, line)) {
+            return;
+        }
+        if (WeightResponseParser.parse(line, streamReading)) {
+            updateMetadata(streamReading);
+            weightStream.publish(streamReading);
+        }
+    }
+
+    /**
+     * 连接就绪后在后台读取量程，不阻塞回调线程
+     */
+    private void prefetchMetadata() {
+        final CommandPipeline pipeline = this.pipeline;
+        if (pipeline == null) {
+            return;
+        }
+        final long generation;
+        synchronized (metadata) {
+            generation = metadataGeneration;
+        }
+        final int timeout = scaleApiConfig.get(ScaleApiConfig.CMD_TIMEOUT, Integer.class);
+        pipeline.submitAsync(BleCommandMetadata.CMD_CAPACITY, CommandEncoder.FRAME_CAPACITY, timeout)
+                .addListener((line, error) -> {
+                    if (error != null) {
+                        Log.w(TAG, "prefetchMetadata: CAPACITY failed, read it on demand", error);
+                        return;
+                    }
+                    try {
+                        storeCapacity(parseCapacity(line), generation);
+                    } catch (Exception e) {
+                        Log.w(TAG, "prefetchMetadata: " + e.getMessage());
+                    }
+                });
+    }
+
+    void updateMetadata(WeightReading reading) {
+        synchronized (metadata) {
+            metadata.update(reading);
+        }
+    }
+
+    /**
+     * @return 缓存的量程（kg），未知时返回null
+     */
+    Float cachedCapacity() {
+        synchronized (metadata) {
+            return metadata.isCapacityKnown() ? metadata.getCapacity() : null;
+        }
+    }
+
+    long currentMetadataGeneration() {
+        synchronized (metadata) {
+            return metadataGeneration;
+        }
+    }
+
+    void storeCapacity(float capacity, long generation) {
+        synchronized (metadata) {
+            if (generation == metadataGeneration) {
+                metadata.setCapacity(capacity);
+            }
+        }
+    }
+
+    /**
+     * 小数位数已设置，其余信息重新读取
+     */
+    void onDecimalsSet(int decimals) {
+        synchronized (metadata) {
+            metadataGeneration++;
+            metadata.clear();
+            metadata.setDecimals(decimals);
+        }
+    }
+
+    private void invalidateMetadata() {
+        synchronized (metadata) {
+            metadataGeneration++;
+            metadata.clear();
+        }
+    }
+
+    /**
+     * 仪表信息，读取时不发送命令
+     *
+     * @return 副本
+     */
+    public DeviceMetadata getDeviceMetadata() {
+        final DeviceMetadata copy = new DeviceMetadata();
+        synchronized (metadata) {
+            copy.copyFrom(metadata);
         }
-        final String line = new String(bytes);
-        return line.split(BleCommandMetadata.SP);
+        return copy;
     }
 
-    private String[] sendCmd4Response(byte[] cmd) throws Exception {
+    private void sendStreamCmd(String name) throws Exception {
+        final String cmd = scaleApiConfig.get(name, String.class);
+        if (cmd.isEmpty()) {
+            return;
+        }
         makeSureReady();
-        sendDummy();
-        final byte[] bytes = new byte[cmd.length + BleCommandMetadata.PACKAGE_END.length];
-        System.arraycopy(cmd, 0, bytes, 0, cmd.length);
-        System.arraycopy(BleCommandMetadata.PACKAGE_END, 0, bytes, cmd.length, BleCommandMetadata.PACKAGE_END.length);
-        connection.write(bytes);
+        pipeline.write(CommandFrames.withPackageEnd(cmd.getBytes()));
+    }
+
+    private class ReadyWatcher implements BasicConnection.StateListener {
+        @Override
+        public void onReady(BasicConnection connection) {
+            setReadyState(true);
+            // the connection may call back while holding its own lock, write from another thread
+            ScaleScheduler.shared().execute(BleScaleApi.this::prefetchMetadata);
+            final BasicConnection.StateListener listener = userStateListener;
+            if (listener != null) {
+                listener.onReady(connection);
+            }
+        }
+
+        @Override
+        public void onDisconnected(BasicConnection connection) {
+            setReadyState(false);
+            // a reading of the lost link must not outlive it
+            weightCache.invalidate();
+            // the indicator may have been reconfigured or replaced while the link was down
+            invalidateMetadata();
+            final CommandPipeline pipeline = BleScaleApi.this.pipeline;
+            if (pipeline != null) {
+                // lines of the lost link may be incomplete
+                pipeline.markDesync();
+            }
+            final BasicConnection.StateListener listener = userStateListener;
+            if (listener != null) {
+                listener.onDisconnected(connection);
+            }
+        }
+
+        @Override
+        public void onLinkUpdated(BasicConnection connection, int txPhy, int rxPhy, float connectionInterval) {
+            final BasicConnection.StateListener listener = userStateListener;
+            if (listener != null) {
+                listener.onLinkUpdated(connection, txPhy, rxPhy, connectionInterval);
+            }
+        }
+    }
 
+    private class StreamSwitch implements WeightStream.StreamControl {
+        @Override
+        public void start() throws Exception {
+            sendStreamCmd(ScaleApiConfig.STREAM_START_CMD);
+        }
+
+        @Override
+        public void stop() throws Exception {
+            sendStreamCmd(ScaleApiConfig.STREAM_STOP_CMD);
+        }
+    }
+
+    private byte[] request(byte[] cmd) throws Exception {
+        makeSureReady();
         final int timeout = scaleApiConfig.get(ScaleApiConfig.CMD_TIMEOUT, Integer.class);
-        final byte[] response = connection.getRecvBuffer()
-                .readLine(BleCommandMetadata.LINE_END, timeout);
-        return parseResponse(response);
+        final ScaleFuture<byte[]> future = pipeline.submit(cmd, CommandEncoder.frameOf(cmd), timeout);
+        return awaitResponse(future, cmd, timeout);
+    }
+
+    /**
+     * 等待回应
+     *
+     * @return 回应行
+     * @throws ResponseTimeoutException 超时或回应丢失
+     */
+    private byte[] awaitResponse(ScaleFuture<byte[]> future, byte[] cmd, long timeout) throws Exception {
+        final byte[] response = pipeline.await(future, timeout);
+        if (response == null) {
+            throw new ResponseTimeoutException("No response for [" + new String(cmd) + "] in " + timeout + "ms");
+        }
+        return response;
+    }
+
+    /**
+     * 异步发送命令，回应到达时完成
+     *
+     * @param cmd 命令（不含行尾）
+     * @return 回应行，未在超时内收到回应时以TimeoutException完成
+     * @throws Exception 连接未就绪或等待发送名额超时
+     */
+    public ScaleFuture<byte[]> submitCmd(byte[] cmd) throws Exception {
+        makeSureReady();
+        final int timeout = scaleApiConfig.get(ScaleApiConfig.CMD_TIMEOUT, Integer.class);
+        return pipeline.submit(cmd, CommandEncoder.frameOf(cmd), timeout);
+    }
+
+    CommandEncoder getEncoder() {
+        return encoder;
+    }
+
+    CommandPipeline getPipeline() {
+        return pipeline;
+    }
+
+    BasicConnection getConnection() {
+        return connection;
+    }
+
+    ScaleApiConfig getConfig() {
+        return scaleApiConfig;
     }
 
-    private void sendDummy() throws Exception {
-        connection.getRecvBuffer().clear();
-        connection.write("xxx\r\n");
-        connection.getRecvBuffer().readLine(BleCommandMetadata.LINE_END, 200);
+    ScaleMetrics getMetrics() {
+        return metrics;
     }
 }
@@ -0,0 +1,123 @@
+package com.berrontech.weight.scale.ble;
+
+import java.util.Arrays;
+
+/**
+ * Create by levent8421 2021/2/18 9:20
+ * CommandEncoder
+ * 命令编码：固定命令使用预先生成的命令帧；带参数的命令直接格式化到可重复使用的缓冲区，
+ * 不产生中间字符串和数组。一个连接一个实例，非线程安全，调用方负责同步
+ *
+ * @author levent8421
+ */
+public class CommandEncoder {
+    public static final byte[] FRAME_READ_WEIGHT = CommandFrames.withPackageEnd(BleCommandMetadata.CMD_READ_WEIGHT);
+    public static final byte[] FRAME_CLEAR_TARE = CommandFrames.withPackageEnd(BleCommandMetadata.CMD_CLEAR_TARE);
+    public static final byte[] FRAME_ZERO = CommandFrames.withPackageEnd(BleCommandMetadata.ZERO_CMD);
+    public static final byte[] FRAME_CAPACITY = CommandFrames.withPackageEnd(BleCommandMetadata.CMD_CAPACITY);
+    private static final byte DEFAULT_DATA_CHANNEL = '0';
+    /**
+     * SEND 0 -2147483648 -2147483648\r\n
+     */
+    private static final int BUFFER_SIZE = 64;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int length;
+
+    /**
+     * 固定命令的命令帧
+     *
+     * @param cmd 命令（不含行尾）
+     * @return 预先生成的命令帧，不是固定命令时生成新的命令帧
+     */
+    public static byte[] frameOf(byte[] cmd) {
+        if (cmd == BleCommandMetadata.CMD_READ_WEIGHT) {
+            return FRAME_READ_WEIGHT;
+        }
+        if (cmd == BleCommandMetadata.CMD_CLEAR_TARE) {
+            return FRAME_CLEAR_TARE;
+        }
+        if (cmd == BleCommandMetadata.ZERO_CMD) {
+            return FRAME_ZERO;
+        }
+        if (cmd == BleCommandMetadata.CMD_CAPACITY) {
+            return FRAME_CAPACITY;
+        }
+        return CommandFrames.withPackageEnd(cmd);
+    }
+
+    /**
+     * DECIMAL num\r\n
+     *
+     * @param num 小数位数
+     * @return this
+     */
+    public CommandEncoder decimal(int num) {
+        length = 0;
+        put(BleCommandMetadata.CMD_DECIMAL);
+        buffer[length++] = BleCommandMetadata.SP_BYTE;
+        putInt(num);
+        put(BleCommandMetadata.PACKAGE_END);
+        return this;
+    }
+
+    /**
+     * SEND Channel length timeout\r\n
+     *
+     * @param dataLength 数据长度
+     * @param timeout    超时
+     * @return this
+     */
+    public CommandEncoder sendData(int dataLength, int timeout) {
+        length = 0;
+        put(BleCommandMetadata.CMD_SEND_DATA);
+        buffer[length++] = BleCommandMetadata.SP_BYTE;
+        buffer[length++] = DEFAULT_DATA_CHANNEL;
+        buffer[length++] = BleCommandMetadata.SP_BYTE;
+        putInt(dataLength);
+        buffer[length++] = BleCommandMetadata.SP_BYTE;
+        putInt(timeout);
+        put(BleCommandMetadata.PACKAGE_END);
+        return this;
+    }
+
+    /**
+     * @return 缓冲区，有效数据为[0, length)，下一次编码前有效
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return 复制出的命令帧，用于排队发送的命令
+     */
+    public byte[] toFrame() {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private void put(byte[] bytes) {
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void putInt(int value) {
+        long v = value;
+        if (v < 0) {
+            buffer[length++] = '-';
+            v = -v;
+        }
+        int digits = 1;
+        for (long n = v / 10; n > 0; n /= 10) {
+            digits++;
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        length += digits;
+    }
+}
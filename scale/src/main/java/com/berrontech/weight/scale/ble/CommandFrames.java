@@ -0,0 +1,39 @@
+package com.berrontech.weight.scale.ble;
+
+/**
+ * Create by levent8421 2021/2/11 9:30
+ * CommandFrames
+ * 命令帧组装与回应拆分，与连接无关，可单独测试和做性能测量；带参数的命令见{@link CommandEncoder}
+ *
+ * @author levent8421
+ */
+public class CommandFrames {
+    private static final String[] EMPTY_RESPONSE = {};
+
+    /**
+     * 命令后加上数据包结束符
+     *
+     * @param cmd 命令（不含行尾）
+     * @return 完整的命令帧
+     */
+    public static byte[] withPackageEnd(byte[] cmd) {
+        final byte[] bytes = new byte[cmd.length + BleCommandMetadata.PACKAGE_END.length];
+        System.arraycopy(cmd, 0, bytes, 0, cmd.length);
+        System.arraycopy(BleCommandMetadata.PACKAGE_END, 0, bytes, cmd.length, BleCommandMetadata.PACKAGE_END.length);
+        return bytes;
+    }
+
+    /**
+     * 按空格拆分回应行
+     *
+     * @param bytes 回应行，null表示没有回应
+     * @return 回应各项，没有回应时为空数组
+     */
+    public static String[] parseResponse(byte[] bytes) {
+        if (bytes == null) {
+            return EMPTY_RESPONSE;
+        }
+        final String line = new String(bytes);
+        return line.split(BleCommandMetadata.SP);
+    }
+}
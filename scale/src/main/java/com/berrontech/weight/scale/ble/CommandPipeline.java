@@ -0,0 +1,617 @@
+package com.berrontech.weight.scale.ble;
+
+import android.util.Log;
+
+import com.berrontech.weight.scale.commons.BasicConnection;
+import com.berrontech.weight.scale.commons.ScaleFuture;
+import com.berrontech.weight.scale.commons.ScaleScheduler;
+import com.berrontech.weight.scale.utils.CmdUtils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Create by levent8421 2021/2/5 10:48
+ * CommandPipeline
+ * 命令流水线：同一连接上允许多个命令同时等待回应，回应按发送顺序（FIFO）与命令回显匹配
+ *
+ * @author levent8421
+ */
+public class CommandPipeline implements BasicConnection.OnReceivedListener {
+    private static final String TAG = "CommandPipeline";
+    /**
+     * 重新同步时发送的无效命令，设备会回复一行错误信息，用于冲掉残缺的数据
+     */
+    private static final String DUMMY_CMD = "xxx\r\n";
+    private static final int DUMMY_RESPONSE_TIMEOUT = 200;
+
+    private final BasicConnection connection;
+    private final int depth;
+    private final Semaphore slots;
+    private final Object writeLock = new Object();
+    private final ArrayDeque<PendingCommand> pending = new ArrayDeque<>();
+    /**
+     * 异步提交、尚未取得发送名额的命令
+     */
+    private final ArrayDeque<PendingCommand> waiting = new ArrayDeque<>();
+    private final ScheduledExecutorService scheduler = ScaleScheduler.shared();
+    private final Runnable expireTask = this::expireStale;
+    private final Runnable drainTask = this::drainWaiting;
+    /**
+     * 发送排队命令的任务已提交
+     */
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    /**
+     * 有命令未收到有效回应，收发可能已错位，空闲时需要重新同步
+     */
+    private volatile boolean desync = true;
+    private volatile LineObserver lineObserver;
+
+    public CommandPipeline(BasicConnection connection, int depth) {
+        if (depth <= 0) {
+            throw new IllegalArgumentException("Invalid pipeline depth [" + depth + "]");
+        }
+        this.connection = connection;
+        this.depth = depth;
+        this.slots = new Semaphore(depth, true);
+        connection.setOnReceivedListener(this);
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getInFlightCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    public void setLineObserver(LineObserver lineObserver) {
+        this.lineObserver = lineObserver;
+    }
+
+    /**
+     * 直接写入一帧，不等待回应
+     *
+     * @param frame 完整的命令帧
+     * @throws Exception 写入失败
+     */
+    public void write(byte[] frame) throws Exception {
+        synchronized (writeLock) {
+            connection.write(frame);
+        }
+    }
+
+    /**
+     * 标记收发已错位，下一次空闲时重新同步
+     */
+    public void markDesync() {
+        desync = true;
+    }
+
+    boolean isDesync() {
+        return desync;
+    }
+
+    /**
+     * 发送命令，回应到达时完成Future；未在超时内收到回应时以{@link TimeoutException}完成
+     *
+     * @param cmd     命令（不含行尾），用于匹配回应
+     * @param frame   完整的命令帧
+     * @param timeout 超时（毫秒）
+     * @return 回应行
+     * @throws Exception 等待发送名额超时或写入失败
+     */
+    public ScaleFuture<byte[]> submit(byte[] cmd, byte[] frame, long timeout) throws Exception {
+        return submit(cmd, frame, frame.length, timeout);
+    }
+
+    /**
+     * 发送命令，命令帧在返回前写入连接，缓冲区可以在返回后重复使用
+     *
+     * @param cmd         命令，用于匹配回应
+     * @param frame       命令帧缓冲区
+     * @param frameLength 命令帧长度
+     * @param timeout     超时（毫秒）
+     * @return 回应行
+     * @throws Exception 等待发送名额超时或写入失败
+     */
+    public ScaleFuture<byte[]> submit(byte[] cmd, byte[] frame, int frameLength, long timeout) throws Exception {
+        if (desync) {
+            resyncIfIdle();
+        }
+        acquire(1, timeout);
+        try {
+            return send(cmd, frame, frameLength, timeout, 1);
+        } catch (Exception e) {
+            release(1);
+            throw e;
+        }
+    }
+
+    /**
+     * 异步发送命令，调用线程不等待：没有发送名额时排队，有名额时在阻塞IO线程上发送。
+     * 超时由共享定时器触发，以{@link TimeoutException}完成；取消Future会将命令移出队列
+     *
+     * @param cmd     命令（不含行尾），用于匹配回应
+     * @param frame   完整的命令帧
+     * @param timeout 超时（毫秒），包括排队时间
+     * @return 回应行
+     */
+    public ScaleFuture<byte[]> submitAsync(byte[] cmd, byte[] frame, long timeout) {
+        return enqueueWaiting(new PendingCommand(cmd, frame, timeout), timeout);
+    }
+
+    private ScaleFuture<byte[]> enqueueWaiting(PendingCommand command, long timeout) {
+        synchronized (waiting) {
+            waiting.add(command);
+        }
+        command.future.addListener((line, error) -> {
+            if (error instanceof CancellationException) {
+                discard(command.future);
+            }
+        });
+        scheduleExpiry(timeout);
+        requestDrain();
+        return command.future;
+    }
+
+    private void scheduleExpiry(long timeout) {
+        scheduler.schedule(expireTask, timeout + 1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 独占连接：等待所有在途命令结束，期间其他线程无法提交命令
+     *
+     * @param timeout 超时（毫秒）
+     * @throws Exception 等待超时
+     */
+    public void lockExclusive(long timeout) throws Exception {
+        if (desync) {
+            resyncIfIdle();
+        }
+        acquire(depth, timeout);
+    }
+
+    /**
+     * 异步独占连接：所有在途命令结束后完成，完成后调用方持有独占，需调用{@link #unlockExclusive()}释放；
+     * 超时以{@link TimeoutException}完成，超时或取消时不持有独占
+     *
+     * @param timeout 超时（毫秒）
+     * @return 取得独占时完成
+     */
+    public ScaleFuture<byte[]> lockExclusiveAsync(long timeout) {
+        final PendingCommand lock = new PendingCommand(null, null, timeout);
+        lock.required = depth;
+        return enqueueWaiting(lock, timeout);
+    }
+
+    public void unlockExclusive() {
+        release(depth);
+    }
+
+    /**
+     * 在独占期间发送命令
+     *
+     * @param cmd     命令（不含行尾）
+     * @param frame   完整的命令帧
+     * @param timeout 超时（毫秒）
+     * @return 回应行
+     * @throws Exception 写入失败
+     */
+    public ScaleFuture<byte[]> submitExclusive(byte[] cmd, byte[] frame, long timeout) throws Exception {
+        return submitExclusive(cmd, frame, frame.length, timeout);
+    }
+
+    /**
+     * 在独占期间发送命令，命令帧在返回前写入连接
+     *
+     * @param cmd         命令
+     * @param frame       命令帧缓冲区
+     * @param frameLength 命令帧长度
+     * @param timeout     超时（毫秒）
+     * @return 回应行
+     * @throws Exception 写入失败
+     */
+    public ScaleFuture<byte[]> submitExclusive(byte[] cmd, byte[] frame, int frameLength, long timeout) throws Exception {
+        final ScaleFuture<byte[]> future = send(cmd, frame, frameLength, timeout, 0);
+        scheduleExpiry(timeout);
+        return future;
+    }
+
+    /**
+     * 在独占期间等待一行回应而不发送命令
+     *
+     * @param cmd     回应所属命令，null表示任意一行
+     * @param timeout 超时（毫秒）
+     * @return 回应行
+     */
+    public ScaleFuture<byte[]> expectExclusive(byte[] cmd, long timeout) {
+        final PendingCommand command = new PendingCommand(cmd, null, timeout);
+        synchronized (pending) {
+            pending.add(command);
+        }
+        scheduleExpiry(timeout);
+        return command.future;
+    }
+
+    /**
+     * 等待回应，超时或回应丢失返回null
+     *
+     * @param future  回应
+     * @param timeout 超时（毫秒）
+     * @return 回应行
+     * @throws InterruptedException interrupted
+     */
+    public byte[] await(ScaleFuture<byte[]> future, long timeout) throws InterruptedException {
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            desync = true;
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 放弃等待回应，移出队列
+     *
+     * @param future 回应
+     */
+    public void discard(ScaleFuture<byte[]> future) {
+        PendingCommand removed = remove(pending, future);
+        if (removed == null) {
+            removed = remove(waiting, future);
+        }
+        if (removed != null) {
+            release(removed.permits);
+            future.cancel(false);
+        }
+    }
+
+    private static PendingCommand remove(ArrayDeque<PendingCommand> queue, ScaleFuture<byte[]> future) {
+        synchronized (queue) {
+            final Iterator<PendingCommand> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                final PendingCommand command = iterator.next();
+                if (command.future == future) {
+                    iterator.remove();
+                    return command;
+                }
+            }
+        }
+        return null;
+    }
+
+    private ScaleFuture<byte[]> send(byte[] cmd, byte[] frame, int frameLength, long timeout, int permits) throws Exception {
+        final PendingCommand command = new PendingCommand(cmd, frame, frameLength, timeout);
+        command.permits = permits;
+        synchronized (writeLock) {
+            enqueueAndWrite(command);
+        }
+        return command.future;
+    }
+
+    /**
+     * 加入在途队列并写入，调用方持有writeLock，保证写入顺序与队列顺序一致
+     */
+    private void enqueueAndWrite(PendingCommand command) throws Exception {
+        synchronized (pending) {
+            pending.add(command);
+        }
+        try {
+            connection.writeBuf(command.frame, 0, command.frameLength);
+        } catch (Exception e) {
+            synchronized (pending) {
+                pending.remove(command);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 请求在阻塞IO线程上发送排队的异步命令。释放名额的可能是接收（事件）线程，
+     * 写入可能因背压等待数秒，不能在该线程上进行，否则之后的回应都要等这次写入
+     */
+    private void requestDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            ScaleScheduler.blocking().execute(drainTask);
+        }
+    }
+
+    /**
+     * 有发送名额时发送排队的异步命令：在waiting锁内取出命令，在锁外写入
+     */
+    private void drainWaiting() {
+        // clear first: a release from now on schedules another pass
+        drainScheduled.set(false);
+        while (true) {
+            synchronized (writeLock) {
+                final PendingCommand command;
+                boolean resync = false;
+                synchronized (waiting) {
+                    if (waiting.isEmpty()) {
+                        return;
+                    }
+                    if (desync && slots.tryAcquire(depth)) {
+                        // idle, resync before the queue continues
+                        resync = true;
+                        command = null;
+                    } else if (slots.tryAcquire(waiting.peek().required)) {
+                        command = waiting.poll();
+                    } else {
+                        return;
+                    }
+                }
+                if (resync) {
+                    if (startAsyncResync()) {
+                        // the queue continues when the dummy response arrives
+                        return;
+                    }
+                    continue;
+                }
+                if (command.frame == null) {
+                    // exclusive lock, owned by whoever completes the future
+                    if (!command.future.complete(null)) {
+                        slots.release(command.required);
+                    }
+                    continue;
+                }
+                if (command.future.isDone()) {
+                    slots.release(command.required);
+                    continue;
+                }
+                command.permits = command.required;
+                try {
+                    enqueueAndWrite(command);
+                } catch (Exception e) {
+                    slots.release(command.required);
+                    command.future.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 异步重新同步：调用方已占用全部名额，发送无效命令，收到任意一行（或超时）后释放
+     *
+     * @return 已发送无效命令，写入失败时已释放名额
+     */
+    private boolean startAsyncResync() {
+        Log.d(TAG, "resync: start (async)");
+        connection.getRecvBuffer().clear();
+        final PendingCommand dummy = new PendingCommand(null, DUMMY_CMD.getBytes(), DUMMY_RESPONSE_TIMEOUT);
+        dummy.permits = depth;
+        dummy.resync = true;
+        try {
+            enqueueAndWrite(dummy);
+        } catch (Exception e) {
+            Log.w(TAG, "resync: write dummy command failed", e);
+            desync = false;
+            slots.release(depth);
+            return false;
+        }
+        scheduler.schedule(expireTask, DUMMY_RESPONSE_TIMEOUT + 1, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private void acquire(int permits, long timeout) throws Exception {
+        final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (true) {
+            expireStale();
+            if (slots.tryAcquire(permits)) {
+                return;
+            }
+            final long now = System.nanoTime();
+            if (now >= end) {
+                throw new TimeoutException("No free pipeline slot within " + timeout + "ms");
+            }
+            final long wait = Math.min(end, nextExpiry(end)) - now;
+            if (slots.tryAcquire(permits, Math.max(wait, 0), TimeUnit.NANOSECONDS)) {
+                return;
+            }
+        }
+    }
+
+    private void release(int permits) {
+        if (permits <= 0) {
+            return;
+        }
+        slots.release(permits);
+        // read under the lock: either we see a command queued concurrently,
+        // or its enqueuer adds it after this point and then sees the released slots when it drains
+        final boolean queued;
+        synchronized (waiting) {
+            queued = !waiting.isEmpty();
+        }
+        if (queued) {
+            requestDrain();
+        }
+    }
+
+    private long nextExpiry(long defaultValue) {
+        synchronized (pending) {
+            long next = defaultValue;
+            for (PendingCommand command : pending) {
+                next = Math.min(next, command.deadline);
+            }
+            return next;
+        }
+    }
+
+    private void expireStale() {
+        final long now = System.nanoTime();
+        List<PendingCommand> expired = expire(pending, now, null);
+        final boolean inFlightExpired = expired != null;
+        expired = expire(waiting, now, expired);
+        if (expired == null) {
+            return;
+        }
+        if (inFlightExpired) {
+            desync = true;
+        }
+        for (PendingCommand command : expired) {
+            finish(command, null);
+        }
+    }
+
+    private List<PendingCommand> expire(ArrayDeque<PendingCommand> queue, long now, List<PendingCommand> expired) {
+        synchronized (queue) {
+            final Iterator<PendingCommand> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                final PendingCommand command = iterator.next();
+                if (command.deadline - now <= 0) {
+                    iterator.remove();
+                    if (expired == null) {
+                        expired = new ArrayList<>(depth);
+                    }
+                    expired.add(command);
+                }
+            }
+        }
+        return expired;
+    }
+
+    private void resyncIfIdle() throws Exception {
+        expireStale();
+        if (!slots.tryAcquire(depth)) {
+            // commands in flight, resync later
+            return;
+        }
+        try {
+            Log.d(TAG, "resync: start");
+            connection.getRecvBuffer().clear();
+            final ScaleFuture<byte[]> future = expectExclusive(null, DUMMY_RESPONSE_TIMEOUT);
+            connection.write(DUMMY_CMD);
+            await(future, DUMMY_RESPONSE_TIMEOUT);
+            discard(future);
+            desync = false;
+        } finally {
+            release(depth);
+        }
+    }
+
+    @Override
+    public void onReceived(BasicConnection connection) {
+        byte[] line;
+        while ((line = connection.getRecvBuffer().readLine(BleCommandMetadata.LINE_END)) != null) {
+            dispatch(line);
+        }
+    }
+
+    private void dispatch(byte[] line) {
+        final LineObserver observer = lineObserver;
+        if (observer != null) {
+            observer.onLine(line);
+        }
+        expireStale();
+        PendingCommand matched = null;
+        List<PendingCommand> lost = null;
+        // the indicator may push W lines by itself (continuous output), such a line only answers a W
+        // at the head of the queue and never fails the commands ahead of a later W
+        final boolean weightLine = CmdUtils.isResponseOf(BleCommandMetadata.CMD_READ_WEIGHT, line);
+        synchronized (pending) {
+            for (PendingCommand command : pending) {
+                if (command.matches(line)) {
+                    matched = command;
+                    break;
+                }
+                if (weightLine) {
+                    break;
+                }
+            }
+            if (matched != null) {
+                // responses arrive in command order, commands before the matched one lost theirs
+                PendingCommand head;
+                while ((head = pending.poll()) != matched) {
+                    if (lost == null) {
+                        lost = new ArrayList<>(depth);
+                    }
+                    lost.add(head);
+                }
+            }
+        }
+        if (matched == null) {
+            if (observer == null) {
+                Log.w(TAG, "dispatch: drop line:" + new String(line));
+            }
+            return;
+        }
+        if (lost != null) {
+            desync = true;
+            for (PendingCommand command : lost) {
+                finish(command, null);
+            }
+        }
+        finish(matched, line);
+    }
+
+    private void finish(PendingCommand command, byte[] line) {
+        if (command.resync) {
+            // give up after one attempt, like the blocking resync
+            desync = false;
+        }
+        if (line == null) {
+            command.future.completeExceptionally(new TimeoutException("No response for [" + command.name() + "]"));
+        } else {
+            command.future.complete(line);
+        }
+        release(command.permits);
+    }
+
+    private static class PendingCommand {
+        private final byte[] cmd;
+        private final byte[] frame;
+        private final int frameLength;
+        private final long deadline;
+        private final ScaleFuture<byte[]> future = new ScaleFuture<>();
+        /**
+         * 占用的发送名额，完成时释放
+         */
+        private int permits;
+        /**
+         * 排队的命令发送前需要取得的名额
+         */
+        private int required = 1;
+        private boolean resync;
+
+        PendingCommand(byte[] cmd, byte[] frame, long timeout) {
+            this(cmd, frame, frame == null ? 0 : frame.length, timeout);
+        }
+
+        PendingCommand(byte[] cmd, byte[] frame, int frameLength, long timeout) {
+            this.cmd = cmd;
+            this.frame = frame;
+            this.frameLength = frameLength;
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        }
+
+        boolean matches(byte[] line) {
+            return cmd == null || CmdUtils.isResponseOf(cmd, line);
+        }
+
+        String name() {
+            return cmd == null ? "*" : new String(cmd);
+        }
+    }
+
+    public interface LineObserver {
+        /**
+         * Call on every received line, before it is matched to a command
+         *
+         * @param line line without line end
+         */
+        void onLine(byte[] line);
+    }
+}
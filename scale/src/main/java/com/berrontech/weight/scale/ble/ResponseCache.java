@@ -0,0 +1,188 @@
+package com.berrontech.weight.scale.ble;
+
+import com.berrontech.weight.scale.ResponseTimeoutException;
+import com.berrontech.weight.scale.commons.ScaleFuture;
+import com.berrontech.weight.scale.metrics.CacheStats;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Create by levent8421 2021/2/17 14:40
+ * ResponseCache
+ * 缓存一条命令的最近回应：在有效期内直接返回，同时调用的线程共用一次进行中的请求。
+ * 失效后进行中的请求仍完成已加入的调用，但其回应不再缓存
+ *
+ * @author levent8421
+ */
+class ResponseCache {
+    private final CacheStats stats;
+    private byte[] line;
+    private long loadedAt;
+    private ScaleFuture<byte[]> inFlight;
+    /**
+     * 每次失效加一，请求完成时不同则丢弃回应
+     */
+    private long generation;
+
+    ResponseCache(CacheStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * 获取回应
+     *
+     * @param maxAge  有效期（毫秒）
+     * @param timeout 加入进行中的请求时最多等待（毫秒）
+     * @param loader  未命中时发出请求
+     * @return 回应行
+     * @throws Exception loader的异常，加入的调用得到同一个异常
+     */
+    byte[] get(long maxAge, long timeout, Loader loader) throws Exception {
+        final ScaleFuture<byte[]> future;
+        final long loadGeneration;
+        synchronized (this) {
+            if (line != null && System.nanoTime() - loadedAt <= maxAge * 1000000L) {
+                stats.onHit();
+                return line;
+            }
+            if (inFlight != null) {
+                stats.onJoin();
+                future = inFlight;
+                loadGeneration = -1;
+            } else {
+                stats.onMiss();
+                future = new ScaleFuture<>();
+                inFlight = future;
+                loadGeneration = generation;
+            }
+        }
+        if (loadGeneration < 0) {
+            return join(future, timeout);
+        }
+        try {
+            final byte[] result = loader.load();
+            synchronized (this) {
+                if (generation == loadGeneration) {
+                    line = result;
+                    loadedAt = System.nanoTime();
+                }
+            }
+            future.complete(result);
+            return result;
+        } catch (Throwable e) {
+            // Errors too, otherwise the joined callers would wait forever
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            synchronized (this) {
+                if (inFlight == future) {
+                    inFlight = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * 异步获取回应，规则与{@link #get(long, long, Loader)}相同，调用线程不等待。
+     * 每个调用得到自己的Future，取消它不影响共用同一请求的其他调用
+     *
+     * @param maxAge 有效期（毫秒）
+     * @param loader 未命中时发出请求
+     * @return 回应行
+     */
+    ScaleFuture<byte[]> getAsync(long maxAge, AsyncLoader loader) {
+        final ScaleFuture<byte[]> future;
+        final long loadGeneration;
+        synchronized (this) {
+            if (line != null && System.nanoTime() - loadedAt <= maxAge * 1000000L) {
+                stats.onHit();
+                final ScaleFuture<byte[]> hit = new ScaleFuture<>();
+                hit.complete(line);
+                return hit;
+            }
+            if (inFlight != null) {
+                stats.onJoin();
+                return forward(inFlight);
+            }
+            stats.onMiss();
+            future = new ScaleFuture<>();
+            inFlight = future;
+            loadGeneration = generation;
+        }
+        final ScaleFuture<byte[]> response;
+        try {
+            response = loader.load();
+        } catch (Throwable e) {
+            onLoaded(future, loadGeneration, null, e);
+            return forward(future);
+        }
+        response.addListener((result, error) -> onLoaded(future, loadGeneration, result, error));
+        return forward(future);
+    }
+
+    private void onLoaded(ScaleFuture<byte[]> future, long loadGeneration, byte[] result, Throwable error) {
+        synchronized (this) {
+            if (error == null && generation == loadGeneration) {
+                line = result;
+                loadedAt = System.nanoTime();
+            }
+            if (inFlight == future) {
+                inFlight = null;
+            }
+        }
+        if (error == null) {
+            future.complete(result);
+        } else {
+            future.completeExceptionally(error);
+        }
+    }
+
+    private static ScaleFuture<byte[]> forward(ScaleFuture<byte[]> source) {
+        final ScaleFuture<byte[]> target = new ScaleFuture<>();
+        source.addListener((result, error) -> {
+            if (error == null) {
+                target.complete(result);
+            } else {
+                target.completeExceptionally(error);
+            }
+        });
+        return target;
+    }
+
+    private static byte[] join(ScaleFuture<byte[]> future, long timeout) throws Exception {
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new ResponseTimeoutException("No shared response in " + timeout + "ms");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 丢弃缓存的回应，之后的调用不再加入进行中的请求
+     */
+    synchronized void invalidate() {
+        generation++;
+        line = null;
+        inFlight = null;
+        stats.onInvalidate();
+    }
+
+    interface Loader {
+        byte[] load() throws Exception;
+    }
+
+    interface AsyncLoader {
+        ScaleFuture<byte[]> load();
+    }
+}
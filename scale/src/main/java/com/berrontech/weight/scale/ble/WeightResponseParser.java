@@ -0,0 +1,169 @@
+package com.berrontech.weight.scale.ble;
+
+import com.berrontech.weight.scale.WeightReading;
+import com.berrontech.weight.scale.WeightUnit;
+
+/**
+ * Create by levent8421 2021/2/9 10:12
+ * WeightResponseParser
+ * 重量回应解析器，直接解析字节，不分配内存
+ * <p>
+ * Response Format:
+ * 0 1 2  3    4    5    6   7
+ * W A = D/S Gross Tare Net kg/g
+ *
+ * @author levent8421
+ */
+public class WeightResponseParser {
+    private static final int FIELD_FLAG = 3;
+    private static final int FIELD_GROSS = 4;
+    private static final int FIELD_TARE = 5;
+    private static final int FIELD_NET = 6;
+    private static final int FIELD_UNIT = 7;
+    private static final long INVALID = Long.MIN_VALUE;
+
+    /**
+     * 解析重量回应
+     *
+     * @param line    回应行（不含行尾）
+     * @param reading 输出
+     * @return 格式错误时返回false，此时reading内容未定义
+     */
+    public static boolean parse(byte[] line, WeightReading reading) {
+        return parse(line, 0, line.length, reading);
+    }
+
+    /**
+     * 解析重量回应
+     *
+     * @param buf     buffer
+     * @param offset  回应行起始位置
+     * @param length  回应行长度（不含行尾）
+     * @param reading 输出
+     * @return 格式错误时返回false，此时reading内容未定义
+     */
+    public static boolean parse(byte[] buf, int offset, int length, WeightReading reading) {
+        final int end = offset + length;
+        int field = 0;
+        int pos = offset;
+        // [start, end) of the number fields, kept in locals to avoid any allocation
+        int grossStart = 0, grossEnd = 0, tareStart = 0, tareEnd = 0, netStart = 0, netEnd = 0;
+        int unitStart = 0, unitEnd = 0;
+        boolean stable = false;
+        while (pos < end) {
+            if (buf[pos] == BleCommandMetadata.SP_BYTE) {
+                pos++;
+                continue;
+            }
+            final int start = pos;
+            while (pos < end && buf[pos] != BleCommandMetadata.SP_BYTE) {
+                pos++;
+            }
+            switch (field) {
+                case 0:
+                    if (pos - start != 1 || buf[start] != BleCommandMetadata.CMD_READ_WEIGHT[0]) {
+                        return false;
+                    }
+                    break;
+                case FIELD_FLAG:
+                    stable = pos - start == 1 && buf[start] == BleCommandMetadata.WEIGHT_STABLE_FLAG;
+                    break;
+                case FIELD_GROSS:
+                    grossStart = start;
+                    grossEnd = pos;
+                    break;
+                case FIELD_TARE:
+                    tareStart = start;
+                    tareEnd = pos;
+                    break;
+                case FIELD_NET:
+                    netStart = start;
+                    netEnd = pos;
+                    break;
+                case FIELD_UNIT:
+                    unitStart = start;
+                    unitEnd = pos;
+                    break;
+                default:
+                    if (field >= BleCommandMetadata.CMD_READ_WEIGHT_RESPONSE_LENGTH) {
+                        return false;
+                    }
+            }
+            field++;
+        }
+        if (field != BleCommandMetadata.CMD_READ_WEIGHT_RESPONSE_LENGTH) {
+            return false;
+        }
+        final int decimals = Math.max(decimalsOf(buf, grossStart, grossEnd),
+                Math.max(decimalsOf(buf, tareStart, tareEnd), decimalsOf(buf, netStart, netEnd)));
+        if (decimals > WeightReading.MAX_DECIMALS) {
+            return false;
+        }
+        final long gross = parseFixed(buf, grossStart, grossEnd, decimals);
+        final long tare = parseFixed(buf, tareStart, tareEnd, decimals);
+        final long net = parseFixed(buf, netStart, netEnd, decimals);
+        if (gross == INVALID || tare == INVALID || net == INVALID) {
+            return false;
+        }
+        reading.setGross(gross);
+        reading.setTare(tare);
+        reading.setNet(net);
+        reading.setDecimals(decimals);
+        reading.setStable(stable);
+        reading.setUnit(WeightUnit.parse(buf, unitStart, unitEnd - unitStart));
+        reading.setTimestamp(System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * 小数位数
+     *
+     * @return digits after the decimal point
+     */
+    private static int decimalsOf(byte[] buf, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buf[i] == '.') {
+                return end - i - 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 解析为指定小数位数的定点数
+     *
+     * @return INVALID if not a number
+     */
+    private static long parseFixed(byte[] buf, int start, int end, int decimals) {
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && (buf[pos] == '-' || buf[pos] == '+')) {
+            negative = buf[pos] == '-';
+            pos++;
+        }
+        long value = 0;
+        int digits = 0;
+        int fraction = -1;
+        for (; pos < end; pos++) {
+            final byte c = buf[pos];
+            if (c == '.' && fraction < 0) {
+                fraction = 0;
+            } else if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                digits++;
+                if (fraction >= 0) {
+                    fraction++;
+                }
+            } else {
+                return INVALID;
+            }
+        }
+        if (digits == 0) {
+            return INVALID;
+        }
+        if (fraction < decimals) {
+            value *= WeightReading.pow10(decimals - Math.max(fraction, 0));
+        }
+        return negative ? -value : value;
+    }
+}
@@ -21,6 +21,12 @@ public abstract class BasicConnection {
     protected DataBuffer bufRecv = new DataBuffer();
     protected DataBuffer bufSend = new DataBuffer();
     protected OnReceivedListener onReceivedListener;
+    protected final ConnectionStats stats = new ConnectionStats();
+    /**
+     * Max time a writer waits for room in the send buffer, the write fails instead of dropping data
+     */
+    public static final long DEFAULT_WRITE_TIMEOUT = 5 * 1000;
+    protected volatile long writeTimeout = DEFAULT_WRITE_TIMEOUT;
 
     public String getTag() {
         return tag;
@@ -73,6 +79,23 @@ public abstract class BasicConnection {
         return bufSend;
     }
 
+    public ConnectionStats getStats() {
+        return stats;
+    }
+
+    public long getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    /**
+     * @param writeTimeout max wait for room in the send buffer in milliseconds, 0 to fail fast
+     * @return this
+     */
+    public BasicConnection setWriteTimeout(long writeTimeout) {
+        this.writeTimeout = writeTimeout;
+        return this;
+    }
+
     public OnReceivedListener getOnReceivedListener() {
         return onReceivedListener;
     }
@@ -158,23 +181,21 @@ public abstract class BasicConnection {
     }
 
     public String readMeaningfulLine(String[] ansFamily, long timeout) {
-        try {
-            long end = System.currentTimeMillis() + timeout;
-            while (System.currentTimeMillis() <= end) {
-                String line = this.readLine();
-                if (line != null) {
-                    for (String s : ansFamily) {
-                        if (line.contains(s)) {
-                            return line;
-                        }
-                    }
+        final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        long remaining = timeout;
+        while (remaining >= 0) {
+            String line = this.readLine(remaining);
+            if (line == null) {
+                return null;
+            }
+            for (String s : ansFamily) {
+                if (line.contains(s)) {
+                    return line;
                 }
-                TimeUnit.MILLISECONDS.sleep(100);
             }
-            return null;
-        } catch (Exception ex) {
-            return null;
+            remaining = TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime());
         }
+        return null;
     }
 
 
@@ -202,6 +223,33 @@ public abstract class BasicConnection {
      */
     public abstract void writeBuf(byte[] buf, int offset, int count) throws Exception;
 
+    /**
+     * Write bulk data with the fastest transfer mode of the connection,
+     * same as {@link #writeBuf(byte[], int, int)} by default
+     *
+     * @param buf    byte buffer
+     * @param offset offset
+     * @param count  length
+     * @return true if a faster mode was used
+     * @throws Exception any error
+     */
+    public boolean writeBulk(byte[] buf, int offset, int count) throws Exception {
+        writeBuf(buf, offset, count);
+        return false;
+    }
+
+    /**
+     * Tune the link for a bulk transfer, no-op by default
+     */
+    public void beginHighThroughput() {
+    }
+
+    /**
+     * Restore the link after a bulk transfer, no-op by default
+     */
+    public void endHighThroughput() {
+    }
+
 
     public interface OnReceivedListener {
         /**
@@ -211,4 +259,34 @@ public abstract class BasicConnection {
          */
         void onReceived(BasicConnection connection);
     }
+
+    /**
+     * Transport independent connection state callbacks
+     */
+    public interface StateListener {
+        /**
+         * Call when the connection is ready for commands
+         *
+         * @param connection connection
+         */
+        void onReady(BasicConnection connection);
+
+        /**
+         * Call on connection lost or closed
+         *
+         * @param connection connection
+         */
+        void onDisconnected(BasicConnection connection);
+
+        /**
+         * Call when the PHY or the connection interval of the link changed
+         *
+         * @param connection         connection
+         * @param txPhy              tx PHY, BluetoothDevice.PHY_LE_*
+         * @param rxPhy              rx PHY, BluetoothDevice.PHY_LE_*
+         * @param connectionInterval interval in milliseconds, negotiated when the system reports it,
+         *                           otherwise the nominal value of the requested priority
+         */
+        void onLinkUpdated(BasicConnection connection, int txPhy, int rxPhy, float connectionInterval);
+    }
 }
@@ -11,11 +11,18 @@ import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.IntentFilter;
+import android.os.Build;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.InterruptedIOException;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -58,11 +65,38 @@ public class BleConnection extends BasicConnection {
     public final static String ACTION_SPP_READY = "com.monolith.iot.bluetooth.le.ACTION_SPP_READY";
     public final static String ACTION_DATA_SENT = "com.monolith.iot.bluetooth.le.ACTION_DATA_SENT";
     public final static String ACTION_DATA_SEND_ERROR = "com.monolith.iot.bluetooth.le.ACTION_DATA_SEND_ERROR";
+    public final static String ACTION_LINK_UPDATED = "com.monolith.iot.bluetooth.le.ACTION_LINK_UPDATED";
     public final static String EXTRA_DEVICE_TAG = "com.monolith.iot.bluetooth.le.EXTRA_DEVICE_TAG";
 
     private static final int COMBO_ERROR_MAX = 3;
+    /**
+     * ATT default MTU, and the ATT header taken from every write
+     */
+    public static final int DEFAULT_MTU = 23;
+    public static final int MAX_MTU = 517;
+    private static final int ATT_WRITE_HEADER = 3;
+
+    /**
+     * Best-effort serialization of connection setup (issuing the connect, then MTU exchange and service
+     * discovery once connected) across all devices, Android BLE stacks drop GATT operations when several
+     * clients negotiate at the same time. The gate is not held while a connect is pending, and a device
+     * that waits longer than {@link #SETUP_GATE_TIMEOUT} sets up without it rather than never connecting.
+     * Only the setup is gated: writes and notifications of connected devices are not serialized across devices
+     */
+    private static final Semaphore SETUP_GATE = new Semaphore(1, true);
+    private static final long SETUP_GATE_TIMEOUT = 10 * 1000;
+    /**
+     * GATT_ERROR (133), the GATT client is unusable and must be closed
+     */
+    private static final int GATT_ERROR = 133;
+    /**
+     * Auto reconnect backoff: 0.5s, 1s, 2s ... 30s
+     */
+    private static final long RECONNECT_MIN_DELAY = 500;
+    private static final long RECONNECT_MAX_DELAY = 30 * 1000;
 
     private final BleConnectionReceiver receiver;
+    private final AtomicBoolean holdingSetupGate = new AtomicBoolean(false);
     private int comboErrorCnt = 0;
     protected String name;
     protected String address;
@@ -72,6 +106,62 @@ public class BleConnection extends BasicConnection {
     private BluetoothGatt bleGatt;
     private BluetoothGattCharacteristic sppCharacteristic;
     private BluetoothGattCharacteristic sppWriteCharacteristic;
+    private int requestMtu = DEFAULT_MTU;
+    /**
+     * Bulk data is being written without response
+     */
+    private volatile boolean bulkWriting = false;
+    /**
+     * A write without response failed on this connection, use acknowledged writes only
+     */
+    private volatile boolean bulkDisabled = false;
+    /**
+     * Request LE 2M PHY and high connection priority during transfers
+     */
+    private boolean throughputProfile = false;
+    private volatile int txPhy = BluetoothDevice.PHY_LE_1M;
+    private volatile int rxPhy = BluetoothDevice.PHY_LE_1M;
+    private volatile int connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    /**
+     * Interval reported by the stack in milliseconds, 0 until reported, see {@link #getConnectionInterval()}
+     */
+    private volatile float negotiatedInterval = 0;
+    private volatile int mtu = DEFAULT_MTU;
+    /**
+     * Reconnect automatically after the link is lost
+     */
+    private boolean autoConnect = false;
+    /**
+     * {@link System#nanoTime()} when the link was lost, 0 if not lost
+     */
+    private volatile long linkLostAt = 0;
+    private int reconnectAttempts = 0;
+    private ScheduledFuture<?> reconnectTask;
+    /**
+     * A connect was issued and neither connected nor failed yet, a connect to an unreachable device
+     * stays pending until the stack gives up (about 30s)
+     */
+    private volatile boolean connectPending = false;
+    /**
+     * SPP service resolved on the current link
+     */
+    private volatile boolean sppReady = false;
+    /**
+     * {@link System#nanoTime()} when the current link was connected
+     */
+    private volatile long linkUpAt = 0;
+    /**
+     * Serializes open, close and background reconnects
+     */
+    private final Object openLock = new Object();
+    /**
+     * Keeps the pieces of one write together when several writers wait for the send buffer
+     */
+    private final ReentrantLock writerLock = new ReentrantLock(true);
+    /**
+     * Guards the idle/working transition of the write pump
+     */
+    private final Object pumpLock = new Object();
 
     public BleConnection(Context context, BleConnectionReceiver.BleConnectionListener listener) {
         setContext(context);
@@ -95,6 +185,92 @@ public class BleConnection extends BasicConnection {
         return address;
     }
 
+    /**
+     * 设置连接后请求的MTU
+     *
+     * @param requestMtu 23 ~ 517
+     * @return this connection
+     */
+    public BleConnection setRequestMtu(int requestMtu) {
+        this.requestMtu = Math.max(DEFAULT_MTU, Math.min(MAX_MTU, requestMtu));
+        return this;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * 断线后自动重连，重连间隔从0.5秒开始加倍，最长30秒
+     *
+     * @param autoConnect auto connect
+     * @return this connection
+     */
+    public BleConnection setAutoConnect(boolean autoConnect) {
+        this.autoConnect = autoConnect;
+        return this;
+    }
+
+    public BleConnection setThroughputProfile(boolean throughputProfile) {
+        this.throughputProfile = throughputProfile;
+        return this;
+    }
+
+    public int getTxPhy() {
+        return txPhy;
+    }
+
+    public int getRxPhy() {
+        return rxPhy;
+    }
+
+    public int getConnectionPriority() {
+        return connectionPriority;
+    }
+
+    /**
+     * Nominal connection interval of the requested priority, not the negotiated value
+     *
+     * @return [min, max] interval in milliseconds
+     */
+    public float[] getConnectionIntervalRange() {
+        switch (connectionPriority) {
+            case BluetoothGatt.CONNECTION_PRIORITY_HIGH:
+                return new float[]{11.25f, 15f};
+            case BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER:
+                return new float[]{100f, 125f};
+            case BluetoothGatt.CONNECTION_PRIORITY_BALANCED:
+            default:
+                return new float[]{30f, 50f};
+        }
+    }
+
+    /**
+     * Connection interval of the link: the value negotiated with the device when the system reports it
+     * (Android 8.0+ through the hidden onConnectionUpdated callback), otherwise the upper end of the
+     * nominal range of the requested priority
+     *
+     * @return interval in milliseconds
+     */
+    public float getConnectionInterval() {
+        final float negotiated = negotiatedInterval;
+        return negotiated > 0 ? negotiated : getConnectionIntervalRange()[1];
+    }
+
+    /**
+     * @return true if {@link #getConnectionInterval()} is the negotiated value
+     */
+    public boolean isConnectionIntervalNegotiated() {
+        return negotiatedInterval > 0;
+    }
+
+    /**
+     * Max bytes of one characteristic write
+     */
+    private int chunkSize() {
+        return mtu - ATT_WRITE_HEADER;
+    }
+
     /**
      * Implements callback methods for GATT events that the app cares about.  For example,
      * connection change and services discovered.
@@ -105,33 +281,69 @@ public class BleConnection extends BasicConnection {
             Log.d(TAG, "onConnectionStateChange: status=" + status + ",newState=" + newState);
             if (newState == BluetoothProfile.STATE_CONNECTED) {
                 if (status == BluetoothGatt.GATT_SUCCESS) {
+                    connectPending = false;
+                    linkUpAt = System.nanoTime();
+                    // the gate was released once the connect was issued, hold it again for MTU and discovery
+                    synchronized (openLock) {
+                        if (!tryAcquireSetupGate()) {
+                            Log.w(TAG, "onConnectionStateChange: another device is setting up, continue anyway");
+                        }
+                    }
                     setConnected(true);
                     Log.d(TAG, "onConnectionStateChange: Connected to GATT server.");
                     doNotification(ACTION_GATT_CONNECTED);
-                    // Attempts to discover services after successful connection.
-                    boolean rst = bleGatt.discoverServices();
-                    Log.d(TAG, "onConnectionStateChange: Attempting to start service discovery: " + rst);
+                    mtu = DEFAULT_MTU;
+                    stats.setMtu(mtu);
+                    connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+                    negotiatedInterval = 0;
+                    // Negotiate MTU first, services are resolved in onMtuChanged
+                    if (requestMtu > DEFAULT_MTU && gatt.requestMtu(requestMtu)) {
+                        Log.d(TAG, "onConnectionStateChange: Request MTU " + requestMtu);
+                    } else {
+                        resolveServices(gatt);
+                    }
                 } else {
                     // something error
-                    setConnected(false);
                     Log.d(TAG, "onConnectionStateChange: Disconnected with GATT error.");
-                    doNotification(ACTION_GATT_DISCONNECTED);
-                    if (bleGatt != null) {
-                        Log.d(TAG, "onConnectionStateChange: Close GATT");
-                        bleGatt.close();
-                        bleGatt = null;
-                    }
+                    onLinkDown(status);
                 }
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                setConnected(false);
-                Log.d(TAG, "onConnectionStateChange: Disconnected from GATT server.");
-                doNotification(ACTION_GATT_DISCONNECTED);
-
-                if (bleGatt != null) {
-                    Log.d(TAG, "onConnectionStateChange: Close GATT");
-                    bleGatt.close();
-                    bleGatt = null;
-                }
+                Log.d(TAG, "onConnectionStateChange: Disconnected from GATT server, status=" + status);
+                onLinkDown(status);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            Log.d(TAG, "onMtuChanged: mtu=" + mtu + ",status=" + status);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                BleConnection.this.mtu = mtu;
+                stats.setMtu(mtu);
+            }
+            resolveServices(gatt);
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            Log.d(TAG, "onPhyUpdate: tx=" + txPhy + ",rx=" + rxPhy + ",status=" + status);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                BleConnection.this.txPhy = txPhy;
+                BleConnection.this.rxPhy = rxPhy;
+                doNotification(ACTION_LINK_UPDATED);
+            }
+        }
+
+        /**
+         * Hidden BluetoothGattCallback method (Android 8.0+), not in the public SDK so there is no @Override,
+         * older systems never call it. Reports the negotiated interval in units of 1.25 ms
+         */
+        @SuppressWarnings("unused")
+        public void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency, int timeout, int status) {
+            Log.d(TAG, "onConnectionUpdated: interval=" + interval + ",latency=" + latency
+                    + ",timeout=" + timeout + ",status=" + status);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                negotiatedInterval = interval * 1.25f;
+                doNotification(ACTION_LINK_UPDATED);
             }
         }
 
@@ -164,9 +376,7 @@ public class BleConnection extends BasicConnection {
                 sppWriteCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
             }
             if (sppCharacteristic != null) {
-                bufSend.clear();
-                bufSend.resetWorkingCounter();
-                doNotification(ACTION_SPP_READY);
+                onSppReady();
             }
         }
 
@@ -198,14 +408,29 @@ public class BleConnection extends BasicConnection {
             super.onCharacteristicWrite(gatt, characteristic, status);
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 comboErrorCnt = 0;
-                if (bufSend.isEmpty()) {
-                    bufSend.setWorking(false);
+                final byte[] bytes;
+                synchronized (pumpLock) {
+                    if (bufSend.isEmpty()) {
+                        bufSend.setWorking(false);
+                        bytes = null;
+                    } else {
+                        // send next part
+                        // maximum MTU - 3 bytes can be written to characteristic
+                        bytes = bufSend.pop(chunkSize());
+                    }
+                }
+                if (bytes == null) {
+                    endBulk(characteristic);
                     doNotification(ACTION_DATA_SENT);
                 } else {
-                    // send next part
-                    final byte[] bytes = bufSend.pop(20);    // maximum 20 bytes can be written to characteristic
                     writeCharacteristic(characteristic, bytes);
                 }
+            } else if (bulkWriting) {
+                // fall back to acknowledged writes and resend the failed chunk
+                Log.w(TAG, "onCharacteristicWrite: write without response failed, status=" + status);
+                bulkDisabled = true;
+                endBulk(characteristic);
+                gatt.writeCharacteristic(characteristic);
             } else {
                 comboErrorCnt++;
                 Log.w(TAG, "onCharacteristicWrite: errors: " + comboErrorCnt);
@@ -215,12 +440,167 @@ public class BleConnection extends BasicConnection {
                 } else {
                     comboErrorCnt = 0;
                     bufSend.clear();
+                    bufSend.resetWorkingCounter();
                     doNotification(ACTION_DATA_SEND_ERROR);
                 }
             }
         }
     };
 
+    private void acquireSetupGate() throws InterruptedException {
+        if (holdingSetupGate.get()) {
+            return;
+        }
+        if (SETUP_GATE.tryAcquire(SETUP_GATE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            holdingSetupGate.set(true);
+        } else {
+            Log.w(TAG, "acquireSetupGate: another device is still connecting, connect anyway");
+        }
+    }
+
+    /**
+     * @return false if another device is connecting
+     */
+    private boolean tryAcquireSetupGate() {
+        if (holdingSetupGate.get()) {
+            return true;
+        }
+        if (SETUP_GATE.tryAcquire()) {
+            holdingSetupGate.set(true);
+            return true;
+        }
+        return false;
+    }
+
+    private void releaseSetupGate() {
+        if (holdingSetupGate.compareAndSet(true, false)) {
+            SETUP_GATE.release();
+        }
+    }
+
+    /**
+     * Reuse the characteristics of the last connection on the same GATT client,
+     * discover services only on the first connection
+     */
+    private void resolveServices(BluetoothGatt gatt) {
+        if (sppCharacteristic != null && sppWriteCharacteristic != null && gatt.getService(SERVICE_GUID) != null) {
+            Log.d(TAG, "resolveServices: use cached characteristics");
+            setCharacteristicNotification(sppCharacteristic, true);
+            onSppReady();
+        } else {
+            discoverServices(gatt);
+        }
+    }
+
+    private void onSppReady() {
+        bufSend.clear();
+        bufSend.resetWorkingCounter();
+        sppReady = true;
+        releaseSetupGate();
+        cancelReconnect();
+        final long lostAt = linkLostAt;
+        if (lostAt != 0) {
+            linkLostAt = 0;
+            final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lostAt);
+            Log.i(TAG, "onSppReady: reconnected in " + millis + "ms");
+            stats.onReconnect(millis);
+        }
+        doNotification(ACTION_SPP_READY);
+    }
+
+    /**
+     * Link lost or connect failed. The GATT client and its characteristics are kept for the next connect
+     * unless the connection is being closed or the client is broken
+     */
+    private void onLinkDown(int status) {
+        connectPending = false;
+        sppReady = false;
+        setConnected(false);
+        releaseSetupGate();
+        doNotification(ACTION_GATT_DISCONNECTED);
+        if (isClosing || status == GATT_ERROR) {
+            closeGatt();
+        }
+        if (isClosing) {
+            return;
+        }
+        if (linkLostAt == 0) {
+            linkLostAt = System.nanoTime();
+        }
+        if (autoConnect) {
+            scheduleReconnect();
+        }
+    }
+
+    private void closeGatt() {
+        sppCharacteristic = null;
+        sppWriteCharacteristic = null;
+        if (bleGatt != null) {
+            Log.d(TAG, "closeGatt: Close GATT");
+            bleGatt.close();
+            bleGatt = null;
+        }
+    }
+
+    private synchronized void scheduleReconnect() {
+        if (reconnectTask != null) {
+            reconnectTask.cancel(false);
+        }
+        final long delay = Math.min(RECONNECT_MAX_DELAY, RECONNECT_MIN_DELAY << Math.min(reconnectAttempts, 6));
+        reconnectAttempts++;
+        Log.d(TAG, "scheduleReconnect: attempt " + reconnectAttempts + " in " + delay + "ms");
+        reconnectTask = ScaleScheduler.shared().schedule(this::reconnect, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void cancelReconnect() {
+        reconnectAttempts = 0;
+        if (reconnectTask != null) {
+            reconnectTask.cancel(false);
+            reconnectTask = null;
+        }
+    }
+
+    private void reconnect() {
+        synchronized (openLock) {
+            if (isClosing) {
+                return;
+            }
+            if (isConnected()) {
+                if (sppReady) {
+                    return;
+                }
+                if (System.nanoTime() - linkUpAt > TimeUnit.MILLISECONDS.toNanos(SETUP_GATE_TIMEOUT)) {
+                    // connected but the SPP service never became ready, drop the link and start over
+                    Log.w(TAG, "reconnect: link setup stalled, disconnect");
+                    final BluetoothGatt gatt = bleGatt;
+                    if (gatt != null) {
+                        gatt.disconnect();
+                    }
+                }
+            } else if (connectPending) {
+                Log.d(TAG, "reconnect: connect still pending");
+            } else if (!tryAcquireSetupGate()) {
+                Log.d(TAG, "reconnect: another device is connecting");
+            } else {
+                try {
+                    doOpen();
+                } catch (Exception e) {
+                    Log.w(TAG, "reconnect: failed", e);
+                } finally {
+                    releaseSetupGate();
+                }
+            }
+            // try again if not ready before the next delay
+            scheduleReconnect();
+        }
+    }
+
+    private void discoverServices(BluetoothGatt gatt) {
+        // Attempts to discover services after successful connection.
+        boolean rst = gatt.discoverServices();
+        Log.d(TAG, "discoverServices: Attempting to start service discovery: " + rst);
+    }
+
     /**
      * Initializes a reference to the local Bluetooth adapter.
      */
@@ -253,13 +633,25 @@ public class BleConnection extends BasicConnection {
     }
 
 
-    boolean isClosing = false;
+    volatile boolean isClosing = false;
 
     /**
      * Connects to the GATT server hosted on the Bluetooth LE device.
      */
     @Override
     public void open() throws Exception {
+        acquireSetupGate();
+        synchronized (openLock) {
+            try {
+                doOpen();
+            } finally {
+                // held again from connected to SPP ready, not while the connect is pending
+                releaseSetupGate();
+            }
+        }
+    }
+
+    private void doOpen() throws Exception {
         isClosing = false;
 
         if (bleAdapter == null) {
@@ -281,6 +673,7 @@ public class BleConnection extends BasicConnection {
                 Log.w(TAG, msg);
                 throw new Exception(msg);
             }
+            connectPending = true;
         } else {
             Log.d(TAG, "open: Trying to create a new connection.");
             bleDevice = bleAdapter.getRemoteDevice(address);
@@ -290,7 +683,13 @@ public class BleConnection extends BasicConnection {
                 throw new Exception(msg);
             }
             Log.d(TAG, "open: Connect new GATT");
-            bleGatt = bleDevice.connectGatt(getContext(), false, gattCallback);
+            if (throughputProfile && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                bleGatt = bleDevice.connectGatt(getContext(), false, gattCallback,
+                        BluetoothDevice.TRANSPORT_LE, BluetoothDevice.PHY_LE_2M_MASK);
+            } else {
+                bleGatt = bleDevice.connectGatt(getContext(), false, gattCallback);
+            }
+            connectPending = true;
         }
     }
 
@@ -303,12 +702,19 @@ public class BleConnection extends BasicConnection {
      */
     @Override
     public void close() {
+        synchronized (openLock) {
+            isClosing = true;
+            cancelReconnect();
+        }
+        connectPending = false;
+        sppReady = false;
+        linkLostAt = 0;
+        releaseSetupGate();
         if (bleAdapter == null || bleGatt == null) {
             Log.w(TAG, "close: BluetoothAdapter not initialized");
             return;
         }
         try {
-            isClosing = true;
             int status = getConnectionState();
             Log.d(TAG, "close: connect status=" + status);
             if (isConnected()) {
@@ -317,8 +723,7 @@ public class BleConnection extends BasicConnection {
             } else {
                 Log.d(TAG, "close: not connected, disconnect and close GATT");
                 bleGatt.disconnect();
-                bleGatt.close();
-                bleGatt = null;
+                closeGatt();
             }
             deInitialize();
         } catch (Exception ex) {
@@ -391,18 +796,140 @@ public class BleConnection extends BasicConnection {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        // less than 20 bytes each time
+        // less than MTU - 3 bytes each time
         characteristic.setValue(bytes);
         bleGatt.writeCharacteristic(characteristic);
+        stats.onChunk();
     }
 
+    /**
+     * Queue data for the write pump. Data larger than the send buffer is queued piece by piece
+     * while the pump drains it, a writer that finds no room waits up to the write timeout
+     * for each piece and then fails, nothing is dropped silently.
+     *
+     * @param buf    byte buffer
+     * @param offset offset
+     * @param count  length
+     * @throws InterruptedIOException no room in the send buffer before the timeout,
+     *                                {@link InterruptedIOException#bytesTransferred} bytes were queued
+     */
     @Override
-    public void writeBuf(byte[] buf, int offset, int count) {
-        bufSend.push(buf, offset, count);
-        if (!bufSend.isWorking()) {
+    public void writeBuf(byte[] buf, int offset, int count) throws InterruptedIOException {
+        final long timeout = writeTimeout;
+        stats.onWrite(count);
+        try {
+            if (!writerLock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
+                throw sendTimeout(0, count);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw sendTimeout(0, count);
+        }
+        try {
+            // pieces of a quarter buffer let the pump run while the rest is queued
+            final int piece = Math.max(1, bufSend.getCapacity() / 4);
+            int written = 0;
+            while (written < count) {
+                final int n = Math.min(piece, count - written);
+                if (!bufSend.push(buf, offset + written, n, timeout)) {
+                    throw sendTimeout(written, count);
+                }
+                written += n;
+                startPump();
+            }
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    private InterruptedIOException sendTimeout(int written, int count) {
+        final InterruptedIOException e = new InterruptedIOException("Send buffer full, queued "
+                + written + " of " + count + " bytes in " + writeTimeout + "ms");
+        e.bytesTransferred = written;
+        return e;
+    }
+
+    private void startPump() {
+        final byte[] bytes;
+        synchronized (pumpLock) {
+            if (bufSend.isWorking() || bufSend.isEmpty()) {
+                return;
+            }
             bufSend.setWorking(true);
-            byte[] bytes = bufSend.pop(15);
-            writeCharacteristic(sppWriteCharacteristic, bytes);
+            bytes = bufSend.pop(chunkSize());
+        }
+        writeCharacteristic(sppWriteCharacteristic, bytes);
+    }
+
+    /**
+     * Write bulk data without response, chunks are still paced by onCharacteristicWrite.
+     * Falls back to acknowledged writes if the characteristic does not support it,
+     * data is still being sent, or a write without response failed before on this connection.
+     *
+     * @param buf    byte buffer
+     * @param offset offset
+     * @param count  length
+     * @return true if written without response
+     */
+    @Override
+    public boolean writeBulk(byte[] buf, int offset, int count) throws InterruptedIOException {
+        final BluetoothGattCharacteristic characteristic = sppWriteCharacteristic;
+        if (bulkDisabled || characteristic == null
+                || (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) == 0
+                || bufSend.isWorking()) {
+            writeBuf(buf, offset, count);
+            return false;
+        }
+        bulkWriting = true;
+        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        writeBuf(buf, offset, count);
+        return true;
+    }
+
+    /**
+     * Request LE 2M PHY and high connection priority for a transfer, if the throughput profile is enabled
+     */
+    @Override
+    public void beginHighThroughput() {
+        final BluetoothGatt gatt = bleGatt;
+        if (!throughputProfile || gatt == null) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            gatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK,
+                    BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        }
+        requestConnectionPriority(gatt, BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+    }
+
+    /**
+     * Return to balanced connection priority after a transfer
+     */
+    @Override
+    public void endHighThroughput() {
+        final BluetoothGatt gatt = bleGatt;
+        if (!throughputProfile || gatt == null) {
+            return;
+        }
+        requestConnectionPriority(gatt, BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+    }
+
+    private void requestConnectionPriority(BluetoothGatt gatt, int priority) {
+        if (connectionPriority == priority) {
+            return;
+        }
+        if (gatt.requestConnectionPriority(priority)) {
+            connectionPriority = priority;
+            doNotification(ACTION_LINK_UPDATED);
+        } else {
+            Log.w(TAG, "requestConnectionPriority: failed, priority=" + priority);
+        }
+    }
+
+    private void endBulk(BluetoothGattCharacteristic characteristic) {
+        if (bulkWriting) {
+            bulkWriting = false;
+            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
         }
     }
 
@@ -443,6 +970,7 @@ public class BleConnection extends BasicConnection {
         intentFilter.addAction(ACTION_DATA_RECEIVED);
         intentFilter.addAction(ACTION_DATA_SENT);
         intentFilter.addAction(ACTION_DATA_SEND_ERROR);
+        intentFilter.addAction(ACTION_LINK_UPDATED);
         return intentFilter;
     }
 
@@ -465,7 +993,8 @@ public class BleConnection extends BasicConnection {
         switch (action) {
             case ACTION_GATT_CONNECTED:
             case ACTION_GATT_DISCONNECTED:
-            case ACTION_SPP_READY: {
+            case ACTION_SPP_READY:
+            case ACTION_LINK_UPDATED: {
                 receiver.onReceiverAsync(action);
                 break;
             }
@@ -3,12 +3,13 @@ package com.berrontech.weight.scale.commons;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.util.Log;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Create by Lastnika 2021/1/27 19:27
@@ -17,11 +18,44 @@ import java.util.concurrent.TimeUnit;
  *
  * @author Lastnika
  */
-public class BleConnectionReceiver extends BroadcastReceiver implements ThreadFactory {
+public class BleConnectionReceiver extends BroadcastReceiver implements EventRing.EventHandler {
+    private static final String TAG = "BleConnectionReceiver";
+    private static final int EVENT_RING_CAPACITY = 64;
+    private static final int EVENT_NONE = 0;
+    private static final int EVENT_CONNECTED = 1;
+    private static final int EVENT_SPP_READY = 2;
+    private static final int EVENT_DATA_SENT = 3;
+    private static final int EVENT_DATA_SEND_ERROR = 4;
+    private static final int EVENT_DATA_RECEIVED = 5;
+    private static final int EVENT_DISCONNECTED = 6;
+    private static final int EVENT_LINK_UPDATED = 7;
+    private static final int DISPATCHER_THREADS = 2;
+    /**
+     * Event dispatcher shared by all connections, so adding devices does not add threads
+     */
+    private static final ThreadPoolExecutor DISPATCHER = new ThreadPoolExecutor(DISPATCHER_THREADS, DISPATCHER_THREADS,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "BLEReceiver-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        DISPATCHER.allowCoreThreadTimeOut(true);
+    }
+
     private BleConnection connection;
     private BleConnectionListener listener;
-    private final ExecutorService threadPool = new ThreadPoolExecutor(1, 1, 0,
-            TimeUnit.MILLISECONDS, new LinkedBlockingDeque<>(), this);
+    private final EventRing events = new EventRing(EVENT_RING_CAPACITY, DISPATCHER, this);
+    /**
+     * Bit per coalesced event kind that is in the ring and not yet handled, see {@link #isCoalesced(int)}
+     */
+    private final AtomicInteger pending = new AtomicInteger();
 
     public BleConnection getConnection() {
         return connection;
@@ -41,40 +75,139 @@ public class BleConnectionReceiver extends BroadcastReceiver implements ThreadFa
         return this;
     }
 
+    /**
+     * 投递到事件环，由事件线程回调监听器。运行在GATT回调线程上，从不等待：
+     * 数据到达、发送完成/失败、链路更新在未处理前合并为一个，只有连接状态变化逐个排队，
+     * 因此事件环不会被填满；万一已满则丢弃并记录
+     *
+     * @param action action
+     */
     public void onReceiverAsync(String action) {
-        if (listener != null) {
-            threadPool.execute(() -> {
-                switch (action) {
-                    case BleConnection.ACTION_GATT_CONNECTED: {
-                        listener.onConnected(connection);
-                        break;
-                    }
-                    case BleConnection.ACTION_SPP_READY: {
-                        listener.onSppReady(connection);
-                        break;
-                    }
-                    case BleConnection.ACTION_DATA_SENT: {
-                        listener.onDataSent(connection);
-                        break;
-                    }
-                    case BleConnection.ACTION_DATA_SEND_ERROR: {
-                        listener.onDataSentError(connection);
-                        break;
-                    }
-                    case BleConnection.ACTION_DATA_RECEIVED: {
-                        listener.onDataReceived(connection);
-                        break;
-                    }
-                    case BleConnection.ACTION_GATT_DISCONNECTED: {
-                        listener.onDisconnected(connection);
-                        break;
-                    }
-                    default:
-                        // Do nothing
-                }
-            });
+        if (listener == null) {
+            return;
+        }
+        final int event = eventOf(action);
+        if (event == EVENT_NONE) {
+            return;
+        }
+        final boolean coalesced = isCoalesced(event);
+        if (coalesced && !markPending(event)) {
+            // the pending event reports the latest state
+            return;
+        }
+        if (!events.publish(event)) {
+            if (coalesced) {
+                clearPending(event);
+            }
+            Log.w(TAG, "onReceiverAsync: event ring full, dropped event=" + event
+                    + ",dropped=" + events.getDroppedCount());
+        }
+    }
+
+    /**
+     * 只反映当前状态的事件：处理时读取连接的最新数据，合并不丢失信息
+     */
+    private static boolean isCoalesced(int event) {
+        return event == EVENT_DATA_RECEIVED
+                || event == EVENT_DATA_SENT
+                || event == EVENT_DATA_SEND_ERROR
+                || event == EVENT_LINK_UPDATED;
+    }
+
+    private boolean markPending(int event) {
+        final int bit = 1 << event;
+        while (true) {
+            final int current = pending.get();
+            if ((current & bit) != 0) {
+                return false;
+            }
+            if (pending.compareAndSet(current, current | bit)) {
+                return true;
+            }
         }
+    }
 
+    private void clearPending(int event) {
+        final int bit = 1 << event;
+        while (true) {
+            final int current = pending.get();
+            if (pending.compareAndSet(current, current & ~bit)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return 事件环已满时丢弃的事件数
+     */
+    public long getDroppedEvents() {
+        return events.getDroppedCount();
+    }
+
+    @Override
+    public void onEvent(int event) {
+        if (isCoalesced(event)) {
+            // clear first: an update arriving from now on needs another event
+            clearPending(event);
+        }
+        switch (event) {
+            case EVENT_CONNECTED: {
+                listener.onConnected(connection);
+                break;
+            }
+            case EVENT_SPP_READY: {
+                listener.onSppReady(connection);
+                break;
+            }
+            case EVENT_DATA_SENT: {
+                listener.onDataSent(connection);
+                break;
+            }
+            case EVENT_DATA_SEND_ERROR: {
+                listener.onDataSentError(connection);
+                break;
+            }
+            case EVENT_DATA_RECEIVED: {
+                listener.onDataReceived(connection);
+                break;
+            }
+            case EVENT_DISCONNECTED: {
+                listener.onDisconnected(connection);
+                break;
+            }
+            case EVENT_LINK_UPDATED: {
+                listener.onLinkUpdated(connection);
+                break;
+            }
+            default:
+                // Do nothing
+        }
+    }
+
+    @Override
+    public void onError(int event, RuntimeException e) {
+        Log.e(TAG, "onEvent: listener error, event=" + event, e);
+    }
+
+    private static int eventOf(String action) {
+        switch (action) {
+            case BleConnection.ACTION_GATT_CONNECTED:
+                return EVENT_CONNECTED;
+            case BleConnection.ACTION_SPP_READY:
+                return EVENT_SPP_READY;
+            case BleConnection.ACTION_DATA_SENT:
+                return EVENT_DATA_SENT;
+            case BleConnection.ACTION_DATA_SEND_ERROR:
+                return EVENT_DATA_SEND_ERROR;
+            case BleConnection.ACTION_DATA_RECEIVED:
+                return EVENT_DATA_RECEIVED;
+            case BleConnection.ACTION_GATT_DISCONNECTED:
+                return EVENT_DISCONNECTED;
+            case BleConnection.ACTION_LINK_UPDATED:
+                return EVENT_LINK_UPDATED;
+            default:
+                return EVENT_NONE;
+        }
     }
 
     @Override
@@ -106,17 +239,16 @@ public class BleConnectionReceiver extends BroadcastReceiver implements ThreadFa
                     listener.onDisconnected(connection);
                     break;
                 }
+                case BleConnection.ACTION_LINK_UPDATED: {
+                    listener.onLinkUpdated(connection);
+                    break;
+                }
                 default:
                     // Do nothing
             }
         }
     }
 
-    @Override
-    public Thread newThread(Runnable r) {
-        return new Thread(r, "BLEReceiver");
-    }
-
     public interface BleConnectionListener {
         /**
          * Call on connected
@@ -159,6 +291,13 @@ public class BleConnectionReceiver extends BroadcastReceiver implements ThreadFa
          * @param connection connection
          */
         void onDisconnected(BleConnection connection);
+
+        /**
+         * Call on PHY or connection priority changed
+         *
+         * @param connection connection
+         */
+        void onLinkUpdated(BleConnection connection);
     }
 }
 
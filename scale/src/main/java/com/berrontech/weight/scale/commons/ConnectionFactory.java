@@ -0,0 +1,25 @@
+package com.berrontech.weight.scale.commons;
+
+import android.content.Context;
+
+import com.berrontech.weight.scale.ScaleApiConfig;
+
+/**
+ * Create by levent8421 2021/2/10 9:40
+ * ConnectionFactory
+ * 创建连接（传输层），使命令、缓冲区和解析逻辑与具体传输方式无关
+ *
+ * @author levent8421
+ */
+public interface ConnectionFactory {
+    /**
+     * 创建连接，连接尚未打开
+     *
+     * @param context  context, may be null for transports that do not need it
+     * @param config   config
+     * @param listener state listener
+     * @return connection
+     * @throws Exception any error
+     */
+    BasicConnection create(Context context, ScaleApiConfig config, BasicConnection.StateListener listener) throws Exception;
+}
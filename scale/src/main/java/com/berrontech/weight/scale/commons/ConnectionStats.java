@@ -0,0 +1,143 @@
+package com.berrontech.weight.scale.commons;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Create by levent8421 2021/2/10 9:50
+ * ConnectionStats
+ * Per-connection write statistics
+ *
+ * @author levent8421
+ */
+public class ConnectionStats {
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong chunks = new AtomicLong();
+    private volatile int mtu;
+    private volatile int txPhy;
+    private volatile int rxPhy;
+    /**
+     * Upper bound of the connection interval in milliseconds
+     */
+    private volatile float connectionInterval;
+    private final AtomicLong reconnects = new AtomicLong();
+    private volatile long lastReconnectMillis;
+    private volatile long maxReconnectMillis;
+
+    /**
+     * Call on every write request
+     *
+     * @param count byte count
+     */
+    public void onWrite(int count) {
+        writes.incrementAndGet();
+        bytes.addAndGet(count);
+    }
+
+    /**
+     * Call on every chunk written to the transport
+     */
+    public void onChunk() {
+        chunks.incrementAndGet();
+    }
+
+    /**
+     * Call when the link is ready again after it was lost
+     *
+     * @param millis time from link loss to ready
+     */
+    public void onReconnect(long millis) {
+        reconnects.incrementAndGet();
+        lastReconnectMillis = millis;
+        if (millis > maxReconnectMillis) {
+            maxReconnectMillis = millis;
+        }
+    }
+
+    public long getReconnects() {
+        return reconnects.get();
+    }
+
+    public long getLastReconnectMillis() {
+        return lastReconnectMillis;
+    }
+
+    public long getMaxReconnectMillis() {
+        return maxReconnectMillis;
+    }
+
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    public void setLink(int txPhy, int rxPhy, float connectionInterval) {
+        this.txPhy = txPhy;
+        this.rxPhy = rxPhy;
+        this.connectionInterval = connectionInterval;
+    }
+
+    public int getTxPhy() {
+        return txPhy;
+    }
+
+    public int getRxPhy() {
+        return rxPhy;
+    }
+
+    public float getConnectionInterval() {
+        return connectionInterval;
+    }
+
+    public long getWrites() {
+        return writes.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getChunks() {
+        return chunks.get();
+    }
+
+    public double getBytesPerWrite() {
+        final long count = writes.get();
+        return count == 0 ? 0 : (double) bytes.get() / count;
+    }
+
+    public double getChunksPerWrite() {
+        final long count = writes.get();
+        return count == 0 ? 0 : (double) chunks.get() / count;
+    }
+
+    public void reset() {
+        writes.set(0);
+        bytes.set(0);
+        chunks.set(0);
+        reconnects.set(0);
+        lastReconnectMillis = 0;
+        maxReconnectMillis = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionStats{" +
+                "mtu=" + mtu +
+                ", txPhy=" + txPhy +
+                ", rxPhy=" + rxPhy +
+                ", connectionInterval=" + connectionInterval +
+                ", writes=" + writes +
+                ", bytes=" + bytes +
+                ", chunks=" + chunks +
+                ", bytesPerWrite=" + getBytesPerWrite() +
+                ", chunksPerWrite=" + getChunksPerWrite() +
+                ", reconnects=" + reconnects +
+                ", lastReconnectMillis=" + lastReconnectMillis +
+                ", maxReconnectMillis=" + maxReconnectMillis +
+                '}';
+    }
+}
@@ -1,6 +1,8 @@
 package com.berrontech.weight.scale.commons;
 
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -16,13 +18,57 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 @SuppressWarnings("unused")
 public class DataBuffer {
-    private static final int READ_INTERVAL = 5;
     private static final int BUFFER_MAX_SIZE = 32 * 1024;
-    private final byte[] buffer = new byte[BUFFER_MAX_SIZE];
+    /**
+     * Circular storage: readable bytes start at {@link #head} and wrap around the array end,
+     * so consuming data only advances the head index and never moves the remaining bytes.
+     */
+    private final byte[] buffer;
 
-    private int bufferOffset = 0;
+    private int head = 0;
+    private volatile int length = 0;
+    /**
+     * Absolute stream position of {@link #head}, i.e. the number of bytes consumed so far
+     */
+    private long consumed = 0;
+    /**
+     * Terminator scan state: the terminator being indexed, the next absolute position to check
+     * and the absolute positions of the terminators found but not yet consumed
+     */
+    private byte[] scanTerminator;
+    private long scanPosition = 0;
+    private long[] lineEnds = new long[16];
+    private int lineEndsHead = 0;
+    private int lineEndsCount = 0;
     private final Lock lock = new ReentrantLock();
+    /**
+     * Signalled on every push, blocking readers wait on it instead of polling
+     */
+    private final Condition dataArrived = lock.newCondition();
+    /**
+     * Signalled when data is consumed, blocking writers wait on it
+     */
+    private final Condition spaceFreed = lock.newCondition();
     private volatile int workingCounter = 0;
+    /**
+     * Queue statistics: max length reached, pushes that had to wait for space,
+     * pushes that failed on their deadline and bytes dropped by the non-blocking push
+     */
+    private int highWater = 0;
+    private long blockedPushes = 0;
+    private long rejectedPushes = 0;
+    private long droppedBytes = 0;
+
+    public DataBuffer() {
+        this(BUFFER_MAX_SIZE);
+    }
+
+    public DataBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid buffer capacity [" + capacity + "]");
+        }
+        this.buffer = new byte[capacity];
+    }
 
     public boolean isWorking() {
         lock.lock();
@@ -64,23 +110,156 @@ public class DataBuffer {
     }
 
     public int getLength() {
-        return bufferOffset;
+        return length;
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Map a position relative to the head onto the backing array
+     *
+     * @param pos position relative to head
+     * @return array index
+     */
+    private int index(int pos) {
+        final int idx = head + pos;
+        return idx >= buffer.length ? idx - buffer.length : idx;
+    }
+
+    private void advance(int count) {
+        head = index(count);
+        length -= count;
+        consumed += count;
+        if (length == 0) {
+            // keep the data contiguous as long as possible
+            head = 0;
+        }
+        spaceFreed.signalAll();
     }
 
     public void push(byte[] newBuf) {
         push(newBuf, 0, newBuf.length);
     }
 
+    /**
+     * Push without waiting, bytes that do not fit are dropped and counted in {@link #getDroppedBytes()}
+     *
+     * @param newBuf buffer
+     * @param offset offset
+     * @param count  byte count
+     */
     public void push(byte[] newBuf, int offset, int count) {
         lock.lock();
         try {
-            if (count + bufferOffset > buffer.length) {
-                count = buffer.length - bufferOffset;
+            if (count + length > buffer.length) {
+                droppedBytes += count - (buffer.length - length);
+                count = buffer.length - length;
             }
-            if (count > 0) {
-                System.arraycopy(newBuf, offset, buffer, bufferOffset, count);
-                bufferOffset += count;
+            append(newBuf, offset, count);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Push all bytes or nothing, waiting until there is room for them
+     *
+     * @param newBuf  buffer
+     * @param offset  offset
+     * @param count   byte count, not more than the capacity
+     * @param timeout max wait in milliseconds, 0 to fail fast
+     * @return false if there was no room before the deadline or the thread was interrupted
+     */
+    public boolean push(byte[] newBuf, int offset, int count, long timeout) {
+        if (count > buffer.length) {
+            throw new IllegalArgumentException("Push " + count + " bytes into a buffer of " + buffer.length);
+        }
+        lock.lock();
+        try {
+            if (count + length > buffer.length) {
+                blockedPushes++;
+                long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+                while (count + length > buffer.length) {
+                    if (nanos <= 0) {
+                        rejectedPushes++;
+                        return false;
+                    }
+                    nanos = spaceFreed.awaitNanos(nanos);
+                }
             }
+            append(newBuf, offset, count);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejectedPushes++;
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void append(byte[] newBuf, int offset, int count) {
+        if (count <= 0) {
+            return;
+        }
+        final int tail = index(length);
+        final int first = Math.min(count, buffer.length - tail);
+        System.arraycopy(newBuf, offset, buffer, tail, first);
+        if (first < count) {
+            System.arraycopy(newBuf, offset + first, buffer, 0, count - first);
+        }
+        length += count;
+        if (length > highWater) {
+            highWater = length;
+        }
+        dataArrived.signalAll();
+    }
+
+    public int getHighWater() {
+        lock.lock();
+        try {
+            return highWater;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBlockedPushes() {
+        lock.lock();
+        try {
+            return blockedPushes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRejectedPushes() {
+        lock.lock();
+        try {
+            return rejectedPushes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedBytes() {
+        lock.lock();
+        try {
+            return droppedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void resetStats() {
+        lock.lock();
+        try {
+            highWater = length;
+            blockedPushes = 0;
+            rejectedPushes = 0;
+            droppedBytes = 0;
         } finally {
             lock.unlock();
         }
@@ -89,7 +268,11 @@ public class DataBuffer {
     public void clear() {
         lock.lock();
         try {
-            bufferOffset = 0;
+            consumed += length;
+            head = 0;
+            length = 0;
+            resetScan(scanTerminator);
+            spaceFreed.signalAll();
         } finally {
             lock.unlock();
         }
@@ -102,106 +285,195 @@ public class DataBuffer {
 
         lock.lock();
         try {
-            if (offset + count > getLength()) {
-                count = getLength() - offset;
+            if (offset + count > length) {
+                count = length - offset;
             }
-            int len = getLength() - offset - count;
-            if (len > 0) {
-                System.arraycopy(buffer, offset + count, buffer, offset, len);
-                bufferOffset -= count;
-            } else {
-                bufferOffset = offset;
+            if (count <= 0) {
+                return;
+            }
+            if (offset == 0) {
+                advance(count);
+                return;
             }
+            // Removing from the middle: shift the bytes behind the gap forward
+            final int len = length - offset - count;
+            for (int i = 0; i < len; i++) {
+                buffer[index(offset + i)] = buffer[index(offset + count + i)];
+            }
+            length -= count;
+            resetScan(scanTerminator);
+            spaceFreed.signalAll();
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Copy bytes out of the buffer without consuming them
+     *
+     * @param pos   position relative to head
+     * @param dst   destination
+     * @param count byte count
+     */
+    private void copyOut(int pos, byte[] dst, int count) {
+        final int start = index(pos);
+        final int first = Math.min(count, buffer.length - start);
+        System.arraycopy(buffer, start, dst, 0, first);
+        if (first < count) {
+            System.arraycopy(buffer, 0, dst, first, count - first);
+        }
+    }
+
     public byte[] pop(int count) {
         if (count <= 0) {
             return null;
         }
 
-        int remain = getLength();
-        count = Math.min(count, remain);
-        byte[] buf;
-
         lock.lock();
         try {
-            buf = new byte[count];
-            System.arraycopy(buffer, 0, buf, 0, count);
-            delete(0, count);
+            count = Math.min(count, length);
+            final byte[] buf = new byte[count];
+            copyOut(0, buf, count);
+            advance(count);
+            return buf;
         } finally {
             lock.unlock();
         }
-
-        return buf;
     }
 
+    /**
+     * Find the first terminator, bytes checked by a previous call with the same terminator
+     * are not scanned again
+     *
+     * @param bts terminator
+     * @return position relative to head, -1 if not found
+     */
     public int lookup(byte[] bts) {
         lock.lock();
         try {
-            int end = getLength() - bts.length;
-            boolean matched = false;
-            for (int pos = 0; pos <= end; pos++) {
-                for (int cmp = 0; cmp < bts.length; cmp++) {
-                    matched = (buffer[pos + cmp] == bts[cmp]);
-                    if (!matched) {
-                        break;
-                    }
-                }
-                if (matched) {
-                    return pos;
+            if (bts.length == 0) {
+                return -1;
+            }
+            if (bts != scanTerminator && !Arrays.equals(bts, scanTerminator)) {
+                resetScan(bts);
+            }
+            dropConsumedLineEnds();
+            if (lineEndsCount > 0) {
+                return (int) (lineEnds[lineEndsHead] - consumed);
+            }
+            final long last = consumed + length - bts.length;
+            long pos = scanPosition;
+            while (pos <= last) {
+                if (matchesAt((int) (pos - consumed), bts)) {
+                    addLineEnd(pos);
+                    // terminators do not overlap, same as consuming them one line at a time
+                    pos += bts.length;
+                } else {
+                    pos++;
                 }
             }
-            return -1;
+            scanPosition = Math.max(pos, scanPosition);
+            return lineEndsCount > 0 ? (int) (lineEnds[lineEndsHead] - consumed) : -1;
         } finally {
             lock.unlock();
         }
     }
 
+    private void resetScan(byte[] terminator) {
+        scanTerminator = terminator;
+        scanPosition = consumed;
+        lineEndsHead = 0;
+        lineEndsCount = 0;
+    }
+
+    private void dropConsumedLineEnds() {
+        while (lineEndsCount > 0 && lineEnds[lineEndsHead] < consumed) {
+            final long lineEnd = lineEnds[lineEndsHead];
+            if (lineEnd + scanTerminator.length > consumed) {
+                // consumed up to the middle of a terminator, the skipped positions need a rescan
+                resetScan(scanTerminator);
+                return;
+            }
+            lineEndsHead = (lineEndsHead + 1) % lineEnds.length;
+            lineEndsCount--;
+        }
+        if (scanPosition < consumed) {
+            scanPosition = consumed;
+        }
+    }
+
+    private void addLineEnd(long pos) {
+        if (lineEndsCount == lineEnds.length) {
+            final long[] grown = new long[lineEnds.length * 2];
+            for (int i = 0; i < lineEndsCount; i++) {
+                grown[i] = lineEnds[(lineEndsHead + i) % lineEnds.length];
+            }
+            lineEnds = grown;
+            lineEndsHead = 0;
+        }
+        lineEnds[(lineEndsHead + lineEndsCount) % lineEnds.length] = pos;
+        lineEndsCount++;
+    }
+
+    private boolean matchesAt(int pos, byte[] bts) {
+        for (int cmp = 0; cmp < bts.length; cmp++) {
+            if (buffer[index(pos + cmp)] != bts[cmp]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public byte[] readLine(byte[] lineEnd) {
         lock.lock();
         try {
-            int len = lookup(lineEnd);
-            if (len > 0) {
-                byte[] buf = pop(len);
-                pop(lineEnd.length);
-                return buf;
-            } else if (len == 0) {
-                pop(lineEnd.length);
-                return new byte[]{};
-            } else {
+            final int len = lookup(lineEnd);
+            if (len < 0) {
                 return null;
             }
+            final byte[] buf = new byte[len];
+            copyOut(0, buf, len);
+            advance(len + lineEnd.length);
+            return buf;
         } finally {
             lock.unlock();
         }
     }
 
-    private void trySleep() {
-        try {
-            TimeUnit.MILLISECONDS.sleep(READ_INTERVAL);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-            // Ignore this Exception
+    /**
+     * Wait until more data is pushed, the caller must hold the lock
+     *
+     * @param nanos remaining nanos
+     * @return remaining nanos, or a value &lt;= 0 on timeout
+     * @throws InterruptedException interrupted
+     */
+    private long awaitData(long nanos) throws InterruptedException {
+        if (nanos <= 0) {
+            return 0;
         }
+        return dataArrived.awaitNanos(nanos);
     }
 
     public byte[] readLine(byte[] lineEnd, long timeout) {
+        lock.lock();
         try {
-            long end = System.currentTimeMillis() + timeout;
-            while (System.currentTimeMillis() <= end) {
-                byte[] line = readLine(lineEnd);
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (true) {
+                final byte[] line = readLine(lineEnd);
                 if (line != null) {
                     return line;
                 }
-                trySleep();
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = awaitData(nanos);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            lock.unlock();
         }
-        return null;
     }
 
     public byte[] readExisting() {
@@ -226,34 +498,49 @@ public class DataBuffer {
     }
 
     public byte[] readBytes(int count, long timeout) {
+        lock.lock();
         try {
-            long end = System.currentTimeMillis() + timeout;
-            while (System.currentTimeMillis() <= end) {
-                byte[] buf = readBytes(count);
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (true) {
+                final byte[] buf = readBytes(count);
                 if (buf != null) {
                     return buf;
                 }
-                trySleep();
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = awaitData(nanos);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            lock.unlock();
         }
-        return null;
     }
 
     public boolean waitByte(byte bt, long timeout) {
+        lock.lock();
         try {
-            long end = System.currentTimeMillis() + timeout;
-            while (System.currentTimeMillis() <= end) {
-                byte[] buf = readBytes(1);
-                if (buf != null && buf[0] == bt) {
-                    return true;
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (true) {
+                while (length > 0) {
+                    final byte value = buffer[head];
+                    advance(1);
+                    if (value == bt) {
+                        return true;
+                    }
+                }
+                if (nanos <= 0) {
+                    return false;
                 }
-                trySleep();
+                nanos = awaitData(nanos);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
         }
-        return false;
     }
 }
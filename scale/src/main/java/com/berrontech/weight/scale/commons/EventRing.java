@@ -0,0 +1,142 @@
+package com.berrontech.weight.scale.commons;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Create by levent8421 2021/2/13 9:40
+ * EventRing
+ * 预分配的事件环：事件只是一个int，发布时不分配内存；
+ * 事件按发布顺序批量交给 {@link EventHandler}。处理任务运行在共享的 {@link Executor} 上，
+ * 多个事件环可以共用少量线程，每批最多处理 {@link #MAX_BATCH} 个事件后让出线程，保证各事件环轮流处理。
+ * 发布方从不等待：环已满时丢弃事件并计数，发布者（GATT回调线程）不能被阻塞，
+ * 需要不丢失的事件由发布方自行合并，使未处理的事件数有上限
+ *
+ * @author levent8421
+ */
+public class EventRing {
+    private static final int MAX_BATCH = 64;
+
+    private final int[] slots;
+    private final int mask;
+    private final Executor executor;
+    private final EventHandler handler;
+    /**
+     * 下一个发布位置 / 下一个消费位置（绝对序号）
+     */
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * 发布方互斥：GATT回调线程是主要的发布者，应用线程偶尔也会发布，因此加锁，无竞争时开销很小
+     */
+    private final Object publishLock = new Object();
+    /**
+     * 处理任务已提交或正在运行
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    /**
+     * 环已满时丢弃的事件数
+     */
+    private final AtomicLong dropped = new AtomicLong();
+    private final Runnable drainTask = this::drain;
+
+    /**
+     * @param capacity 事件槽数量，向上取整为2的幂
+     * @param executor 运行处理任务的线程池，可多个事件环共用
+     * @param handler  事件处理
+     */
+    public EventRing(int capacity, Executor executor, EventHandler handler) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid ring capacity [" + capacity + "]");
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new int[size];
+        this.mask = size - 1;
+        this.executor = executor;
+        this.handler = handler;
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * 发布事件，不等待：环已满时丢弃事件并计入 {@link #getDroppedCount()}
+     *
+     * @param event event
+     * @return 是否已发布
+     */
+    public boolean publish(int event) {
+        synchronized (publishLock) {
+            final long seq = tail.get();
+            if (seq - head.get() >= slots.length) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            slots[(int) seq & mask] = event;
+            tail.set(seq + 1);
+        }
+        schedule();
+        return true;
+    }
+
+    /**
+     * @return 环已满时丢弃的事件数
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return 尚未处理的事件数
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(drainTask);
+        }
+    }
+
+    private void drain() {
+        long seq = head.get();
+        final long end = Math.min(tail.get(), seq + MAX_BATCH);
+        for (; seq < end; seq++) {
+            final int event = slots[(int) seq & mask];
+            head.set(seq + 1);
+            try {
+                handler.onEvent(event);
+            } catch (RuntimeException e) {
+                handler.onError(event, e);
+            }
+        }
+        scheduled.set(false);
+        // events published while draining, or left over by the batch limit
+        if (head.get() != tail.get()) {
+            schedule();
+        }
+    }
+
+    public interface EventHandler {
+        /**
+         * Call in publish order, never concurrently for the same ring
+         *
+         * @param event event
+         */
+        void onEvent(int event);
+
+        /**
+         * Call when {@link #onEvent(int)} throws, later events are still delivered
+         *
+         * @param event event
+         * @param e     error
+         */
+        void onError(int event, RuntimeException e);
+    }
+}
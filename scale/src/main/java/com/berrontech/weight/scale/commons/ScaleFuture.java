@@ -0,0 +1,219 @@
+package com.berrontech.weight.scale.commons;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Create by levent8421 2021/2/5 10:20
+ * ScaleFuture
+ * Result of an asynchronous scale operation, completed by the receive path
+ *
+ * @author levent8421
+ */
+public class ScaleFuture<T> implements Future<T> {
+    private T result;
+    private Throwable error;
+    private boolean done;
+    private boolean cancelled;
+    private List<Listener<? super T>> listeners;
+
+    /**
+     * Complete with a result
+     *
+     * @param result result
+     * @return false if already completed
+     */
+    public boolean complete(T result) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.result = result;
+            this.done = true;
+            notifyAll();
+        }
+        fireListeners();
+        return true;
+    }
+
+    /**
+     * Complete with an error
+     *
+     * @param error error
+     * @return false if already completed
+     */
+    public boolean completeExceptionally(Throwable error) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.error = error;
+            this.done = true;
+            notifyAll();
+        }
+        fireListeners();
+        return true;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.cancelled = true;
+            this.error = new CancellationException();
+            this.done = true;
+            notifyAll();
+        }
+        fireListeners();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return report();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        final long end = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            final long remaining = end - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return report();
+    }
+
+    private T report() throws ExecutionException {
+        if (cancelled) {
+            throw (CancellationException) error;
+        }
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return result;
+    }
+
+    /**
+     * Add a completion listener, called at once if this future is already done
+     *
+     * @param listener listener
+     * @return this future
+     */
+    public ScaleFuture<T> addListener(Listener<? super T> listener) {
+        synchronized (this) {
+            if (!done) {
+                if (listeners == null) {
+                    listeners = new ArrayList<>(2);
+                }
+                listeners.add(listener);
+                return this;
+            }
+        }
+        listener.onComplete(result, error);
+        return this;
+    }
+
+    /**
+     * 结果转换：本Future完成时（成功或失败）用handler得到新的结果，handler抛出的异常使返回的Future失败；
+     * 本Future被取消时返回的Future也被取消，取消返回的Future时同时取消本Future
+     *
+     * @param handler handler
+     * @param <R>     result type
+     * @return handled future
+     */
+    public <R> ScaleFuture<R> handle(Handler<? super T, ? extends R> handler) {
+        final ScaleFuture<T> source = this;
+        final ScaleFuture<R> handled = new ScaleFuture<R>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                final boolean cancelled = super.cancel(mayInterruptIfRunning);
+                if (cancelled) {
+                    source.cancel(mayInterruptIfRunning);
+                }
+                return cancelled;
+            }
+        };
+        addListener((result, error) -> {
+            if (error instanceof CancellationException) {
+                handled.cancel(false);
+                return;
+            }
+            try {
+                handled.complete(handler.handle(result, error));
+            } catch (Exception e) {
+                handled.completeExceptionally(e);
+            }
+        });
+        return handled;
+    }
+
+    /**
+     * @param error error
+     * @param <T>   result type
+     * @return a future already completed with the error
+     */
+    public static <T> ScaleFuture<T> failed(Throwable error) {
+        final ScaleFuture<T> future = new ScaleFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+
+    private void fireListeners() {
+        final List<Listener<? super T>> toFire;
+        synchronized (this) {
+            toFire = listeners;
+            listeners = null;
+        }
+        if (toFire == null) {
+            return;
+        }
+        for (Listener<? super T> listener : toFire) {
+            listener.onComplete(result, error);
+        }
+    }
+
+    public interface Handler<T, R> {
+        /**
+         * Call on completion, except on cancellation
+         *
+         * @param result result, null on error
+         * @param error  error, null on success
+         * @return new result
+         * @throws Exception completes the handled future exceptionally
+         */
+        R handle(T result, Throwable error) throws Exception;
+    }
+
+    public interface Listener<T> {
+        /**
+         * Call on completion
+         *
+         * @param result result, null on error
+         * @param error  error, null on success
+         */
+        void onComplete(T result, Throwable error);
+    }
+}
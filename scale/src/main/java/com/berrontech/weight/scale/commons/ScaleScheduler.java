@@ -0,0 +1,64 @@
+package com.berrontech.weight.scale.commons;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Create by levent8421 2021/2/15 9:20
+ * ScaleScheduler
+ * 所有连接共用的定时器，用于异步命令的超时，一个守护线程；
+ * 以及执行阻塞操作（SEND数据写入、刷盘）的线程池，阻塞操作不能占用定时器或回调线程
+ *
+ * @author levent8421
+ */
+public class ScaleScheduler {
+    private static volatile ScheduledExecutorService shared;
+    private static volatile ExecutorService blocking;
+
+    /**
+     * @return shared scheduler
+     */
+    public static ScheduledExecutorService shared() {
+        ScheduledExecutorService scheduler = shared;
+        if (scheduler != null) {
+            return scheduler;
+        }
+        synchronized (ScaleScheduler.class) {
+            if (shared == null) {
+                final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+                    final Thread thread = new Thread(r, "ScaleScheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                executor.setRemoveOnCancelPolicy(true);
+                shared = executor;
+            }
+            return shared;
+        }
+    }
+
+    /**
+     * @return shared pool for blocking work, threads are created on demand and end after 30s idle
+     */
+    public static ExecutorService blocking() {
+        ExecutorService executor = blocking;
+        if (executor != null) {
+            return executor;
+        }
+        synchronized (ScaleScheduler.class) {
+            if (blocking == null) {
+                blocking = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+                        new SynchronousQueue<>(), r -> {
+                    final Thread thread = new Thread(r, "ScaleBlockingIo");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            return blocking;
+        }
+    }
+}
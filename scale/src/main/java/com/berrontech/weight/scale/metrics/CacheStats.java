@@ -0,0 +1,76 @@
+package com.berrontech.weight.scale.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Create by levent8421 2021/2/17 14:20
+ * CacheStats
+ * 缓存命中统计：命中、未命中（发出请求）、加入进行中的请求、失效次数
+ *
+ * @author levent8421
+ */
+public class CacheStats {
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong joins = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public void onHit() {
+        hits.incrementAndGet();
+    }
+
+    public void onMiss() {
+        misses.incrementAndGet();
+    }
+
+    public void onJoin() {
+        joins.incrementAndGet();
+    }
+
+    public void onInvalidate() {
+        invalidations.incrementAndGet();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getJoins() {
+        return joins.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * @return 未发出请求的调用（命中和加入）所占比例
+     */
+    public double getHitRatio() {
+        final long saved = hits.get() + joins.get();
+        final long total = saved + misses.get();
+        return total == 0 ? 0 : (double) saved / total;
+    }
+
+    public void reset() {
+        hits.set(0);
+        misses.set(0);
+        joins.set(0);
+        invalidations.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{" +
+                "hits=" + hits +
+                ", misses=" + misses +
+                ", joins=" + joins +
+                ", invalidations=" + invalidations +
+                ", hitRatio=" + getHitRatio() +
+                '}';
+    }
+}
@@ -0,0 +1,75 @@
+package com.berrontech.weight.scale.metrics;
+
+import com.berrontech.weight.scale.InvalidateResponseException;
+import com.berrontech.weight.scale.OperationFailedException;
+import com.berrontech.weight.scale.ResponseTimeoutException;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Create by levent8421 2021/2/12 10:05
+ * CommandMetrics
+ * 单个命令的耗时直方图与失败计数。超时不计入耗时，单独计数
+ *
+ * @author levent8421
+ */
+public class CommandMetrics {
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong invalidResponses = new AtomicLong();
+    private final AtomicLong operationFailures = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    public CommandMetrics(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 命令成功
+     *
+     * @param startNanos {@link System#nanoTime()} when the command started
+     */
+    public void onSuccess(long startNanos) {
+        latency.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * 命令失败
+     *
+     * @param startNanos {@link System#nanoTime()} when the command started
+     * @param error      error
+     */
+    public void onError(long startNanos, Throwable error) {
+        if (error instanceof ResponseTimeoutException) {
+            timeouts.incrementAndGet();
+            return;
+        }
+        latency.record(System.nanoTime() - startNanos);
+        if (error instanceof InvalidateResponseException) {
+            invalidResponses.incrementAndGet();
+        } else if (error instanceof OperationFailedException) {
+            operationFailures.incrementAndGet();
+        } else {
+            errors.incrementAndGet();
+        }
+    }
+
+    public void reset() {
+        latency.reset();
+        timeouts.set(0);
+        invalidResponses.set(0);
+        operationFailures.set(0);
+        errors.set(0);
+    }
+
+    public CommandSnapshot snapshot() {
+        final long[] histogram = latency.snapshot();
+        return new CommandSnapshot(name, histogram[0], histogram[1], histogram[2], histogram[3], histogram[4], histogram[5],
+                timeouts.get(), invalidResponses.get(), operationFailures.get(), errors.get());
+    }
+}
@@ -0,0 +1,99 @@
+package com.berrontech.weight.scale.metrics;
+
+/**
+ * Create by levent8421 2021/2/12 10:20
+ * CommandSnapshot
+ * 单个命令的统计快照，耗时单位为微秒
+ *
+ * @author levent8421
+ */
+public class CommandSnapshot {
+    private final String name;
+    private final long count;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long max;
+    private final long mean;
+    private final long timeouts;
+    private final long invalidResponses;
+    private final long operationFailures;
+    private final long errors;
+
+    CommandSnapshot(String name, long count, long p50, long p90, long p99, long max, long mean,
+                    long timeouts, long invalidResponses, long operationFailures, long errors) {
+        this.name = name;
+        this.count = count;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.max = max;
+        this.mean = mean;
+        this.timeouts = timeouts;
+        this.invalidResponses = invalidResponses;
+        this.operationFailures = operationFailures;
+        this.errors = errors;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return 计入耗时的命令数（不含超时）
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP90() {
+        return p90;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getMean() {
+        return mean;
+    }
+
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    public long getInvalidResponses() {
+        return invalidResponses;
+    }
+
+    public long getOperationFailures() {
+        return operationFailures;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    @Override
+    public String toString() {
+        return name + "{" +
+                "count=" + count +
+                ", p50=" + p50 +
+                "us, p90=" + p90 +
+                "us, p99=" + p99 +
+                "us, max=" + max +
+                "us, timeouts=" + timeouts +
+                ", invalidResponses=" + invalidResponses +
+                ", operationFailures=" + operationFailures +
+                ", errors=" + errors +
+                '}';
+    }
+}
@@ -0,0 +1,116 @@
+package com.berrontech.weight.scale.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Create by levent8421 2021/2/12 9:30
+ * LatencyHistogram
+ * 固定内存的延迟直方图（微秒）：每个2的幂区间分为8个桶，相对误差不超过12.5%，
+ * 记录时分别原子更新桶计数、总和与最大值（最大值用CAS循环），无锁、不分配内存；
+ * 三者之间不是一个整体的原子操作，并发记录时快照可能短暂不一致
+ *
+ * @author levent8421
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * 可区分的最大值约 2^40 微秒，更大的值计入最后一个桶
+     */
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 记录一次耗时
+     *
+     * @param nanos 耗时（纳秒）
+     */
+    public void record(long nanos) {
+        final long micros = Math.max(TimeUnit.NANOSECONDS.toMicros(nanos), 0);
+        counts.incrementAndGet(indexOf(micros));
+        sum.addAndGet(micros);
+        long current;
+        while (micros > (current = max.get())) {
+            if (max.compareAndSet(current, micros)) {
+                break;
+            }
+        }
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return 桶内最大值
+     */
+    static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long sub = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * 读取直方图，与记录并发时结果是近似值
+     *
+     * @return [count, p50, p90, p99, max, mean]，单位微秒
+     */
+    long[] snapshot() {
+        final long[] buckets = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = counts.get(i);
+            count += buckets[i];
+        }
+        final long maxValue = max.get();
+        return new long[]{
+                count,
+                percentile(buckets, count, 0.50, maxValue),
+                percentile(buckets, count, 0.90, maxValue),
+                percentile(buckets, count, 0.99, maxValue),
+                maxValue,
+                count == 0 ? 0 : sum.get() / count
+        };
+    }
+
+    private static long percentile(long[] buckets, long count, double p, long maxValue) {
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(p * count);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+}
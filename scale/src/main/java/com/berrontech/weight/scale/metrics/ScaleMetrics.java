@@ -0,0 +1,49 @@
+package com.berrontech.weight.scale.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Create by levent8421 2021/2/12 10:40
+ * ScaleMetrics
+ * 按命令名称保存的统计
+ *
+ * @author levent8421
+ */
+public class ScaleMetrics {
+    private final ConcurrentHashMap<String, CommandMetrics> commands = new ConcurrentHashMap<>(16);
+
+    /**
+     * 获取命令的统计，不存在时创建
+     *
+     * @param name command name
+     * @return metrics
+     */
+    public CommandMetrics command(String name) {
+        final CommandMetrics metrics = commands.get(name);
+        if (metrics != null) {
+            return metrics;
+        }
+        final CommandMetrics created = new CommandMetrics(name);
+        final CommandMetrics existing = commands.putIfAbsent(name, created);
+        return existing == null ? created : existing;
+    }
+
+    public void reset() {
+        for (CommandMetrics metrics : commands.values()) {
+            metrics.reset();
+        }
+    }
+
+    /**
+     * @return 各命令的统计快照，按名称排序
+     */
+    public Map<String, CommandSnapshot> snapshot() {
+        final Map<String, CommandSnapshot> snapshot = new TreeMap<>();
+        for (CommandMetrics metrics : commands.values()) {
+            snapshot.put(metrics.getName(), metrics.snapshot());
+        }
+        return snapshot;
+    }
+}
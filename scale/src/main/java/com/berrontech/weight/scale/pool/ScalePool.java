@@ -0,0 +1,457 @@
+package com.berrontech.weight.scale.pool;
+
+import android.util.Log;
+
+import com.berrontech.weight.scale.AsyncScaleApi;
+import com.berrontech.weight.scale.ScaleApi;
+import com.berrontech.weight.scale.commons.ScaleFuture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Create by levent8421 2021/2/14 9:30
+ * ScalePool
+ * 多台秤共用固定数量的工作线程：每台秤的命令按提交顺序执行，同一时刻最多执行一个；
+ * 有待执行命令的秤按轮询顺序获得工作线程，命令多的秤不会拖慢其他秤。
+ * 线程数与秤的数量无关。
+ * 异步命令（{@link #submitAsync}，秤以{@link AsyncScaleApi}加入）只在发出时占用工作线程，
+ * 等待回应期间不占用，所有秤可以同时有命令在途；阻塞命令（{@link #submit}）在整个往返期间占用一个工作线程，
+ * 同时在途的秤数不超过工作线程数。
+ * 连接池不串行化各设备的GATT操作：只有连接建立阶段由BleConnection在设备间尽量串行（等待超时后不再等待），
+ * 已连接设备的读写各自进行
+ *
+ * @author levent8421
+ */
+public class ScalePool {
+    private static final String TAG = "ScalePool";
+    public static final int DEFAULT_WORKERS = 2;
+    public static final int DEFAULT_MAX_PENDING = 64;
+
+    private final int maxPending;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+    private final Map<String, Slot> slots = new LinkedHashMap<>(16);
+    /**
+     * 有待执行命令且没有命令在执行的秤，按轮询顺序排列
+     */
+    private final ArrayDeque<Slot> ready = new ArrayDeque<>();
+    private final List<Thread> workers;
+    private boolean shutdown = false;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile long statsSince = System.nanoTime();
+
+    public ScalePool() {
+        this(DEFAULT_WORKERS, DEFAULT_MAX_PENDING);
+    }
+
+    /**
+     * @param workers    工作线程数
+     * @param maxPending 每台秤最多等待执行的命令数
+     */
+    public ScalePool(int workers, int maxPending) {
+        if (workers <= 0 || maxPending <= 0) {
+            throw new IllegalArgumentException("Invalid pool size [" + workers + "," + maxPending + "]");
+        }
+        this.maxPending = maxPending;
+        this.workers = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            final Thread worker = new Thread(this::work, "ScalePool-" + (i + 1));
+            worker.setDaemon(true);
+            this.workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * 添加一台秤
+     *
+     * @param id  id
+     * @param api scale api
+     */
+    public void add(String id, ScaleApi api) {
+        add(id, api, null);
+    }
+
+    /**
+     * 添加一台秤，同一台秤的阻塞Api与异步Api，可以同时提交阻塞命令和异步命令
+     *
+     * @param id    id
+     * @param api   scale api, 只提交异步命令时可以为null
+     * @param async async scale api, 只提交阻塞命令时可以为null
+     */
+    public void add(String id, ScaleApi api, AsyncScaleApi async) {
+        lock.lock();
+        try {
+            checkRunning();
+            if (slots.containsKey(id)) {
+                throw new IllegalArgumentException("Duplicate scale id [" + id + "]");
+            }
+            slots.put(id, new Slot(id, api, async));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 移除一台秤，未执行的命令以 {@link CancellationException} 结束，不会关闭连接
+     *
+     * @param id id
+     * @return scale api, null if not found
+     */
+    public ScaleApi remove(String id) {
+        final Slot slot;
+        final List<Job<?>> cancelled;
+        lock.lock();
+        try {
+            slot = slots.remove(id);
+            if (slot == null) {
+                return null;
+            }
+            slot.removed = true;
+            ready.remove(slot);
+            cancelled = new ArrayList<>(slot.jobs);
+            slot.jobs.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (Job<?> job : cancelled) {
+            job.future.cancel(false);
+        }
+        return slot.api;
+    }
+
+    public ScaleApi get(String id) {
+        lock.lock();
+        try {
+            final Slot slot = slots.get(id);
+            return slot == null ? null : slot.api;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public List<String> getIds() {
+        lock.lock();
+        try {
+            return new ArrayList<>(slots.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 提交命令
+     *
+     * @param id   scale id
+     * @param task task
+     * @param <T>  result type
+     * @return 命令结果
+     * @throws RejectedExecutionException 该秤等待执行的命令已满，或连接池已关闭
+     */
+    public <T> ScaleFuture<T> submit(String id, ScaleTask<T> task) {
+        return enqueue(id, new Job<>(task, null));
+    }
+
+    /**
+     * 提交异步命令：工作线程发出命令后立即处理其他秤，命令完成后该秤的下一个命令才开始
+     *
+     * @param id   scale id
+     * @param task task
+     * @param <T>  result type
+     * @return 命令结果，取消时同时取消task返回的Future
+     * @throws RejectedExecutionException 该秤等待执行的命令已满，或连接池已关闭
+     */
+    public <T> ScaleFuture<T> submitAsync(String id, AsyncScaleTask<T> task) {
+        return enqueue(id, new Job<>(null, task));
+    }
+
+    private <T> ScaleFuture<T> enqueue(String id, Job<T> job) {
+        lock.lock();
+        try {
+            checkRunning();
+            final Slot slot = slots.get(id);
+            if (slot == null) {
+                throw new IllegalArgumentException("No scale with id [" + id + "]");
+            }
+            if (slot.jobs.size() >= maxPending) {
+                rejected.incrementAndGet();
+                throw new RejectedExecutionException("Too many pending commands for scale [" + id + "]");
+            }
+            slot.jobs.add(job);
+            if (!slot.running && !slot.queued) {
+                slot.queued = true;
+                ready.add(slot);
+                workAvailable.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return job.future;
+    }
+
+    /**
+     * 连接所有秤，有异步Api的秤异步连接，不占用工作线程；其他秤在工作线程上阻塞连接
+     *
+     * @return id - 连接结果
+     */
+    public Map<String, ScaleFuture<Void>> connectAll() {
+        final List<Slot> targets;
+        lock.lock();
+        try {
+            targets = new ArrayList<>(slots.values());
+        } finally {
+            lock.unlock();
+        }
+        final Map<String, ScaleFuture<Void>> results = new LinkedHashMap<>(16);
+        for (Slot slot : targets) {
+            if (slot.async != null) {
+                results.put(slot.id, submitAsync(slot.id, AsyncScaleApi::connect));
+            } else {
+                results.put(slot.id, submit(slot.id, api -> {
+                    api.connect();
+                    return null;
+                }));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 停止工作线程并关闭所有秤，未执行的命令以 {@link CancellationException} 结束
+     */
+    public void shutdown() {
+        final List<Slot> closing;
+        lock.lock();
+        try {
+            if (shutdown) {
+                return;
+            }
+            shutdown = true;
+            closing = new ArrayList<>(slots.values());
+            workAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Slot slot : closing) {
+            remove(slot.id);
+            try {
+                if (slot.api != null) {
+                    slot.api.close();
+                } else {
+                    slot.async.close();
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "shutdown: close scale [" + slot.id + "] failed", e);
+            }
+        }
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public int getWorkerCount() {
+        return workers.size();
+    }
+
+    /**
+     * 所有秤合计吞吐量
+     *
+     * @return 自创建或上次 {@link #resetStats()} 以来，每秒完成（包括失败）的命令数
+     */
+    public double getThroughput() {
+        final long elapsed = System.nanoTime() - statsSince;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return (completed.get() + failed.get()) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    public void resetStats() {
+        completed.set(0);
+        failed.set(0);
+        rejected.set(0);
+        statsSince = System.nanoTime();
+    }
+
+    private void checkRunning() {
+        if (shutdown) {
+            throw new RejectedExecutionException("Scale pool is shut down");
+        }
+    }
+
+    private void work() {
+        while (true) {
+            final Slot slot;
+            final Job<?> job;
+            lock.lock();
+            try {
+                while (ready.isEmpty() && !shutdown) {
+                    workAvailable.awaitUninterruptibly();
+                }
+                if (shutdown) {
+                    return;
+                }
+                slot = ready.poll();
+                slot.queued = false;
+                slot.running = true;
+                job = slot.jobs.poll();
+            } finally {
+                lock.unlock();
+            }
+            if (run(slot, job)) {
+                finish(slot);
+            }
+        }
+    }
+
+    /**
+     * 一个命令结束，该秤还有命令时重新排队
+     */
+    private void finish(Slot slot) {
+        lock.lock();
+        try {
+            slot.running = false;
+            if (!slot.removed && !slot.jobs.isEmpty()) {
+                // back to the tail, other scales go first
+                slot.queued = true;
+                ready.add(slot);
+                workAvailable.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return false if the job continues asynchronously, the slot is finished when it completes
+     */
+    private <T> boolean run(Slot slot, Job<T> job) {
+        if (job == null || job.future.isDone()) {
+            return true;
+        }
+        if (job.asyncTask != null) {
+            return !start(slot, job);
+        }
+        try {
+            final T result = job.task.run(slot.api);
+            completed.incrementAndGet();
+            job.future.complete(result);
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            job.future.completeExceptionally(e);
+        } catch (Throwable e) {
+            // an Error must not take the worker down with it
+            Log.e(TAG, "run: task on scale [" + slot.id + "] failed", e);
+            failed.incrementAndGet();
+            job.future.completeExceptionally(e);
+        }
+        return true;
+    }
+
+    /**
+     * 发出异步命令
+     *
+     * @return false if the task failed to start
+     */
+    private <T> boolean start(Slot slot, Job<T> job) {
+        final ScaleFuture<T> result;
+        try {
+            result = job.asyncTask.run(slot.async);
+            if (result == null) {
+                throw new IllegalStateException("Async task returned no future");
+            }
+        } catch (Throwable e) {
+            Log.e(TAG, "start: task on scale [" + slot.id + "] failed", e);
+            failed.incrementAndGet();
+            job.future.completeExceptionally(e);
+            return false;
+        }
+        job.future.addListener((value, error) -> {
+            if (error instanceof CancellationException) {
+                result.cancel(false);
+            }
+        });
+        // completed by the receiving thread, or right here if already done
+        result.addListener((value, error) -> {
+            if (error == null) {
+                completed.incrementAndGet();
+                job.future.complete(value);
+            } else {
+                failed.incrementAndGet();
+                job.future.completeExceptionally(error);
+            }
+            finish(slot);
+        });
+        return true;
+    }
+
+    private static class Slot {
+        private final String id;
+        private final ScaleApi api;
+        private final AsyncScaleApi async;
+        private final ArrayDeque<Job<?>> jobs = new ArrayDeque<>();
+        private boolean running;
+        private boolean queued;
+        private boolean removed;
+
+        Slot(String id, ScaleApi api, AsyncScaleApi async) {
+            this.id = id;
+            this.api = api;
+            this.async = async;
+        }
+    }
+
+    private static class Job<T> {
+        private final ScaleTask<T> task;
+        private final AsyncScaleTask<T> asyncTask;
+        private final ScaleFuture<T> future = new ScaleFuture<>();
+
+        Job(ScaleTask<T> task, AsyncScaleTask<T> asyncTask) {
+            this.task = task;
+            this.asyncTask = asyncTask;
+        }
+    }
+
+    public interface ScaleTask<T> {
+        /**
+         * Run on a pool worker
+         *
+         * @param api the scale the task was submitted for
+         * @return result
+         * @throws Exception any error
+         */
+        T run(ScaleApi api) throws Exception;
+    }
+
+    public interface AsyncScaleTask<T> {
+        /**
+         * Run on a pool worker, must not block
+         *
+         * @param api the scale the task was submitted for
+         * @return completes when the command is done
+         */
+        ScaleFuture<T> run(AsyncScaleApi api);
+    }
+}
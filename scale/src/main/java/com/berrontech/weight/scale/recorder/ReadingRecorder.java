@@ -0,0 +1,392 @@
+package com.berrontech.weight.scale.recorder;
+
+import android.util.Log;
+
+import com.berrontech.weight.scale.WeightReading;
+import com.berrontech.weight.scale.WeightStream;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Create by levent8421 2021/2/18 14:00
+ * ReadingRecorder
+ * 只追加的称重记录：读数（时间、毛重、皮重、净重、单位、稳定标志、设备）编码后写入内存映射的分段文件。
+ * <p>
+ * 分段格式：头部 "WREC" + 版本(1) + 基准时间(8字节)，之后是记录，0表示结束：
+ * <ul>
+ * <li>设备：1, varint id, varint 长度, UTF-8 名称。每个分段在设备第一次出现时写入，分段可单独读取</li>
+ * <li>读数：2, zigzag varint 与上一条记录的时间差, varint 设备id, 标志(稳定 | 小数位数 &lt;&lt; 1), 单位,
+ * zigzag varint 毛重、皮重、净重（定点数）</li>
+ * </ul>
+ * 分段写满时滚动到下一个文件，按设置的间隔在记录器自己的线程上将分段刷到磁盘（刷盘可能很慢，不占用共享定时器）。
+ * 分段按最大长度预先分配，写满或关闭时截断到已写入的长度；滚动时旧分段的刷盘、截断和关闭也在记录器线程上进行，记录线程不等待。
+ * 写入直接编码到映射区，不分配内存，多台仪表共用一个记录器
+ *
+ * @author levent8421
+ */
+public class ReadingRecorder implements Closeable {
+    private static final String TAG = "ReadingRecorder";
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    public static final long DEFAULT_SYNC_INTERVAL = 1000;
+    private static final long CLOSE_TIMEOUT = 10 * 1000;
+    static final byte[] MAGIC = {'W', 'R', 'E', 'C'};
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = MAGIC.length + 1 + 8;
+    static final byte TAG_END = 0;
+    static final byte TAG_DEVICE = 1;
+    static final byte TAG_READING = 2;
+    static final String SEGMENT_PREFIX = "readings-";
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    /**
+     * tag, 时间差, 设备id, 标志, 单位, 三个重量
+     */
+    private static final int MAX_READING_SIZE = 1 + 10 + 5 + 1 + 1 + 3 * 10;
+    private static final int MAX_DEVICE_NAME = 255;
+
+    private final File directory;
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+    private long syncInterval = DEFAULT_SYNC_INTERVAL;
+
+    private final Map<String, Integer> deviceIds = new HashMap<>();
+    private final List<byte[]> deviceNames = new ArrayList<>();
+    /**
+     * 设备是否已写入当前分段
+     */
+    private boolean[] devicesInSegment = new boolean[8];
+    private RandomAccessFile file;
+    private MappedByteBuffer segment;
+    private int segmentIndex = -1;
+    private long lastTimestamp;
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    /**
+     * 需要刷盘的分段，分段关闭前在syncLock内置空，之后不再刷盘
+     */
+    private volatile MappedByteBuffer syncTarget;
+    /**
+     * 刷盘与关闭分段互斥，不在this内获取
+     */
+    private final Object syncLock = new Object();
+    private ScheduledExecutorService flusher;
+    private long records;
+    private long segments;
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param directory 分段文件目录，不存在时创建
+     */
+    public ReadingRecorder(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param segmentSize 分段文件大小（字节）
+     * @return this
+     */
+    public synchronized ReadingRecorder setSegmentSize(int segmentSize) {
+        if (segmentSize < HEADER_SIZE + MAX_READING_SIZE + 16 + MAX_DEVICE_NAME) {
+            throw new IllegalArgumentException("Segment size too small [" + segmentSize + "]");
+        }
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    /**
+     * @param syncInterval 刷盘间隔（毫秒），0表示只在滚动和关闭时刷盘
+     * @return this
+     */
+    public synchronized ReadingRecorder setSyncInterval(long syncInterval) {
+        this.syncInterval = syncInterval;
+        return this;
+    }
+
+    /**
+     * 在已有分段之后创建新分段，已有分段不会被改写
+     *
+     * @return this
+     * @throws IOException 创建分段失败
+     */
+    public synchronized ReadingRecorder open() throws IOException {
+        if (segment != null) {
+            return this;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can not create directory " + directory);
+        }
+        final File[] existing = listSegments(directory);
+        segmentIndex = existing.length == 0 ? -1 : segmentIndexOf(existing[existing.length - 1]);
+        roll();
+        // also closes the rolled segments, so it runs even without periodic sync
+        flusher = new ScheduledThreadPoolExecutor(1, r -> {
+            final Thread thread = new Thread(r, "ReadingRecorderSync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (syncInterval > 0) {
+            flusher.scheduleWithFixedDelay(this::sync, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * 设备在记录中的编号，同一名称总是相同的编号
+     *
+     * @param device 设备名称或地址
+     * @return id
+     */
+    public synchronized int deviceId(String device) {
+        final Integer id = deviceIds.get(device);
+        if (id != null) {
+            return id;
+        }
+        byte[] name = device.getBytes(UTF8);
+        if (name.length > MAX_DEVICE_NAME) {
+            name = Arrays.copyOf(name, MAX_DEVICE_NAME);
+        }
+        final int newId = deviceNames.size();
+        deviceNames.add(name);
+        deviceIds.put(device, newId);
+        if (newId >= devicesInSegment.length) {
+            devicesInSegment = Arrays.copyOf(devicesInSegment, devicesInSegment.length * 2);
+        }
+        return newId;
+    }
+
+    /**
+     * 订阅{@link WeightStream}，记录设备的每个读数。写入失败时计数并记录日志，不抛出异常
+     *
+     * @param device 设备名称或地址
+     * @return listener
+     */
+    public WeightStream.WeightListener listener(String device) {
+        final int id = deviceId(device);
+        return reading -> {
+            try {
+                record(id, reading);
+            } catch (IOException e) {
+                failures.incrementAndGet();
+                Log.w(TAG, "record: " + e.getMessage());
+            }
+        };
+    }
+
+    /**
+     * 追加一条读数
+     *
+     * @param deviceId {@link #deviceId(String)}
+     * @param reading  reading
+     * @throws IOException 滚动分段失败或记录器已关闭
+     */
+    public synchronized void record(int deviceId, WeightReading reading) throws IOException {
+        if (segment == null) {
+            throw new IOException("Recorder is not open");
+        }
+        if (deviceId < 0 || deviceId >= deviceNames.size()) {
+            throw new IllegalArgumentException("Unknown device id [" + deviceId + "]");
+        }
+        final boolean newDevice = !devicesInSegment[deviceId];
+        final int need = MAX_READING_SIZE + (newDevice ? 1 + 5 + 5 + deviceNames.get(deviceId).length : 0) + 1;
+        if (segment.remaining() < need) {
+            roll();
+        }
+        if (!devicesInSegment[deviceId]) {
+            final byte[] name = deviceNames.get(deviceId);
+            segment.put(TAG_DEVICE);
+            putVarint(deviceId);
+            putVarint(name.length);
+            segment.put(name);
+            devicesInSegment[deviceId] = true;
+        }
+        final long timestamp = reading.getTimestamp();
+        segment.put(TAG_READING);
+        putVarint(zigzag(timestamp - lastTimestamp));
+        lastTimestamp = timestamp;
+        putVarint(deviceId);
+        segment.put((byte) ((reading.isStable() ? 1 : 0) | (reading.getDecimals() << 1)));
+        segment.put((byte) reading.getUnit().ordinal());
+        putVarint(zigzag(reading.getGross()));
+        putVarint(zigzag(reading.getTare()));
+        putVarint(zigzag(reading.getNet()));
+        records++;
+        dirty.lazySet(true);
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            segment.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        segment.put((byte) value);
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * 结束当前分段并创建下一个
+     */
+    private void roll() throws IOException {
+        retireSegment();
+        segmentIndex++;
+        final File next = new File(directory, segmentName(segmentIndex));
+        final RandomAccessFile raf = new RandomAccessFile(next, "rw");
+        try {
+            raf.setLength(segmentSize);
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        file = raf;
+        lastTimestamp = System.currentTimeMillis();
+        segment.put(MAGIC);
+        segment.put(VERSION);
+        segment.putLong(lastTimestamp);
+        Arrays.fill(devicesInSegment, false);
+        segments++;
+        dirty.set(true);
+        syncTarget = segment;
+    }
+
+    /**
+     * 交出写满的分段，在记录器线程上刷盘、截断并关闭
+     */
+    private void retireSegment() {
+        if (segment == null) {
+            return;
+        }
+        final RandomAccessFile retiring = file;
+        final MappedByteBuffer buffer = segment;
+        final int length = buffer.position();
+        syncTarget = null;
+        segment = null;
+        file = null;
+        flusher.execute(() -> {
+            try {
+                finishSegment(retiring, buffer, length);
+            } catch (IOException e) {
+                failures.incrementAndGet();
+                Log.w(TAG, "retireSegment: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * 刷盘，截断到已写入的长度并关闭
+     */
+    private void finishSegment(RandomAccessFile segmentFile, MappedByteBuffer buffer, int length) throws IOException {
+        synchronized (syncLock) {
+            try {
+                buffer.force();
+                segmentFile.setLength(length);
+            } finally {
+                segmentFile.close();
+            }
+        }
+    }
+
+    /**
+     * 将已写入的记录刷到磁盘
+     */
+    public void sync() {
+        // not under the recorder lock, writers go on while the segment is forced
+        synchronized (syncLock) {
+            final MappedByteBuffer toSync = syncTarget;
+            if (toSync == null || !dirty.getAndSet(false)) {
+                return;
+            }
+            // records appended meanwhile are synced next time
+            toSync.force();
+        }
+    }
+
+    /**
+     * 等待滚动出的分段关闭，再刷盘、截断并关闭当前分段
+     *
+     * @throws IOException 关闭分段失败
+     */
+    @Override
+    public void close() throws IOException {
+        final ScheduledExecutorService stopping;
+        final RandomAccessFile lastFile;
+        final MappedByteBuffer last;
+        synchronized (this) {
+            stopping = flusher;
+            flusher = null;
+            lastFile = file;
+            last = segment;
+            syncTarget = null;
+            segment = null;
+            file = null;
+        }
+        if (stopping != null) {
+            stopping.shutdown();
+            try {
+                if (!stopping.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    Log.w(TAG, "close: rolled segments still closing");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while closing segments");
+            }
+        }
+        if (last != null) {
+            finishSegment(lastFile, last, last.position());
+        }
+    }
+
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    public synchronized long getSegments() {
+        return segments;
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    static String segmentName(int index) {
+        return String.format(Locale.US, "%s%08d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX);
+    }
+
+    static int segmentIndexOf(File segment) {
+        final String name = segment.getName();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * @param directory 分段目录
+     * @return 分段文件，按写入顺序排列
+     */
+    public static File[] listSegments(File directory) {
+        final File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX)
+                && name.endsWith(SEGMENT_SUFFIX)
+                && name.length() == segmentName(0).length());
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+}
@@ -0,0 +1,147 @@
+package com.berrontech.weight.scale.recorder;
+
+import com.berrontech.weight.scale.WeightReading;
+import com.berrontech.weight.scale.WeightUnit;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Create by levent8421 2021/2/18 16:10
+ * SegmentReader
+ * 按写入顺序读取{@link ReadingRecorder}的一个分段，格式见{@link ReadingRecorder}
+ *
+ * @author levent8421
+ */
+public class SegmentReader implements Closeable {
+    private static final WeightUnit[] UNITS = WeightUnit.values();
+
+    private final RandomAccessFile file;
+    private final ByteBuffer buffer;
+    private final long baseTimestamp;
+    private final List<String> devices = new ArrayList<>();
+    private long lastTimestamp;
+    private String device;
+
+    /**
+     * @param segment 分段文件，可以是正在写入的分段
+     * @throws IOException 不是分段文件
+     */
+    public SegmentReader(File segment) throws IOException {
+        file = new RandomAccessFile(segment, "r");
+        try {
+            final FileChannel channel = file.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < ReadingRecorder.HEADER_SIZE) {
+                throw new IOException("Not a segment: " + segment);
+            }
+            for (byte b : ReadingRecorder.MAGIC) {
+                if (buffer.get() != b) {
+                    throw new IOException("Not a segment: " + segment);
+                }
+            }
+            final byte version = buffer.get();
+            if (version != ReadingRecorder.VERSION) {
+                throw new IOException("Unsupported segment version [" + version + "]: " + segment);
+            }
+            baseTimestamp = buffer.getLong();
+            lastTimestamp = baseTimestamp;
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public long getBaseTimestamp() {
+        return baseTimestamp;
+    }
+
+    /**
+     * @return 最近一次{@link #next(WeightReading)}读取的读数所属设备
+     */
+    public String getDevice() {
+        return device;
+    }
+
+    /**
+     * 读取下一条读数
+     *
+     * @param reading 输出
+     * @return false: 分段已结束
+     * @throws IOException 记录损坏
+     */
+    public boolean next(WeightReading reading) throws IOException {
+        while (buffer.hasRemaining()) {
+            final byte tag = buffer.get();
+            switch (tag) {
+                case ReadingRecorder.TAG_END:
+                    buffer.position(buffer.position() - 1);
+                    return false;
+                case ReadingRecorder.TAG_DEVICE:
+                    readDevice();
+                    break;
+                case ReadingRecorder.TAG_READING:
+                    readReading(reading);
+                    return true;
+                default:
+                    throw new IOException("Corrupted record at " + (buffer.position() - 1) + ", tag=" + tag);
+            }
+        }
+        return false;
+    }
+
+    private void readDevice() throws IOException {
+        final int id = (int) getVarint();
+        final byte[] name = new byte[(int) getVarint()];
+        buffer.get(name);
+        while (devices.size() <= id) {
+            devices.add(null);
+        }
+        devices.set(id, new String(name, ReadingRecorder.UTF8));
+    }
+
+    private void readReading(WeightReading reading) throws IOException {
+        lastTimestamp += unzigzag(getVarint());
+        final int id = (int) getVarint();
+        if (id >= devices.size() || devices.get(id) == null) {
+            throw new IOException("Unknown device id [" + id + "] at " + buffer.position());
+        }
+        device = devices.get(id);
+        final int flags = buffer.get();
+        final int unit = buffer.get();
+        reading.setTimestamp(lastTimestamp);
+        reading.setStable((flags & 1) != 0);
+        reading.setDecimals((flags >> 1) & 0x7F);
+        reading.setUnit(unit >= 0 && unit < UNITS.length ? UNITS[unit] : WeightUnit.UNKNOWN);
+        reading.setGross(unzigzag(getVarint()));
+        reading.setTare(unzigzag(getVarint()));
+        reading.setNet(unzigzag(getVarint()));
+    }
+
+    private long getVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint at " + buffer.position());
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
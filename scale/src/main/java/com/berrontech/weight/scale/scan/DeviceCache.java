@@ -0,0 +1,95 @@
+package com.berrontech.weight.scale.scan;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Create by levent8421 2021/2/17 10:10
+ * DeviceCache
+ * 最近见过的秤，保存在SharedPreferences中，启动时不等扫描即可显示
+ * <p>
+ * Format: one device per line, address TAB last seen TAB name
+ *
+ * @author levent8421
+ */
+public class DeviceCache {
+    private static final String PREFERENCES_NAME = "scale_device_cache";
+    private static final String KEY_DEVICES = "devices";
+    public static final int MAX_DEVICES = 16;
+    private static final char FIELD_SEPARATOR = '\t';
+    private static final char LINE_SEPARATOR = '\n';
+
+    private final SharedPreferences preferences;
+
+    public DeviceCache(Context context) {
+        this.preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return cached devices, latest first
+     */
+    public List<ScannedDevice> load() {
+        return decode(preferences.getString(KEY_DEVICES, ""));
+    }
+
+    /**
+     * 保存设备，只保留最近见过的{@link #MAX_DEVICES}个
+     *
+     * @param devices devices
+     */
+    public void save(Collection<ScannedDevice> devices) {
+        preferences.edit().putString(KEY_DEVICES, encode(devices)).apply();
+    }
+
+    public void clear() {
+        preferences.edit().remove(KEY_DEVICES).apply();
+    }
+
+    static String encode(Collection<ScannedDevice> devices) {
+        final List<ScannedDevice> list = new ArrayList<>(devices);
+        Collections.sort(list, (a, b) -> Long.compare(b.getLastSeen(), a.getLastSeen()));
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < list.size() && i < MAX_DEVICES; i++) {
+            final ScannedDevice device = list.get(i);
+            final String name = device.getName() == null ? "" : device.getName();
+            builder.append(device.getAddress()).append(FIELD_SEPARATOR)
+                    .append(device.getLastSeen()).append(FIELD_SEPARATOR)
+                    .append(name.replace(FIELD_SEPARATOR, ' ').replace(LINE_SEPARATOR, ' '))
+                    .append(LINE_SEPARATOR);
+        }
+        return builder.toString();
+    }
+
+    static List<ScannedDevice> decode(String text) {
+        final List<ScannedDevice> devices = new ArrayList<>();
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf(LINE_SEPARATOR, start);
+            if (end < 0) {
+                end = text.length();
+            }
+            final String line = text.substring(start, end);
+            start = end + 1;
+            final int first = line.indexOf(FIELD_SEPARATOR);
+            final int second = first < 0 ? -1 : line.indexOf(FIELD_SEPARATOR, first + 1);
+            if (second < 0) {
+                continue;
+            }
+            final long lastSeen;
+            try {
+                lastSeen = Long.parseLong(line.substring(first + 1, second));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            final String name = line.substring(second + 1);
+            devices.add(new ScannedDevice(line.substring(0, first), name.isEmpty() ? null : name,
+                    ScannedDevice.RSSI_UNKNOWN, lastSeen));
+        }
+        return devices;
+    }
+}
@@ -0,0 +1,124 @@
+package com.berrontech.weight.scale.scan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Create by levent8421 2021/2/17 9:45
+ * DeviceTable
+ * 按地址去重的设备表：扫描结果只更新已有条目，信号强度变化不超过阈值时不触发刷新
+ *
+ * @author levent8421
+ */
+class DeviceTable {
+    /**
+     * RSSI changes smaller than this do not reorder the list
+     */
+    static final int RSSI_DELTA = 6;
+    /**
+     * In range devices by RSSI (strongest first), then cached devices by last seen (latest first)
+     */
+    static final Comparator<ScannedDevice> ORDER = (a, b) -> {
+        if (a.isInRange() != b.isInRange()) {
+            return a.isInRange() ? -1 : 1;
+        }
+        if (a.isInRange() && a.getRssi() != b.getRssi()) {
+            return Integer.compare(b.getRssi(), a.getRssi());
+        }
+        return Long.compare(b.getLastSeen(), a.getLastSeen());
+    };
+
+    private final Map<String, ScannedDevice> devices = new HashMap<>(16);
+    private boolean changed;
+
+    /**
+     * 加入缓存中的设备，已存在的不覆盖
+     *
+     * @param device device
+     */
+    void putCached(ScannedDevice device) {
+        if (devices.containsKey(device.getAddress())) {
+            return;
+        }
+        devices.put(device.getAddress(), new ScannedDevice(device.getAddress(), device.getName(),
+                ScannedDevice.RSSI_UNKNOWN, device.getLastSeen()));
+        changed = true;
+    }
+
+    /**
+     * 更新扫描结果
+     *
+     * @param address address
+     * @param name    advertised name, may be null
+     * @param rssi    rssi
+     * @param time    time in milliseconds
+     */
+    void update(String address, String name, int rssi, long time) {
+        ScannedDevice device = devices.get(address);
+        if (device == null) {
+            device = new ScannedDevice(address, name, rssi, time);
+            devices.put(address, device);
+            changed = true;
+            return;
+        }
+        if (name != null && !name.equals(device.getName())) {
+            device.setName(name);
+            changed = true;
+        }
+        if (!device.isInRange() || Math.abs(device.getRssi() - rssi) >= RSSI_DELTA) {
+            device.setRssi(rssi);
+            changed = true;
+        }
+        device.setLastSeen(time);
+    }
+
+    /**
+     * 超过maxAge未收到广播的设备标记为不在范围内，仍保留在列表中
+     *
+     * @param now    time in milliseconds
+     * @param maxAge milliseconds without an advertisement
+     * @return true if any device went out of range
+     */
+    boolean expire(long now, long maxAge) {
+        boolean expired = false;
+        for (ScannedDevice device : devices.values()) {
+            if (device.isInRange() && now - device.getLastSeen() > maxAge) {
+                device.setRssi(ScannedDevice.RSSI_UNKNOWN);
+                expired = true;
+            }
+        }
+        if (expired) {
+            changed = true;
+        }
+        return expired;
+    }
+
+    /**
+     * @return true if the list changed since the last call
+     */
+    boolean takeChanged() {
+        final boolean result = changed;
+        changed = false;
+        return result;
+    }
+
+    /**
+     * @return copy of all devices, sorted
+     */
+    List<ScannedDevice> snapshot() {
+        final List<ScannedDevice> list = new ArrayList<>(devices.size());
+        for (ScannedDevice device : devices.values()) {
+            list.add(new ScannedDevice(device.getAddress(), device.getName(), device.getRssi(), device.getLastSeen()));
+        }
+        Collections.sort(list, ORDER);
+        return list;
+    }
+
+    int size() {
+        return devices.size();
+    }
+}
@@ -0,0 +1,261 @@
+package com.berrontech.weight.scale.scan;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.berrontech.weight.scale.commons.BleConnection;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Create by levent8421 2021/2/17 10:40
+ * ScaleScanner
+ * 低功耗蓝牙扫描，只扫描带有秤服务（0000fff0）的设备。
+ * 扫描结果按地址去重，按信号强度排序，每个批次间隔最多通知一次；
+ * 超过{@link #setOutOfRangeTimeout(long)}未收到广播的设备标记为不在范围内。
+ * 启动时先通知缓存中的设备，列表变化后延迟{@link #SAVE_DELAY}保存到缓存（合并多次变化），停止时立即保存。
+ * 所有回调在主线程
+ *
+ * @author levent8421
+ */
+public class ScaleScanner {
+    private static final String TAG = "ScaleScanner";
+    public static final long DEFAULT_BATCH_INTERVAL = 500;
+    public static final long DEFAULT_OUT_OF_RANGE_TIMEOUT = 10_000;
+    /**
+     * Interval of the out of range check while scanning
+     */
+    private static final long EXPIRE_INTERVAL = 1000;
+    /**
+     * Changes within this delay are written to the cache together
+     */
+    public static final long SAVE_DELAY = 2000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Context context;
+    private final DeviceCache cache;
+    private final DeviceTable table = new DeviceTable();
+    private final Runnable flushTask = this::flush;
+    private final Runnable expireTask = this::expire;
+    private final Runnable saveTask = this::save;
+    private long batchInterval = DEFAULT_BATCH_INTERVAL;
+    private long outOfRangeTimeout = DEFAULT_OUT_OF_RANGE_TIMEOUT;
+    private ScanListener listener;
+    private BluetoothLeScanner scanner;
+    private boolean scanning;
+    private boolean flushPending;
+    private boolean savePending;
+
+    public ScaleScanner(Context context) {
+        this.context = context;
+        this.cache = new DeviceCache(context);
+        for (ScannedDevice device : cache.load()) {
+            table.putCached(device);
+        }
+        table.takeChanged();
+    }
+
+    /**
+     * 通知间隔，支持硬件批量扫描时扫描结果也按此间隔上报
+     *
+     * @param batchInterval 毫秒
+     * @return this
+     */
+    public ScaleScanner setBatchInterval(long batchInterval) {
+        this.batchInterval = batchInterval;
+        return this;
+    }
+
+    /**
+     * 超过此时间未收到广播的设备标记为不在范围内，应大于批次间隔
+     *
+     * @param outOfRangeTimeout 毫秒
+     * @return this
+     */
+    public ScaleScanner setOutOfRangeTimeout(long outOfRangeTimeout) {
+        this.outOfRangeTimeout = outOfRangeTimeout;
+        return this;
+    }
+
+    public ScaleScanner setListener(ScanListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * 在主线程调用
+     *
+     * @return 缓存的和本次扫描到的设备，信号最强的在前
+     */
+    public List<ScannedDevice> getDevices() {
+        return table.snapshot();
+    }
+
+    /**
+     * 开始扫描，立即通知缓存中的设备
+     *
+     * @throws Exception 蓝牙不可用
+     */
+    @SuppressLint("MissingPermission")
+    public void start() throws Exception {
+        if (scanning) {
+            return;
+        }
+        final BluetoothManager manager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+        final BluetoothAdapter adapter = manager == null ? null : manager.getAdapter();
+        if (adapter == null || !adapter.isEnabled()) {
+            throw new Exception("Bluetooth not enabled");
+        }
+        scanner = adapter.getBluetoothLeScanner();
+        if (scanner == null) {
+            throw new Exception("Bluetooth LE scanner not available");
+        }
+        final ScanFilter filter = new ScanFilter.Builder()
+                .setServiceUuid(new ParcelUuid(BleConnection.SERVICE_GUID))
+                .build();
+        final ScanSettings.Builder settings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+        if (adapter.isOffloadedScanBatchingSupported()) {
+            settings.setReportDelay(batchInterval);
+        }
+        scanner.startScan(Collections.singletonList(filter), settings.build(), scanCallback);
+        scanning = true;
+        // devices still marked in range from the last scan
+        table.expire(System.currentTimeMillis(), outOfRangeTimeout);
+        table.takeChanged();
+        handler.postAtTime(expireTask, SystemClock.uptimeMillis() + EXPIRE_INTERVAL);
+        notifyDevices();
+    }
+
+    /**
+     * 停止扫描，保存设备到缓存
+     */
+    @SuppressLint("MissingPermission")
+    public void stop() {
+        if (!scanning) {
+            return;
+        }
+        scanning = false;
+        handler.removeCallbacks(flushTask);
+        handler.removeCallbacks(expireTask);
+        flushPending = false;
+        try {
+            scanner.stopScan(scanCallback);
+        } catch (Exception e) {
+            // adapter turned off
+            Log.w(TAG, "stop: stopScan failed", e);
+        }
+        save();
+    }
+
+    public boolean isScanning() {
+        return scanning;
+    }
+
+    private final ScanCallback scanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            onResult(result);
+            scheduleFlush();
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                onResult(result);
+            }
+            scheduleFlush();
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.w(TAG, "onScanFailed: errorCode=" + errorCode);
+            scanning = false;
+            final ScanListener listener = ScaleScanner.this.listener;
+            if (listener != null) {
+                listener.onScanFailed(errorCode);
+            }
+        }
+    };
+
+    @SuppressLint("MissingPermission")
+    private void onResult(ScanResult result) {
+        final String name = result.getScanRecord() == null ? null : result.getScanRecord().getDeviceName();
+        table.update(result.getDevice().getAddress(), name != null ? name : result.getDevice().getName(),
+                result.getRssi(), System.currentTimeMillis());
+    }
+
+    private void scheduleFlush() {
+        if (!flushPending) {
+            flushPending = true;
+            handler.postAtTime(flushTask, SystemClock.uptimeMillis() + batchInterval);
+        }
+    }
+
+    private void flush() {
+        flushPending = false;
+        if (scanning && table.takeChanged()) {
+            notifyDevices();
+            scheduleSave();
+        }
+    }
+
+    private void expire() {
+        if (!scanning) {
+            return;
+        }
+        if (table.expire(System.currentTimeMillis(), outOfRangeTimeout)) {
+            scheduleFlush();
+        }
+        handler.postAtTime(expireTask, SystemClock.uptimeMillis() + EXPIRE_INTERVAL);
+    }
+
+    private void scheduleSave() {
+        if (!savePending) {
+            savePending = true;
+            handler.postAtTime(saveTask, SystemClock.uptimeMillis() + SAVE_DELAY);
+        }
+    }
+
+    private void save() {
+        handler.removeCallbacks(saveTask);
+        savePending = false;
+        cache.save(table.snapshot());
+    }
+
+    private void notifyDevices() {
+        final ScanListener listener = this.listener;
+        if (listener != null) {
+            listener.onDevicesChanged(table.snapshot());
+        }
+    }
+
+    public interface ScanListener {
+        /**
+         * Call at most once per batch interval when the device list changed, in the main thread
+         *
+         * @param devices in range devices by RSSI, then cached devices by last seen
+         */
+        void onDevicesChanged(List<ScannedDevice> devices);
+
+        /**
+         * Call when the scan could not be started
+         *
+         * @param errorCode {@link ScanCallback} SCAN_FAILED_*
+         */
+        void onScanFailed(int errorCode);
+    }
+}
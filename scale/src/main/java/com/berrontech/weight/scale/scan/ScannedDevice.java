@@ -0,0 +1,81 @@
+package com.berrontech.weight.scale.scan;
+
+/**
+ * Create by levent8421 2021/2/17 9:30
+ * ScannedDevice
+ * 扫描到的（或缓存中的）秤
+ *
+ * @author levent8421
+ */
+public class ScannedDevice {
+    /**
+     * 本次扫描未收到广播，信号强度未知
+     */
+    public static final int RSSI_UNKNOWN = 127;
+    private String address;
+    private String name;
+    private int rssi = RSSI_UNKNOWN;
+    /**
+     * 最后一次收到广播的时间（毫秒）
+     */
+    private long lastSeen;
+
+    public ScannedDevice() {
+    }
+
+    public ScannedDevice(String address, String name, int rssi, long lastSeen) {
+        this.address = address;
+        this.name = name;
+        this.rssi = rssi;
+        this.lastSeen = lastSeen;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public void setAddress(String address) {
+        this.address = address;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+
+    public void setRssi(int rssi) {
+        this.rssi = rssi;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public void setLastSeen(long lastSeen) {
+        this.lastSeen = lastSeen;
+    }
+
+    /**
+     * @return true if advertising in the current scan, false if only known from the cache
+     */
+    public boolean isInRange() {
+        return rssi != RSSI_UNKNOWN;
+    }
+
+    @Override
+    public String toString() {
+        return "ScannedDevice{" +
+                "address='" + address + '\'' +
+                ", name='" + name + '\'' +
+                ", rssi=" + rssi +
+                ", lastSeen=" + lastSeen +
+                '}';
+    }
+}
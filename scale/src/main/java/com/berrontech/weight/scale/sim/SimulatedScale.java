@@ -0,0 +1,207 @@
+package com.berrontech.weight.scale.sim;
+
+import com.berrontech.weight.scale.WeightReading;
+import com.berrontech.weight.scale.ble.BleCommandMetadata;
+import com.berrontech.weight.scale.commons.DataBuffer;
+
+/**
+ * Create by levent8421 2021/2/10 10:05
+ * SimulatedScale
+ * 模拟称重仪表，实现 W/T/Z/CAPACITY/DECIMAL/SEND 协议，用于无硬件的测试和性能测量
+ *
+ * @author levent8421
+ */
+public class SimulatedScale {
+    private static final String STATUS_SUCCESS = "A";
+    private static final String STATUS_ERROR = "E";
+    private static final String STATUS_READY = "B";
+    private static final String UNIT = "kg";
+    private static final int DEFAULT_DECIMALS = 3;
+
+    private final DataBuffer input = new DataBuffer();
+    private double gross;
+    private double tare;
+    private double capacity = 30;
+    private int decimals = DEFAULT_DECIMALS;
+    private boolean stable = true;
+    /**
+     * SEND 数据剩余字节数
+     */
+    private int sendRemaining;
+    private long receivedPayloadBytes;
+
+    public synchronized SimulatedScale setGross(double gross) {
+        this.gross = gross;
+        return this;
+    }
+
+    public synchronized double getGross() {
+        return gross;
+    }
+
+    public synchronized double getTare() {
+        return tare;
+    }
+
+    public synchronized SimulatedScale setCapacity(double capacity) {
+        this.capacity = capacity;
+        return this;
+    }
+
+    public synchronized SimulatedScale setStable(boolean stable) {
+        this.stable = stable;
+        return this;
+    }
+
+    public synchronized int getDecimals() {
+        return decimals;
+    }
+
+    /**
+     * SEND 命令收到的数据总字节数
+     *
+     * @return bytes
+     */
+    public synchronized long getReceivedPayloadBytes() {
+        return receivedPayloadBytes;
+    }
+
+    /**
+     * 当前重量回应，可用于模拟主动上报
+     *
+     * @return W response line without line end
+     */
+    public synchronized String weightLine() {
+        return "W A = " + (stable ? "S" : "D")
+                + BleCommandMetadata.SP + format(gross)
+                + BleCommandMetadata.SP + format(tare)
+                + BleCommandMetadata.SP + format(gross - tare)
+                + BleCommandMetadata.SP + UNIT;
+    }
+
+    /**
+     * 接收主机写入的数据
+     *
+     * @param buf    buffer
+     * @param offset offset
+     * @param count  count
+     * @param output 回应输出
+     */
+    public synchronized void feed(byte[] buf, int offset, int count, Output output) {
+        input.push(buf, offset, count);
+        while (!input.isEmpty()) {
+            if (sendRemaining > 0) {
+                final int n = Math.min(sendRemaining, input.getLength());
+                input.delete(0, n);
+                sendRemaining -= n;
+                receivedPayloadBytes += n;
+                if (sendRemaining == 0) {
+                    respond(output, "SEND", STATUS_SUCCESS);
+                }
+                continue;
+            }
+            final byte[] line = input.readLine(BleCommandMetadata.LINE_END);
+            if (line == null) {
+                break;
+            }
+            handle(new String(line), output);
+        }
+    }
+
+    private void handle(String line, Output output) {
+        final String[] items = line.split(BleCommandMetadata.SP);
+        final String cmd = items[0];
+        switch (cmd) {
+            case "W":
+                output.write(weightLine());
+                break;
+            case "T":
+                tare = gross;
+                respond(output, cmd, STATUS_SUCCESS);
+                break;
+            case "Z":
+                gross = 0;
+                tare = 0;
+                respond(output, cmd, STATUS_SUCCESS);
+                break;
+            case "CAPACITY":
+                output.write("CAPACITY A " + format(capacity) + BleCommandMetadata.SP + UNIT);
+                break;
+            case "DECIMAL":
+                handleDecimal(items, output);
+                break;
+            case "SEND":
+                handleSend(items, output);
+                break;
+            default:
+                respond(output, cmd, STATUS_ERROR);
+        }
+    }
+
+    private void handleDecimal(String[] items, Output output) {
+        final int value = items.length < 2 ? -1 : parseInt(items[1]);
+        if (value < 0 || value > WeightReading.MAX_DECIMALS) {
+            respond(output, "DECIMAL", STATUS_ERROR);
+            return;
+        }
+        decimals = value;
+        respond(output, "DECIMAL", STATUS_SUCCESS);
+    }
+
+    private void handleSend(String[] items, Output output) {
+        // SEND Channel length timeout
+        final int length = items.length < 4 ? -1 : parseInt(items[2]);
+        if (length < 0) {
+            respond(output, "SEND", STATUS_ERROR);
+            return;
+        }
+        respond(output, "SEND", STATUS_READY);
+        sendRemaining = length;
+        if (length == 0) {
+            respond(output, "SEND", STATUS_SUCCESS);
+        }
+    }
+
+    private static void respond(Output output, String cmd, String status) {
+        output.write(cmd + BleCommandMetadata.SP + status);
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private String format(double value) {
+        final long fixed = Math.round(value * WeightReading.pow10(decimals));
+        final long abs = Math.abs(fixed);
+        final long unit = WeightReading.pow10(decimals);
+        final StringBuilder sb = new StringBuilder(16);
+        if (fixed < 0) {
+            sb.append('-');
+        }
+        sb.append(abs / unit);
+        if (decimals > 0) {
+            final String fraction = Long.toString(abs % unit + unit);
+            // skip the leading '1' that keeps the zeros of the fraction
+            sb.append('.').append(fraction, 1, fraction.length());
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "SimulatedScale{" + weightLine() + "}";
+    }
+
+    public interface Output {
+        /**
+         * 输出一行回应
+         *
+         * @param line response line without line end
+         */
+        void write(String line);
+    }
+}
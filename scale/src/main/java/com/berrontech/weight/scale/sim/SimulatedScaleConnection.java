@@ -0,0 +1,195 @@
+package com.berrontech.weight.scale.sim;
+
+import com.berrontech.weight.scale.ble.BleCommandMetadata;
+import com.berrontech.weight.scale.commons.BasicConnection;
+import com.berrontech.weight.scale.commons.BleConnection;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Create by levent8421 2021/2/10 10:40
+ * SimulatedScaleConnection
+ * 回环连接：在JVM内连接到{@link SimulatedScale}，不需要蓝牙硬件。
+ * 收发数据按 MTU - 3 分包，每包经过一个链路线程并延迟 latency ± jitter，模拟BLE链路
+ *
+ * @author levent8421
+ */
+public class SimulatedScaleConnection extends BasicConnection {
+    private static final int ATT_WRITE_HEADER = 3;
+
+    private final SimulatedScale scale;
+    private final StateListener stateListener;
+    private final SimulatedScale.Output output = this::deliver;
+    private int mtu = BleConnection.DEFAULT_MTU;
+    private long chunkLatencyNanos;
+    private long jitterNanos;
+    private Random random = new Random();
+    /**
+     * 链路线程，按顺序处理所有分包
+     */
+    private ExecutorService link;
+
+    public SimulatedScaleConnection(SimulatedScale scale, StateListener stateListener) {
+        this.scale = scale;
+        this.stateListener = stateListener;
+    }
+
+    public SimulatedScale getScale() {
+        return scale;
+    }
+
+    /**
+     * @param mtu 23 ~ 517
+     * @return this connection
+     */
+    public SimulatedScaleConnection setMtu(int mtu) {
+        this.mtu = Math.max(BleConnection.DEFAULT_MTU, Math.min(BleConnection.MAX_MTU, mtu));
+        return this;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * 每包传输延迟
+     *
+     * @param latency latency
+     * @param unit    unit
+     * @return this connection
+     */
+    public SimulatedScaleConnection setChunkLatency(long latency, TimeUnit unit) {
+        this.chunkLatencyNanos = unit.toNanos(latency);
+        return this;
+    }
+
+    /**
+     * 每包延迟的随机抖动，均匀分布于 ±jitter
+     *
+     * @param jitter jitter
+     * @param unit   unit
+     * @return this connection
+     */
+    public SimulatedScaleConnection setJitter(long jitter, TimeUnit unit) {
+        this.jitterNanos = unit.toNanos(jitter);
+        return this;
+    }
+
+    /**
+     * 固定随机种子，使抖动可重复
+     *
+     * @param seed seed
+     * @return this connection
+     */
+    public SimulatedScaleConnection setSeed(long seed) {
+        this.random = new Random(seed);
+        return this;
+    }
+
+    private int chunkSize() {
+        return mtu - ATT_WRITE_HEADER;
+    }
+
+    @Override
+    public synchronized void open() {
+        if (isConnected()) {
+            return;
+        }
+        link = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            final Thread thread = new Thread(r, "SimulatedScaleLink");
+            thread.setDaemon(true);
+            return thread;
+        });
+        stats.setMtu(mtu);
+        setConnected(true);
+        stateListener.onReady(this);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!isConnected()) {
+            return;
+        }
+        setConnected(false);
+        link.shutdownNow();
+        stateListener.onDisconnected(this);
+    }
+
+    @Override
+    public void writeBuf(byte[] buf, int offset, int count) throws Exception {
+        if (!isConnected()) {
+            throw new IOException("Connection closed");
+        }
+        stats.onWrite(count);
+        final int chunkSize = chunkSize();
+        for (int pos = 0; pos < count; pos += chunkSize) {
+            final int len = Math.min(chunkSize, count - pos);
+            final byte[] chunk = new byte[len];
+            System.arraycopy(buf, offset + pos, chunk, 0, len);
+            stats.onChunk();
+            link.execute(() -> {
+                delay();
+                scale.feed(chunk, 0, chunk.length, output);
+            });
+        }
+    }
+
+    /**
+     * 模拟仪表主动上报一行数据
+     *
+     * @param line line without line end
+     */
+    public void emit(String line) {
+        if (isConnected()) {
+            link.execute(() -> deliver(line));
+        }
+    }
+
+    /**
+     * 模拟链路参数变化（PHY、连接间隔），在链路线程上通知状态监听器
+     *
+     * @param txPhy              tx PHY
+     * @param rxPhy              rx PHY
+     * @param connectionInterval interval in milliseconds
+     */
+    public void updateLink(int txPhy, int rxPhy, float connectionInterval) {
+        if (isConnected()) {
+            link.execute(() -> {
+                stats.setLink(txPhy, rxPhy, connectionInterval);
+                stateListener.onLinkUpdated(this, txPhy, rxPhy, connectionInterval);
+            });
+        }
+    }
+
+    /**
+     * 在链路线程上分包送回主机
+     */
+    private void deliver(String line) {
+        final byte[] lineBytes = line.getBytes();
+        final byte[] bytes = new byte[lineBytes.length + BleCommandMetadata.LINE_END.length];
+        System.arraycopy(lineBytes, 0, bytes, 0, lineBytes.length);
+        System.arraycopy(BleCommandMetadata.LINE_END, 0, bytes, lineBytes.length, BleCommandMetadata.LINE_END.length);
+        final int chunkSize = chunkSize();
+        for (int pos = 0; pos < bytes.length; pos += chunkSize) {
+            delay();
+            bufRecv.push(bytes, pos, Math.min(chunkSize, bytes.length - pos));
+            notifyReceived();
+        }
+    }
+
+    private void delay() {
+        long nanos = chunkLatencyNanos;
+        if (jitterNanos > 0) {
+            nanos += (long) ((random.nextDouble() * 2 - 1) * jitterNanos);
+        }
+        if (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+        }
+    }
+}
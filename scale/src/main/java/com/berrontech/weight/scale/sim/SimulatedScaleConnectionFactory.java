@@ -0,0 +1,65 @@
+package com.berrontech.weight.scale.sim;
+
+import android.content.Context;
+
+import com.berrontech.weight.scale.ScaleApiConfig;
+import com.berrontech.weight.scale.commons.BasicConnection;
+import com.berrontech.weight.scale.commons.ConnectionFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Create by levent8421 2021/2/10 11:20
+ * SimulatedScaleConnectionFactory
+ * 创建连接到模拟仪表的回环连接，设置到 {@link ScaleApiConfig#CONNECTION_FACTORY} 即可在JVM上运行ScaleApi
+ *
+ * @author levent8421
+ */
+public class SimulatedScaleConnectionFactory implements ConnectionFactory {
+    private final SimulatedScale scale;
+    private long chunkLatencyNanos;
+    private long jitterNanos;
+    private long seed = 8421;
+    private SimulatedScaleConnection lastConnection;
+
+    public SimulatedScaleConnectionFactory(SimulatedScale scale) {
+        this.scale = scale;
+    }
+
+    public SimulatedScaleConnectionFactory setChunkLatency(long latency, TimeUnit unit) {
+        this.chunkLatencyNanos = unit.toNanos(latency);
+        return this;
+    }
+
+    public SimulatedScaleConnectionFactory setJitter(long jitter, TimeUnit unit) {
+        this.jitterNanos = unit.toNanos(jitter);
+        return this;
+    }
+
+    public SimulatedScaleConnectionFactory setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public SimulatedScale getScale() {
+        return scale;
+    }
+
+    /**
+     * @return the connection created last, null if none
+     */
+    public synchronized SimulatedScaleConnection getLastConnection() {
+        return lastConnection;
+    }
+
+    @Override
+    public synchronized BasicConnection create(Context context, ScaleApiConfig config, BasicConnection.StateListener listener) {
+        final Integer mtu = config.get(ScaleApiConfig.MTU, Integer.class);
+        lastConnection = new SimulatedScaleConnection(scale, listener)
+                .setMtu(mtu)
+                .setChunkLatency(chunkLatencyNanos, TimeUnit.NANOSECONDS)
+                .setJitter(jitterNanos, TimeUnit.NANOSECONDS)
+                .setSeed(seed);
+        return lastConnection;
+    }
+}
@@ -21,4 +21,27 @@ public class CmdUtils {
         }
         return sb.toString();
     }
+
+    /**
+     * 判断回应是否属于该命令：回应行以命令名（命令中第一个空格前的部分）开头，其后为空格或行尾
+     *
+     * @param cmd  命令
+     * @param line 回应行（不含行尾）
+     * @return 是否匹配
+     */
+    public static boolean isResponseOf(byte[] cmd, byte[] line) {
+        int nameLength = 0;
+        while (nameLength < cmd.length && cmd[nameLength] != ' ') {
+            nameLength++;
+        }
+        if (line.length < nameLength) {
+            return false;
+        }
+        for (int i = 0; i < nameLength; i++) {
+            if (line[i] != cmd[i]) {
+                return false;
+            }
+        }
+        return line.length == nameLength || line[nameLength] == ' ';
+    }
 }
@@ -0,0 +1,124 @@
+package com.berrontech.weight.scale;
+
+import com.berrontech.weight.scale.commons.ScaleFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Create by levent8421 2021/2/16 10:30
+ * StabilityDetectorTest
+ *
+ * @author levent8421
+ */
+public class StabilityDetectorTest {
+    private final WeightReading reading = new WeightReading();
+    private final AtomicInteger events = new AtomicInteger();
+    private StabilityDetector detector;
+    private long time;
+
+    @Before
+    public void setUp() {
+        detector = new StabilityDetector(8)
+                .setBand(0.002)
+                .setSampleCount(3)
+                .setMinDuration(200);
+        detector.addListener(r -> events.incrementAndGet());
+        reading.setDecimals(3);
+        reading.setUnit(WeightUnit.KG);
+    }
+
+    private void feed(long gross, boolean stable) {
+        time += 100;
+        reading.setGross(gross);
+        reading.setStable(stable);
+        reading.setTimestamp(time);
+        detector.onWeight(reading);
+    }
+
+    @Test
+    public void stableWithinBand_afterCountAndDuration() {
+        feed(1500, true);
+        feed(1501, true);
+        assertFalse(detector.isStable());
+        feed(1502, true);
+        assertTrue(detector.isStable());
+        feed(1501, true);
+        feed(1500, true);
+        assertEquals(1, events.get());
+    }
+
+    @Test
+    public void deviceFlag_restartsDetection() {
+        feed(1500, true);
+        feed(1500, true);
+        feed(1500, false);
+        feed(1500, true);
+        feed(1500, true);
+        assertFalse(detector.isStable());
+        feed(1500, true);
+        assertTrue(detector.isStable());
+
+        detector.setRequireDeviceFlag(false);
+        feed(1500, false);
+        feed(1500, false);
+        feed(1500, false);
+        assertTrue(detector.isStable());
+    }
+
+    @Test
+    public void outOfBand_startsNewRun() {
+        feed(1000, true);
+        feed(1000, true);
+        feed(1000, true);
+        assertTrue(detector.isStable());
+        feed(1003, true);
+        assertFalse(detector.isStable());
+        feed(1003, true);
+        feed(1003, true);
+        assertTrue(detector.isStable());
+        assertEquals(2, events.get());
+    }
+
+    @Test
+    public void longRun_beyondCapacity() {
+        detector.setMinDuration(2000);
+        for (int i = 0; i < 19; i++) {
+            feed(500, true);
+        }
+        assertFalse(detector.isStable());
+        feed(500, true);
+        feed(500, true);
+        assertTrue(detector.isStable());
+    }
+
+    @Test
+    public void awaitStable() throws Exception {
+        final WeightReading out = new WeightReading();
+        final ScaleFuture<WeightReading> future = detector.awaitStable(out, 1000);
+        feed(800, true);
+        feed(800, true);
+        assertFalse(future.isDone());
+        feed(801, true);
+        assertSame(out, future.get(0, TimeUnit.MILLISECONDS));
+        assertEquals(801, out.getGross());
+
+        feed(802, true);
+        assertEquals(802, detector.awaitStable(out, 1000).get(0, TimeUnit.MILLISECONDS).getGross());
+
+        feed(900, true);
+        try {
+            detector.awaitStable(out, 20).get(1, TimeUnit.SECONDS);
+            fail("Expect timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.berrontech.weight.scale.ble;
+
+import com.berrontech.weight.scale.ResponseTimeoutException;
+import com.berrontech.weight.scale.ScaleApiConfig;
+import com.berrontech.weight.scale.WeightReading;
+import com.berrontech.weight.scale.commons.ScaleFuture;
+import com.berrontech.weight.scale.sim.SimulatedScale;
+import com.berrontech.weight.scale.sim.SimulatedScaleConnectionFactory;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Create by levent8421 2021/2/15 11:20
+ * AsyncBleScaleApiTest
+ * AsyncBleScaleApi running on the simulated scale
+ *
+ * @author levent8421
+ */
+public class AsyncBleScaleApiTest {
+    private SimulatedScale scale;
+    private AsyncBleScaleApi api;
+
+    private void connect(long chunkLatencyMicros, int cmdTimeout) throws Exception {
+        scale = new SimulatedScale().setGross(1.5);
+        final SimulatedScaleConnectionFactory factory = new SimulatedScaleConnectionFactory(scale)
+                .setChunkLatency(chunkLatencyMicros, TimeUnit.MICROSECONDS);
+        api = new AsyncBleScaleApi(new ScaleApiConfig()
+                .with(ScaleApiConfig.CONNECTION_FACTORY, factory)
+                .with(ScaleApiConfig.MTU, 23)
+                .with(ScaleApiConfig.CMD_TIMEOUT, cmdTimeout)
+                .with(ScaleApiConfig.CONNECT_TIMEOUT, 1000));
+        api.connect().get(1, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        if (api != null) {
+            api.close();
+        }
+    }
+
+    @Test
+    public void commands() throws Exception {
+        connect(200, 2000);
+        final WeightReading reading = new WeightReading();
+        assertSame(reading, api.readWeight(reading).get(1, TimeUnit.SECONDS));
+        assertEquals(1500, reading.getNet());
+        assertEquals(0, (int) api.clearTare().get(1, TimeUnit.SECONDS));
+        assertEquals(0, (int) api.zeroClear().get(1, TimeUnit.SECONDS));
+        assertEquals(30f, api.getMaxWeight().get(1, TimeUnit.SECONDS), 0);
+        api.setPoint(1).get(1, TimeUnit.SECONDS);
+        assertEquals(1, scale.getDecimals());
+        assertEquals(64, (int) api.sendCmd(new byte[64], 1000).get(2, TimeUnit.SECONDS));
+        assertEquals(64, scale.getReceivedPayloadBytes());
+        assertEquals(1, api.getMetricsSnapshot().get("SEND").getCount());
+    }
+
+    @Test
+    public void manyInFlight_completeWithoutCallerThreads() throws Exception {
+        connect(100, 2000);
+        final List<ScaleFuture<WeightReading>> futures = new ArrayList<>();
+        final List<WeightReading> readings = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            final WeightReading reading = new WeightReading();
+            readings.add(reading);
+            futures.add(api.readWeight(reading));
+        }
+        // sending is exclusive while other commands are queued
+        final ScaleFuture<Integer> send = api.sendCmd(new byte[100], 1000);
+        final ScaleFuture<Integer> tare = api.clearTare();
+        for (int i = 0; i < futures.size(); i++) {
+            futures.get(i).get(5, TimeUnit.SECONDS);
+            assertEquals(1500, readings.get(i).getNet());
+        }
+        assertEquals(100, (int) send.get(5, TimeUnit.SECONDS));
+        assertEquals(0, (int) tare.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void timeout_completesWithResponseTimeout() throws Exception {
+        connect(50000, 20);
+        final ScaleFuture<Integer> tare = api.clearTare();
+        try {
+            tare.get(1, TimeUnit.SECONDS);
+            fail("Expect timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ResponseTimeoutException);
+        }
+        assertEquals(1, api.getMetricsSnapshot().get("T").getTimeouts());
+    }
+
+    @Test
+    public void cancel_discardsCommand() throws Exception {
+        connect(2000, 2000);
+        final ScaleFuture<Float> capacity = api.getMaxWeight();
+        assertTrue(capacity.cancel(false));
+        try {
+            capacity.get();
+            fail("Expect cancellation");
+        } catch (CancellationException e) {
+            // expected
+        }
+        final ScaleFuture<Integer> send = api.sendCmd(new byte[32], 1000);
+        send.cancel(false);
+        assertTrue(send.isCancelled());
+        final WeightReading reading = new WeightReading();
+        api.readWeight(reading).get(2, TimeUnit.SECONDS);
+        assertEquals(1500, reading.getNet());
+    }
+
+    @Test
+    public void readWeight_sharesWeightCache() throws Exception {
+        connect(200, 2000);
+        api.getScaleApi().getConfig().with(ScaleApiConfig.WEIGHT_CACHE_TIME, 60 * 1000);
+        final WeightReading reading = new WeightReading();
+        api.readWeight(reading).get(1, TimeUnit.SECONDS);
+        assertEquals(1500, reading.getGross());
+        scale.setGross(2.0);
+        api.readWeight(reading).get(1, TimeUnit.SECONDS);
+        assertEquals(1500, reading.getGross());
+        // a blocking read is served from the same cache
+        api.getScaleApi().readWeight(reading);
+        assertEquals(1500, reading.getGross());
+        assertEquals(2, api.getScaleApi().getWeightCacheStats().getHits());
+        assertEquals(1, api.getMetricsSnapshot().get("W").getCount());
+
+        api.clearTare().get(1, TimeUnit.SECONDS);
+        api.readWeight(reading).get(1, TimeUnit.SECONDS);
+        assertEquals(2000, reading.getGross());
+    }
+}
@@ -0,0 +1,272 @@
+package com.berrontech.weight.scale.ble;
+
+import com.berrontech.weight.scale.DeviceMetadata;
+import com.berrontech.weight.scale.OperationFailedException;
+import com.berrontech.weight.scale.ScaleApi;
+import com.berrontech.weight.scale.ScaleApiConfig;
+import com.berrontech.weight.scale.WeightReading;
+import com.berrontech.weight.scale.WeightUnit;
+import com.berrontech.weight.scale.commons.BasicConnection;
+import com.berrontech.weight.scale.commons.ScaleFuture;
+import com.berrontech.weight.scale.metrics.CommandSnapshot;
+import com.berrontech.weight.scale.sim.SimulatedScale;
+import com.berrontech.weight.scale.sim.SimulatedScaleConnection;
+import com.berrontech.weight.scale.sim.SimulatedScaleConnectionFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Create by levent8421 2021/2/10 14:10
+ * BleScaleApiTest
+ * BleScaleApi running on the simulated scale, no bluetooth hardware needed
+ *
+ * @author levent8421
+ */
+public class BleScaleApiTest {
+    private SimulatedScale scale;
+    private SimulatedScaleConnectionFactory factory;
+    private BleScaleApi api;
+
+    @Before
+    public void setUp() throws Exception {
+        scale = new SimulatedScale().setGross(1.5);
+        factory = new SimulatedScaleConnectionFactory(scale)
+                .setChunkLatency(200, TimeUnit.MICROSECONDS)
+                .setJitter(100, TimeUnit.MICROSECONDS);
+        api = new BleScaleApi(new ScaleApiConfig()
+                .with(ScaleApiConfig.CONNECTION_FACTORY, factory)
+                .with(ScaleApiConfig.MTU, 23)
+                .with(ScaleApiConfig.CONNECT_TIMEOUT, 1000));
+        api.connect();
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+    }
+
+    @Test
+    public void weightCommands() throws Exception {
+        final WeightReading reading = new WeightReading();
+        api.readWeight(reading);
+        assertEquals(1500, reading.getNet());
+        assertEquals(3, reading.getDecimals());
+        assertEquals(WeightUnit.KG, reading.getUnit());
+        assertTrue(reading.isStable());
+
+        assertEquals(0, api.clearTare());
+        scale.setGross(2.0);
+        assertArrayEquals(new String[]{"0.500", "kg"}, api.getWeight());
+
+        assertEquals(0, api.zeroClear());
+        api.setPoint(1);
+        assertArrayEquals(new String[]{"0.0", "kg"}, api.getWeight());
+        assertEquals(30f, api.getMaxWeight(), 0);
+    }
+
+    @Test
+    public void metrics_recordEveryCommand() throws Exception {
+        api.getWeight();
+        api.getWeight();
+        api.clearTare();
+        try {
+            api.setPoint(20);
+            fail("DECIMAL 20 is out of range");
+        } catch (OperationFailedException e) {
+            // expected
+        }
+        final Map<String, CommandSnapshot> snapshot = api.getMetricsSnapshot();
+        assertEquals(2, snapshot.get("W").getCount());
+        assertTrue(snapshot.get("W").getMax() > 0);
+        assertEquals(1, snapshot.get("T").getCount());
+        assertEquals(1, snapshot.get("DECIMAL").getOperationFailures());
+        assertEquals(0, snapshot.get("Z").getCount());
+    }
+
+    @Test
+    public void sendCmd_transfersPayloadInChunks() throws Exception {
+        awaitMetadata();
+        final byte[] payload = new byte[1000];
+        assertEquals(payload.length, api.sendCmd(payload, 5000));
+        assertEquals(payload.length, scale.getReceivedPayloadBytes());
+        // resync, CAPACITY read on ready, SEND header, then 1000 bytes in chunks of MTU - 3
+        assertEquals(1 + 1 + 1 + 50, api.getConnectionStats().getChunks());
+    }
+
+    @Test
+    public void sendCmd_streamsFromInputStreamBufferAndFile() throws Exception {
+        final byte[] payload = new byte[10000];
+        final List<Integer> progress = new ArrayList<>();
+        assertEquals(payload.length, api.sendCmd(new ByteArrayInputStream(payload), payload.length, 5000,
+                (sent, total) -> progress.add(sent)));
+        assertEquals(Arrays.asList(4096, 8192, 10000), progress);
+        assertEquals(payload.length, scale.getReceivedPayloadBytes());
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(5000);
+        buffer.position(1000);
+        assertEquals(4000, api.sendCmd(buffer, 5000, null));
+        assertEquals(1000, buffer.position());
+        assertEquals(payload.length + 4000, scale.getReceivedPayloadBytes());
+
+        final File file = File.createTempFile("payload", ".bin");
+        try {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(payload, 0, 3000);
+            }
+            assertEquals(3000, api.sendCmd(file.getPath(), 5000, null));
+            assertEquals(payload.length + 7000, scale.getReceivedPayloadBytes());
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void sendCmd_shortStreamFails() throws Exception {
+        api.sendCmd(new ByteArrayInputStream(new byte[100]), 200, 5000, null);
+    }
+
+    @Test
+    public void weightCache_reusesFreshReadingUntilTare() throws Exception {
+        api.getConfig().with(ScaleApiConfig.WEIGHT_CACHE_TIME, 60 * 1000);
+        final WeightReading reading = new WeightReading();
+        api.readWeight(reading);
+        assertEquals(1500, reading.getGross());
+        scale.setGross(2.0);
+        api.readWeight(reading);
+        assertEquals(1500, reading.getGross());
+        assertEquals(1, api.getWeightCacheStats().getHits());
+
+        api.clearTare();
+        api.readWeight(reading);
+        assertEquals(2000, reading.getGross());
+        assertEquals(2, api.getWeightCacheStats().getMisses());
+    }
+
+    @Test
+    public void weightCache_notServedAfterLinkDrops() throws Exception {
+        api.getConfig().with(ScaleApiConfig.WEIGHT_CACHE_TIME, 60 * 1000);
+        final WeightReading reading = new WeightReading();
+        api.readWeight(reading);
+        assertEquals(1500, reading.getGross());
+        factory.getLastConnection().close();
+        try {
+            api.getWeight();
+            fail("Link is down");
+        } catch (BleConnectionException e) {
+            // expected
+        }
+        scale.setGross(2.0);
+        api.connect();
+        api.readWeight(reading);
+        assertEquals(2000, reading.getGross());
+    }
+
+    @Test
+    public void linkUpdates_reachStateListener() throws Exception {
+        final CountDownLatch updated = new CountDownLatch(1);
+        final float[] interval = new float[1];
+        api.setStateListener(new BasicConnection.StateListener() {
+            @Override
+            public void onReady(BasicConnection connection) {
+            }
+
+            @Override
+            public void onDisconnected(BasicConnection connection) {
+            }
+
+            @Override
+            public void onLinkUpdated(BasicConnection connection, int txPhy, int rxPhy, float connectionInterval) {
+                interval[0] = connectionInterval;
+                updated.countDown();
+            }
+        });
+        factory.getLastConnection().updateLink(2, 2, 15f);
+        assertTrue(updated.await(1, TimeUnit.SECONDS));
+        assertEquals(15f, interval[0], 0);
+        assertEquals(2, api.getConnectionStats().getTxPhy());
+    }
+
+    private void awaitMetadata() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 1000;
+        while (!api.getDeviceMetadata().isCapacityKnown()) {
+            assertTrue("CAPACITY not read on ready", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void deviceMetadata_readOnReadyAndServedLocally() throws Exception {
+        awaitMetadata();
+        final long chunks = api.getConnectionStats().getChunks();
+        assertEquals(30f, api.getMaxWeight(), 0);
+        assertEquals(chunks, api.getConnectionStats().getChunks());
+
+        api.setPoint(1);
+        final DeviceMetadata metadata = api.getDeviceMetadata();
+        assertEquals(1, metadata.getDecimals());
+        assertFalse(metadata.isCapacityKnown());
+        assertEquals(30f, api.getMaxWeight(), 0);
+        assertTrue(api.getDeviceMetadata().isCapacityKnown());
+
+        api.readWeight(new WeightReading());
+        assertEquals(WeightUnit.KG, api.getDeviceMetadata().getUnit());
+    }
+
+    @Test
+    public void pipelinedCommands_completeInOrder() throws Exception {
+        final List<ScaleFuture<byte[]>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(api.submitCmd(i % 2 == 0 ? BleCommandMetadata.CMD_READ_WEIGHT : BleCommandMetadata.CMD_CAPACITY));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            final String line = new String(futures.get(i).get(1, TimeUnit.SECONDS));
+            assertTrue(line, line.startsWith(i % 2 == 0 ? "W A" : "CAPACITY A"));
+        }
+    }
+
+    @Test
+    public void weightStream_receivesUnsolicitedReadings() throws Exception {
+        final CountDownLatch received = new CountDownLatch(1);
+        final AtomicLong gross = new AtomicLong();
+        api.getWeightStream().subscribe(reading -> {
+            gross.set(reading.getGross());
+            received.countDown();
+        });
+        factory.getLastConnection().emit(scale.weightLine());
+        assertTrue(received.await(1, TimeUnit.SECONDS));
+        assertEquals(1500, gross.get());
+    }
+
+    @Test
+    public void connectAfterLinkLoss_reusesConnection() throws Exception {
+        final SimulatedScaleConnection connection = factory.getLastConnection();
+        // link lost without close()
+        connection.close();
+        assertEquals(ScaleApi.STATUS_ERROR, api.getStatus());
+        api.connect();
+        assertSame(connection, factory.getLastConnection());
+        assertEquals(ScaleApi.STATUS_OK, api.getStatus());
+        assertArrayEquals(new String[]{"1.500", "kg"}, api.getWeight());
+
+        api.close();
+        api.connect();
+        assertNotSame(connection, factory.getLastConnection());
+    }
+}
@@ -0,0 +1,38 @@
+package com.berrontech.weight.scale.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Create by levent8421 2021/2/18 10:10
+ * CommandEncoderTest
+ *
+ * @author levent8421
+ */
+public class CommandEncoderTest {
+    private static String text(CommandEncoder encoder) {
+        return new String(encoder.buffer(), 0, encoder.length());
+    }
+
+    @Test
+    public void fixedFrames() {
+        assertSame(CommandEncoder.FRAME_READ_WEIGHT, CommandEncoder.frameOf(BleCommandMetadata.CMD_READ_WEIGHT));
+        assertEquals("W\r\n", new String(CommandEncoder.FRAME_READ_WEIGHT));
+        assertEquals("CAPACITY\r\n", new String(CommandEncoder.frameOf(BleCommandMetadata.CMD_CAPACITY)));
+        assertEquals("XYZ\r\n", new String(CommandEncoder.frameOf("XYZ".getBytes())));
+    }
+
+    @Test
+    public void parameterizedCommands_reuseBuffer() {
+        final CommandEncoder encoder = new CommandEncoder();
+        final byte[] buffer = encoder.buffer();
+        assertEquals("DECIMAL 3\r\n", text(encoder.decimal(3)));
+        assertEquals("DECIMAL 0\r\n", text(encoder.decimal(0)));
+        assertEquals("DECIMAL -12\r\n", text(encoder.decimal(-12)));
+        assertEquals("SEND 0 4096 10000\r\n", text(encoder.sendData(4096, 10000)));
+        assertEquals("SEND 0 -2147483648 2147483647\r\n", text(encoder.sendData(Integer.MIN_VALUE, Integer.MAX_VALUE)));
+        assertSame(buffer, encoder.buffer());
+        assertArrayEquals("DECIMAL 1\r\n".getBytes(), encoder.decimal(1).toFrame());
+    }
+}
@@ -0,0 +1,189 @@
+package com.berrontech.weight.scale.ble;
+
+import com.berrontech.weight.scale.commons.BasicConnection;
+import com.berrontech.weight.scale.commons.ScaleFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Create by levent8421 2021/2/5 15:02
+ * CommandPipelineTest
+ * CommandPipeline unit test
+ *
+ * @author levent8421
+ */
+public class CommandPipelineTest {
+    private static final long TIMEOUT = 1000;
+    private FakeConnection connection;
+
+    @Before
+    public void setUp() {
+        connection = new FakeConnection();
+    }
+
+    @Test
+    public void responses_matchCommandsInOrder() throws Exception {
+        final CommandPipeline pipeline = new CommandPipeline(connection, 4);
+        final ScaleFuture<byte[]> weight = submit(pipeline, "W");
+        final ScaleFuture<byte[]> tare = submit(pipeline, "T");
+        final ScaleFuture<byte[]> weight2 = submit(pipeline, "W");
+        assertEquals(3, pipeline.getInFlightCount());
+
+        connection.respond("W A = S 1.000 0.000 1.000 kg\r\nT A\r\n");
+        assertEquals("W A = S 1.000 0.000 1.000 kg", new String(weight.get(TIMEOUT, TimeUnit.MILLISECONDS)));
+        assertEquals("T A", new String(tare.get(TIMEOUT, TimeUnit.MILLISECONDS)));
+        assertFalse(weight2.isDone());
+
+        connection.respond("W A = S 2.000 0.000 2.000 kg\r\n");
+        assertEquals("W A = S 2.000 0.000 2.000 kg", new String(weight2.get(TIMEOUT, TimeUnit.MILLISECONDS)));
+        assertEquals(0, pipeline.getInFlightCount());
+    }
+
+    @Test
+    public void unsolicitedLines_areDropped() throws Exception {
+        final CommandPipeline pipeline = new CommandPipeline(connection, 2);
+        final ScaleFuture<byte[]> zero = submit(pipeline, "Z");
+        connection.respond("W A = S 1.000 0.000 1.000 kg\r\nZ A\r\n");
+        assertEquals("Z A", new String(zero.get(TIMEOUT, TimeUnit.MILLISECONDS)));
+    }
+
+    @Test
+    public void streamedWeightLine_doesNotFailCommandsAhead() throws Exception {
+        final CommandPipeline pipeline = new CommandPipeline(connection, 2);
+        final ScaleFuture<byte[]> tare = submit(pipeline, "T");
+        final ScaleFuture<byte[]> weight = submit(pipeline, "W");
+        connection.respond("W A = S 1.000 0.000 1.000 kg\r\n");
+        assertFalse(tare.isDone());
+        assertFalse(weight.isDone());
+        assertFalse(pipeline.isDesync());
+
+        connection.respond("T A\r\nW A = S 2.000 0.000 2.000 kg\r\n");
+        assertEquals("T A", new String(tare.get(TIMEOUT, TimeUnit.MILLISECONDS)));
+        assertEquals("W A = S 2.000 0.000 2.000 kg", new String(weight.get(TIMEOUT, TimeUnit.MILLISECONDS)));
+        assertFalse(pipeline.isDesync());
+    }
+
+    @Test
+    public void lostResponse_failsEarlierCommand() throws Exception {
+        final CommandPipeline pipeline = new CommandPipeline(connection, 2);
+        final ScaleFuture<byte[]> weight = submit(pipeline, "W");
+        final ScaleFuture<byte[]> tare = submit(pipeline, "T");
+        connection.respond("T A\r\n");
+        assertEquals("T A", new String(tare.get(TIMEOUT, TimeUnit.MILLISECONDS)));
+        try {
+            weight.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("Response of W is lost");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void depth_limitsCommandsInFlight() throws Exception {
+        final CommandPipeline pipeline = new CommandPipeline(connection, 1);
+        submit(pipeline, "W");
+        try {
+            pipeline.submit("T".getBytes(), "T\r\n".getBytes(), 50);
+            fail("No free slot expected");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        connection.respond("W A = S 1.000 0.000 1.000 kg\r\n");
+        final ScaleFuture<byte[]> tare = submit(pipeline, "T");
+        connection.respond("T A\r\n");
+        assertEquals("T A", new String(tare.get(TIMEOUT, TimeUnit.MILLISECONDS)));
+    }
+
+    @Test
+    public void firstCommand_resyncsOnce() throws Exception {
+        final CommandPipeline pipeline = new CommandPipeline(connection, 2);
+        submit(pipeline, "W");
+        connection.respond("W A = S 1.000 0.000 1.000 kg\r\n");
+        submit(pipeline, "T");
+        assertEquals(3, connection.frames.size());
+        assertEquals("xxx\r\n", connection.frames.get(0));
+        assertEquals("W\r\n", connection.frames.get(1));
+        assertEquals("T\r\n", connection.frames.get(2));
+    }
+
+    @Test
+    public void slowAsyncWrite_doesNotHoldUpResponses() throws Exception {
+        final CommandPipeline pipeline = new CommandPipeline(connection, 1);
+        final ScaleFuture<byte[]> weight = submit(pipeline, "W");
+        final CountDownLatch writeGate = new CountDownLatch(1);
+        connection.blockedFrame = "T\r\n";
+        connection.writeGate = writeGate;
+        final ScaleFuture<byte[]> tare = pipeline.submitAsync("T".getBytes(), "T\r\n".getBytes(), TIMEOUT);
+        try {
+            // the W response frees the slot, the queued T is written (and stalls) on another thread
+            final Thread receiver = new Thread(() -> connection.respond("W A = S 1.000 0.000 1.000 kg\r\n"));
+            receiver.start();
+            receiver.join(TIMEOUT);
+            assertFalse("Receiving thread waits for the write", receiver.isAlive());
+            assertEquals("W A = S 1.000 0.000 1.000 kg", new String(weight.get(TIMEOUT, TimeUnit.MILLISECONDS)));
+        } finally {
+            writeGate.countDown();
+        }
+        while (!connection.frames.contains("T\r\n")) {
+            Thread.sleep(1);
+        }
+        connection.respond("T A\r\n");
+        assertEquals("T A", new String(tare.get(TIMEOUT, TimeUnit.MILLISECONDS)));
+    }
+
+    private static ScaleFuture<byte[]> submit(CommandPipeline pipeline, String cmd) throws Exception {
+        return pipeline.submit(cmd.getBytes(), (cmd + "\r\n").getBytes(), TIMEOUT);
+    }
+
+    /**
+     * Records written frames, answers the resync dummy command at once
+     */
+    private static class FakeConnection extends BasicConnection {
+        private final List<String> frames = Collections.synchronizedList(new ArrayList<>());
+        /**
+         * Writes of this frame wait for the gate, like a write stuck in backpressure
+         */
+        private volatile String blockedFrame;
+        private volatile CountDownLatch writeGate;
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void writeBuf(byte[] buf, int offset, int count) {
+            final String frame = new String(buf, offset, count);
+            if (frame.equals(blockedFrame)) {
+                try {
+                    writeGate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            frames.add(frame);
+            if ("xxx\r\n".equals(frame)) {
+                respond("ES\r\n");
+            }
+        }
+
+        void respond(String lines) {
+            getRecvBuffer().push(lines.getBytes());
+            notifyReceived();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.berrontech.weight.scale.ble;
+
+import com.berrontech.weight.scale.ResponseTimeoutException;
+import com.berrontech.weight.scale.metrics.CacheStats;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Create by levent8421 2021/2/17 15:10
+ * ResponseCacheTest
+ *
+ * @author levent8421
+ */
+public class ResponseCacheTest {
+    private static final long TIMEOUT = 1000;
+    private final CacheStats stats = new CacheStats();
+    private final ResponseCache cache = new ResponseCache(stats);
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private byte[] load() {
+        return ("W " + loads.incrementAndGet()).getBytes();
+    }
+
+    @Test
+    public void concurrentCallers_shareOneRequest() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final int callers = 4;
+        final byte[][] results = new byte[callers][];
+        final Thread[] threads = new Thread[callers];
+        for (int i = 0; i < callers; i++) {
+            final int index = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    results[index] = cache.get(1000, TIMEOUT, () -> {
+                        release.await();
+                        return load();
+                    });
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            threads[i].start();
+        }
+        while (stats.getMisses() + stats.getJoins() < callers) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join(1000);
+        }
+        assertEquals(1, loads.get());
+        assertEquals(1, stats.getMisses());
+        assertEquals(callers - 1, stats.getJoins());
+        for (byte[] result : results) {
+            assertSame(results[0], result);
+        }
+        assertSame(results[0], cache.get(1000, TIMEOUT, this::load));
+        assertEquals(1, stats.getHits());
+    }
+
+    @Test
+    public void expiredOrInvalidated_loadsAgain() throws Exception {
+        final byte[] first = cache.get(20, TIMEOUT, this::load);
+        assertSame(first, cache.get(20, TIMEOUT, this::load));
+        Thread.sleep(30);
+        assertNotSame(first, cache.get(20, TIMEOUT, this::load));
+        cache.invalidate();
+        cache.get(1000, TIMEOUT, this::load);
+        assertEquals(3, loads.get());
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getInvalidations());
+    }
+
+    @Test
+    public void invalidatedWhileLoading_notCached() throws Exception {
+        final byte[] stale = cache.get(1000, TIMEOUT, () -> {
+            cache.invalidate();
+            return load();
+        });
+        assertNotSame(stale, cache.get(1000, TIMEOUT, this::load));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void failure_reachesJoinedCallersAndIsNotCached() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicReference<Exception> joined = new AtomicReference<>();
+        final Thread owner = new Thread(() -> {
+            try {
+                cache.get(1000, TIMEOUT, () -> {
+                    loading.countDown();
+                    release.await();
+                    throw new IOException("lost");
+                });
+            } catch (Exception ignored) {
+                // expected
+            }
+        });
+        owner.start();
+        loading.await();
+        final Thread joiner = new Thread(() -> {
+            try {
+                cache.get(1000, TIMEOUT, this::load);
+            } catch (Exception e) {
+                joined.set(e);
+            }
+        });
+        joiner.start();
+        while (stats.getJoins() == 0) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        owner.join(1000);
+        joiner.join(1000);
+        assertTrue(joined.get() instanceof IOException);
+        cache.get(1000, TIMEOUT, this::load);
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void slowLoad_joinedCallerTimesOut() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread owner = new Thread(() -> {
+            try {
+                cache.get(1000, TIMEOUT, () -> {
+                    loading.countDown();
+                    release.await();
+                    return load();
+                });
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        owner.start();
+        loading.await();
+        try {
+            cache.get(1000, 20, this::load);
+            fail("Joined caller should time out");
+        } catch (ResponseTimeoutException expected) {
+            // expected
+        } finally {
+            release.countDown();
+            owner.join(1000);
+        }
+        assertEquals(1, loads.get());
+    }
+}
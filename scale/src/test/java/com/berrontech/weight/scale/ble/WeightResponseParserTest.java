@@ -0,0 +1,78 @@
+package com.berrontech.weight.scale.ble;
+
+import com.berrontech.weight.scale.WeightReading;
+import com.berrontech.weight.scale.WeightUnit;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Create by levent8421 2021/2/9 14:30
+ * WeightResponseParserTest
+ * WeightResponseParser unit test
+ *
+ * @author levent8421
+ */
+public class WeightResponseParserTest {
+    @Test
+    public void parse_fillsFixedPointReading() {
+        final WeightReading reading = new WeightReading();
+        assertTrue(WeightResponseParser.parse("W A = S 1.250 0.050 1.200 kg".getBytes(), reading));
+        assertEquals(1250, reading.getGross());
+        assertEquals(50, reading.getTare());
+        assertEquals(1200, reading.getNet());
+        assertEquals(3, reading.getDecimals());
+        assertTrue(reading.isStable());
+        assertEquals(WeightUnit.KG, reading.getUnit());
+        assertEquals(1.2, reading.getNetValue(), 1e-9);
+        assertTrue(reading.getTimestamp() > 0);
+    }
+
+    @Test
+    public void parse_alignsDecimalsAndSigns() {
+        final WeightReading reading = new WeightReading();
+        assertTrue(WeightResponseParser.parse("W A = D 12.5 -0.25 +12 G".getBytes(), reading));
+        assertEquals(1250, reading.getGross());
+        assertEquals(-25, reading.getTare());
+        assertEquals(1200, reading.getNet());
+        assertEquals(2, reading.getDecimals());
+        assertFalse(reading.isStable());
+        assertEquals(WeightUnit.G, reading.getUnit());
+    }
+
+    @Test
+    public void parse_rejectsInvalidLines() {
+        final WeightReading reading = new WeightReading();
+        assertFalse(WeightResponseParser.parse("T A".getBytes(), reading));
+        assertFalse(WeightResponseParser.parse("W A = S 1.0 0.0 1.0".getBytes(), reading));
+        assertFalse(WeightResponseParser.parse("W A = S 1.0 0.0 1.0 kg extra".getBytes(), reading));
+        assertFalse(WeightResponseParser.parse("W A = S 1.0 x 1.0 kg".getBytes(), reading));
+        assertFalse(WeightResponseParser.parse("W A = S 1.0 - 1.0 kg".getBytes(), reading));
+    }
+
+    @Test
+    public void parse_allocatesNothing() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        final byte[] line = "W A = S 1.250 0.050 1.200 kg".getBytes();
+        final WeightReading reading = new WeightReading();
+        final long threadId = Thread.currentThread().getId();
+        // warm up, also loads classes used by the parser
+        for (int i = 0; i < 10_000; i++) {
+            WeightResponseParser.parse(line, reading);
+        }
+        final long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100_000; i++) {
+            WeightResponseParser.parse(line, reading);
+        }
+        final long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+        // allow for the bookkeeping of the measurement itself
+        assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+    }
+}
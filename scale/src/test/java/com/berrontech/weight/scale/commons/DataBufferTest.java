@@ -0,0 +1,360 @@
+package com.berrontech.weight.scale.commons;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Create by levent8421 2021/2/3 10:12
+ * DataBufferTest
+ * DataBuffer unit test
+ *
+ * @author levent8421
+ */
+public class DataBufferTest {
+    private static final byte[] LINE_END = {'\r', '\n'};
+    private static final byte[] SELF_OVERLAPPING_END = {'a', 'a'};
+
+    @Test
+    public void readLine_wrapsAroundBufferEnd() {
+        final DataBuffer buffer = new DataBuffer(16);
+        buffer.push("0123456789".getBytes());
+        assertArrayEquals("01234567".getBytes(), buffer.pop(8));
+        // 2 bytes left, the next push wraps around the array end
+        buffer.push("W A\r\nZ\r\n".getBytes());
+        assertEquals(10, buffer.getLength());
+        assertArrayEquals("89W A".getBytes(), buffer.readLine(LINE_END));
+        assertArrayEquals("Z".getBytes(), buffer.readLine(LINE_END));
+        assertNull(buffer.readLine(LINE_END));
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void lookup_findsTerminatorSplitByWrap() {
+        final DataBuffer buffer = new DataBuffer(8);
+        buffer.push("abcdef".getBytes());
+        buffer.pop(5);
+        buffer.push("gh\r\n".getBytes());
+        // "fgh\r\n" with '\r' at array index 7 and '\n' at index 0
+        assertEquals(3, buffer.lookup(LINE_END));
+        assertArrayEquals("fgh".getBytes(), buffer.readLine(LINE_END));
+    }
+
+    @Test
+    public void push_clampsWhenFull() {
+        final DataBuffer buffer = new DataBuffer(4);
+        buffer.push("abcdef".getBytes());
+        assertEquals(4, buffer.getLength());
+        assertArrayEquals("abcd".getBytes(), buffer.readExisting());
+        assertNull(buffer.readExisting());
+    }
+
+    @Test
+    public void randomOperations_matchLinearBuffer() {
+        final Random random = new Random(8421);
+        final int capacity = 64;
+        final DataBuffer ring = new DataBuffer(capacity);
+        final LinearBuffer linear = new LinearBuffer(capacity);
+        final byte[] alphabet = {'a', 'b', '\r', '\n', ' ', 'W'};
+        for (int i = 0; i < 200_000; i++) {
+            switch (random.nextInt(7)) {
+                case 0:
+                case 1: {
+                    final byte[] data = new byte[random.nextInt(20)];
+                    for (int j = 0; j < data.length; j++) {
+                        data[j] = alphabet[random.nextInt(alphabet.length)];
+                    }
+                    ring.push(data);
+                    linear.push(data, 0, data.length);
+                    break;
+                }
+                case 2: {
+                    final int count = random.nextInt(10);
+                    assertArrayEquals(linear.pop(count), ring.pop(count));
+                    break;
+                }
+                case 3: {
+                    // mostly CRLF, switching terminators now and then resets the scan index
+                    final byte[] end = random.nextInt(50) == 0 ? SELF_OVERLAPPING_END : LINE_END;
+                    assertArrayEquals(linear.readLine(end), ring.readLine(end));
+                    break;
+                }
+                case 4: {
+                    final int count = random.nextInt(8);
+                    assertArrayEquals(linear.readBytes(count), ring.readBytes(count));
+                    break;
+                }
+                case 5: {
+                    final int offset = random.nextInt(capacity);
+                    final int count = random.nextInt(8);
+                    ring.delete(offset, count);
+                    linear.delete(offset, count);
+                    break;
+                }
+                default:
+                    assertEquals(linear.lookup(LINE_END), ring.lookup(LINE_END));
+            }
+            assertEquals(linear.length, ring.getLength());
+        }
+    }
+
+    @Test
+    public void lookup_scansOnlyNewBytes() {
+        final DataBuffer buffer = new DataBuffer(64);
+        buffer.push("W A = S".getBytes());
+        assertEquals(-1, buffer.lookup(LINE_END));
+        buffer.push(" 1.000\r".getBytes());
+        assertEquals(-1, buffer.lookup(LINE_END));
+        buffer.push("\nT A\r\nZ A\r\n".getBytes());
+        assertEquals(13, buffer.lookup(LINE_END));
+        assertArrayEquals("W A = S 1.000".getBytes(), buffer.readLine(LINE_END));
+        assertEquals(3, buffer.lookup(LINE_END));
+        assertArrayEquals("T A".getBytes(), buffer.readLine(LINE_END));
+        assertArrayEquals("Z A".getBytes(), buffer.readLine(LINE_END));
+        assertNull(buffer.readLine(LINE_END));
+    }
+
+    @Test
+    public void lookup_rescansAfterPartialTerminatorPop() {
+        final DataBuffer buffer = new DataBuffer(16);
+        buffer.push("xaaa".getBytes());
+        assertEquals(1, buffer.lookup(SELF_OVERLAPPING_END));
+        buffer.pop(2);
+        // "aa" starting inside the terminator found before
+        assertEquals(0, buffer.lookup(SELF_OVERLAPPING_END));
+    }
+
+    @Test
+    public void readLine_timesOutWithoutData() {
+        final DataBuffer buffer = new DataBuffer(16);
+        final long start = System.nanoTime();
+        assertNull(buffer.readLine(LINE_END, 50));
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Returned after " + elapsed + "ms", elapsed >= 50);
+    }
+
+    @Test
+    public void waitByte_skipsOtherBytes() {
+        final DataBuffer buffer = new DataBuffer(16);
+        buffer.push("xyB12".getBytes());
+        assertTrue(buffer.waitByte((byte) 'B', 10));
+        assertArrayEquals("12".getBytes(), buffer.readExisting());
+        assertFalse(buffer.waitByte((byte) 'B', 10));
+    }
+
+    @Test
+    public void readLine_wakesUpOnPush() throws Exception {
+        // pickup latency is measured by DataBufferHandoffBenchmark, here only that every push wakes the reader
+        final int rounds = 200;
+        final DataBuffer buffer = new DataBuffer(64);
+        final byte[][] lines = new byte[rounds][];
+        final long[] waits = new long[rounds];
+        final Thread reader = new Thread(() -> {
+            for (int i = 0; i < rounds; i++) {
+                final long start = System.nanoTime();
+                lines[i] = buffer.readLine(LINE_END, 2000);
+                waits[i] = System.nanoTime() - start;
+            }
+        });
+        reader.start();
+        final byte[] response = "W A = S 1.000 0.000 1.000 kg\r\n".getBytes();
+        for (int i = 0; i < rounds; i++) {
+            // give the reader time to park on the condition
+            TimeUnit.MILLISECONDS.sleep(1);
+            buffer.push(response);
+        }
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+        for (int i = 0; i < rounds; i++) {
+            assertNotNull("Line " + i + " not delivered", lines[i]);
+            // woken by the push, not by the read timeout
+            assertTrue("Line " + i + " waited " + waits[i] + "ns", waits[i] < TimeUnit.MILLISECONDS.toNanos(1000));
+        }
+        assertEquals(0, buffer.getLength());
+    }
+
+    @Test
+    public void push_fullBufferCountsDroppedBytes() {
+        final DataBuffer buffer = new DataBuffer(8);
+        buffer.push("0123456789".getBytes());
+        assertEquals(8, buffer.getLength());
+        assertEquals(2, buffer.getDroppedBytes());
+        assertEquals(8, buffer.getHighWater());
+    }
+
+    @Test
+    public void pushWithTimeout_failsWithoutPartialData() {
+        final DataBuffer buffer = new DataBuffer(8);
+        buffer.push("012345".getBytes());
+        assertFalse(buffer.push("abc".getBytes(), 0, 3, 0));
+        assertFalse(buffer.push("abc".getBytes(), 0, 3, 20));
+        assertEquals(6, buffer.getLength());
+        assertEquals(2, buffer.getRejectedPushes());
+        assertTrue(buffer.push("ab".getBytes(), 0, 2, 0));
+        assertArrayEquals("012345ab".getBytes(), buffer.pop(8));
+    }
+
+    @Test
+    public void pushWithTimeout_concurrentWritersLoseNothing() throws Exception {
+        final DataBuffer buffer = new DataBuffer(256);
+        final int writers = 4;
+        final int records = 500;
+        final Thread[] threads = new Thread[writers];
+        final AtomicLong failures = new AtomicLong();
+        for (int w = 0; w < writers; w++) {
+            final int id = w;
+            threads[w] = new Thread(() -> {
+                final Random random = new Random(id);
+                for (int seq = 0; seq < records; seq++) {
+                    // record: id, seq (2 bytes), length, payload filled with id
+                    final byte[] record = new byte[4 + 1 + random.nextInt(96)];
+                    record[0] = (byte) id;
+                    record[1] = (byte) (seq >> 8);
+                    record[2] = (byte) seq;
+                    record[3] = (byte) (record.length - 4);
+                    Arrays.fill(record, 4, record.length, (byte) id);
+                    if (!buffer.push(record, 0, record.length, 5000)) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            threads[w].start();
+        }
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final Random random = new Random(42);
+        while (isAlive(threads) || !buffer.isEmpty()) {
+            final byte[] chunk = buffer.readBytes(1 + random.nextInt(20), 1);
+            if (chunk == null) {
+                // less than asked for, take whatever is left
+                final byte[] rest = buffer.readBytes(buffer.getLength());
+                if (rest != null) {
+                    received.write(rest, 0, rest.length);
+                }
+            } else {
+                received.write(chunk, 0, chunk.length);
+            }
+        }
+        assertEquals(0, failures.get());
+        assertTrue(buffer.getBlockedPushes() > 0);
+        assertTrue(buffer.getHighWater() <= 256);
+
+        final byte[] data = received.toByteArray();
+        final int[] nextSeq = new int[writers];
+        int pos = 0;
+        while (pos < data.length) {
+            final int id = data[pos];
+            final int seq = ((data[pos + 1] & 0xFF) << 8) | (data[pos + 2] & 0xFF);
+            final int len = data[pos + 3];
+            assertEquals(nextSeq[id]++, seq);
+            for (int i = 0; i < len; i++) {
+                assertEquals("record interleaved", id, data[pos + 4 + i]);
+            }
+            pos += 4 + len;
+        }
+        assertEquals(data.length, pos);
+        for (int w = 0; w < writers; w++) {
+            assertEquals(records, nextSeq[w]);
+        }
+    }
+
+    private static boolean isAlive(Thread[] threads) {
+        for (Thread thread : threads) {
+            if (thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The previous array-compacting implementation, kept as the behavioural reference
+     */
+    private static class LinearBuffer {
+        private final byte[] buffer;
+        private int length;
+
+        LinearBuffer(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        void push(byte[] newBuf, int offset, int count) {
+            if (count + length > buffer.length) {
+                count = buffer.length - length;
+            }
+            if (count > 0) {
+                System.arraycopy(newBuf, offset, buffer, length, count);
+                length += count;
+            }
+        }
+
+        void delete(int offset, int count) {
+            if (offset >= length) {
+                return;
+            }
+            if (offset + count > length) {
+                count = length - offset;
+            }
+            int len = length - offset - count;
+            if (len > 0) {
+                System.arraycopy(buffer, offset + count, buffer, offset, len);
+                length -= count;
+            } else {
+                length = offset;
+            }
+        }
+
+        byte[] pop(int count) {
+            if (count <= 0) {
+                return null;
+            }
+            count = Math.min(count, length);
+            final byte[] buf = new byte[count];
+            System.arraycopy(buffer, 0, buf, 0, count);
+            delete(0, count);
+            return buf;
+        }
+
+        int lookup(byte[] bts) {
+            int end = length - bts.length;
+            boolean matched = false;
+            for (int pos = 0; pos <= end; pos++) {
+                for (int cmp = 0; cmp < bts.length; cmp++) {
+                    matched = (buffer[pos + cmp] == bts[cmp]);
+                    if (!matched) {
+                        break;
+                    }
+                }
+                if (matched) {
+                    return pos;
+                }
+            }
+            return -1;
+        }
+
+        byte[] readLine(byte[] lineEnd) {
+            int len = lookup(lineEnd);
+            if (len > 0) {
+                byte[] buf = pop(len);
+                pop(lineEnd.length);
+                return buf;
+            } else if (len == 0) {
+                pop(lineEnd.length);
+                return new byte[]{};
+            }
+            return null;
+        }
+
+        byte[] readBytes(int count) {
+            if (length < count) {
+                return null;
+            }
+            return pop(count);
+        }
+    }
+}
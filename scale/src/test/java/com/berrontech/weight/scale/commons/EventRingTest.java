@@ -0,0 +1,183 @@
+package com.berrontech.weight.scale.commons;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Create by levent8421 2021/2/13 11:20
+ * EventRingTest
+ * EventRing unit test
+ *
+ * @author levent8421
+ */
+public class EventRingTest {
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void events_deliveredInOrderBeyondCapacity() throws Exception {
+        final int count = 100_000;
+        final List<Integer> received = new ArrayList<>(count);
+        final CountDownLatch done = new CountDownLatch(1);
+        final EventRing ring = new EventRing(8, executor, new Handler() {
+            @Override
+            public void onEvent(int event) {
+                received.add(event);
+                if (received.size() == count) {
+                    done.countDown();
+                }
+            }
+        });
+        assertEquals(8, ring.getCapacity());
+        for (int i = 0; i < count; i++) {
+            publishOrRetry(ring, i);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, (int) received.get(i));
+        }
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void handlerError_doesNotStopConsumer() throws Exception {
+        final CountDownLatch errors = new CountDownLatch(1);
+        final CountDownLatch delivered = new CountDownLatch(1);
+        final EventRing ring = new EventRing(4, executor, new Handler() {
+            @Override
+            public void onEvent(int event) {
+                if (event == 1) {
+                    throw new IllegalStateException("boom");
+                }
+                delivered.countDown();
+            }
+
+            @Override
+            public void onError(int event, RuntimeException e) {
+                errors.countDown();
+            }
+        });
+        ring.publish(1);
+        ring.publish(2);
+        assertTrue(errors.await(1, TimeUnit.SECONDS));
+        assertTrue(delivered.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void rings_shareExecutorAndKeepPerRingOrder() throws Exception {
+        final int rings = 8;
+        final int count = 10_000;
+        final CountDownLatch done = new CountDownLatch(rings);
+        final EventRing[] eventRings = new EventRing[rings];
+        for (int r = 0; r < rings; r++) {
+            eventRings[r] = new EventRing(16, executor, new Handler() {
+                private final AtomicInteger running = new AtomicInteger();
+                private int expected = 0;
+
+                @Override
+                public void onEvent(int event) {
+                    assertEquals("one event at a time per ring", 1, running.incrementAndGet());
+                    assertEquals(expected++, event);
+                    if (expected == count) {
+                        done.countDown();
+                    }
+                    running.decrementAndGet();
+                }
+            });
+        }
+        for (int i = 0; i < count; i++) {
+            for (EventRing ring : eventRings) {
+                publishOrRetry(ring, i);
+            }
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void fullRing_dropsInsteadOfBlockingPublisher() throws Exception {
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> received = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(2);
+        final EventRing ring = new EventRing(8, executor, new Handler() {
+            @Override
+            public void onEvent(int event) {
+                if (event == 0) {
+                    // the consumer is stuck, e.g. behind a GATT write
+                    stalled.countDown();
+                    awaitQuietly(release);
+                    return;
+                }
+                received.add(event);
+                if (event == 8 || event == 21) {
+                    done.countDown();
+                }
+            }
+        });
+        assertTrue(ring.publish(0));
+        assertTrue(stalled.await(1, TimeUnit.SECONDS));
+        final long start = System.nanoTime();
+        int published = 0;
+        for (int i = 1; i <= 20; i++) {
+            if (ring.publish(i)) {
+                published++;
+            }
+        }
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Publishing took " + elapsed + "ms", elapsed < 500);
+        assertEquals(8, published);
+        assertEquals(12, ring.getDroppedCount());
+        release.countDown();
+        while (ring.size() > 0) {
+            Thread.sleep(1);
+        }
+        // room again once the consumer caught up
+        assertTrue(ring.publish(21));
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i + 1, (int) received.get(i));
+        }
+        assertEquals(21, (int) received.get(8));
+    }
+
+    private static void publishOrRetry(EventRing ring, int event) {
+        while (!ring.publish(event)) {
+            Thread.yield();
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private abstract static class Handler implements EventRing.EventHandler {
+        @Override
+        public void onError(int event, RuntimeException e) {
+            throw e;
+        }
+    }
+}
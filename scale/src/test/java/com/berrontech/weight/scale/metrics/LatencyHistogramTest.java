@@ -0,0 +1,69 @@
+package com.berrontech.weight.scale.metrics;
+
+import com.berrontech.weight.scale.InvalidateResponseException;
+import com.berrontech.weight.scale.OperationFailedException;
+import com.berrontech.weight.scale.ResponseTimeoutException;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Create by levent8421 2021/2/12 11:10
+ * LatencyHistogramTest
+ * LatencyHistogram and CommandMetrics unit test
+ *
+ * @author levent8421
+ */
+public class LatencyHistogramTest {
+    @Test
+    public void buckets_coverEveryValueOnce() {
+        int previous = -1;
+        for (long value = 0; value < 1 << 20; value++) {
+            final int index = LatencyHistogram.indexOf(value);
+            assertTrue(index == previous || index == previous + 1);
+            assertTrue(value <= LatencyHistogram.upperBoundOf(index));
+            // relative error of the reported bound is below 12.5%
+            assertTrue(LatencyHistogram.upperBoundOf(index) - value <= value / 8);
+            previous = index;
+        }
+        assertEquals(LatencyHistogram.indexOf(Long.MAX_VALUE), LatencyHistogram.indexOf(1L << 50));
+    }
+
+    @Test
+    public void snapshot_reportsPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int ms = 1; ms <= 100; ms++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(ms));
+        }
+        final long[] snapshot = histogram.snapshot();
+        assertEquals(100, snapshot[0]);
+        assertEquals(50_000, snapshot[1], 50_000 / 8);
+        assertEquals(90_000, snapshot[2], 90_000 / 8);
+        assertEquals(99_000, snapshot[3], 99_000 / 8);
+        assertEquals(100_000, snapshot[4]);
+        assertEquals(50_500, snapshot[5]);
+    }
+
+    @Test
+    public void commandMetrics_classifyErrors() {
+        final CommandMetrics metrics = new CommandMetrics("W");
+        final long start = System.nanoTime();
+        metrics.onSuccess(start);
+        metrics.onError(start, new ResponseTimeoutException("timeout"));
+        metrics.onError(start, new InvalidateResponseException("invalid"));
+        metrics.onError(start, new OperationFailedException("failed"));
+        metrics.onError(start, new IllegalStateException("closed"));
+        final CommandSnapshot snapshot = metrics.snapshot();
+        // timeouts are counted but not timed
+        assertEquals(4, snapshot.getCount());
+        assertEquals(1, snapshot.getTimeouts());
+        assertEquals(1, snapshot.getInvalidResponses());
+        assertEquals(1, snapshot.getOperationFailures());
+        assertEquals(1, snapshot.getErrors());
+        metrics.reset();
+        assertEquals(0, metrics.snapshot().getCount());
+    }
+}
@@ -0,0 +1,237 @@
+package com.berrontech.weight.scale.pool;
+
+import com.berrontech.weight.scale.ScaleApiConfig;
+import com.berrontech.weight.scale.WeightReading;
+import com.berrontech.weight.scale.ble.AsyncBleScaleApi;
+import com.berrontech.weight.scale.ble.BleScaleApi;
+import com.berrontech.weight.scale.commons.ScaleFuture;
+import com.berrontech.weight.scale.sim.SimulatedScale;
+import com.berrontech.weight.scale.sim.SimulatedScaleConnectionFactory;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Create by levent8421 2021/2/14 11:30
+ * ScalePoolTest
+ * ScalePool unit test
+ *
+ * @author levent8421
+ */
+public class ScalePoolTest {
+    private static final long TIMEOUT = 5000;
+    private ScalePool pool;
+
+    @After
+    public void tearDown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void scales_takeTurns() throws Exception {
+        pool = new ScalePool(1, 16);
+        pool.add("a", null);
+        pool.add("b", null);
+        final List<String> order = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // block the only worker so the queues fill up
+        pool.submit("a", api -> {
+            started.countDown();
+            release.await();
+            return null;
+        });
+        started.await();
+        final List<ScaleFuture<Object>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final String name = "a" + i;
+            futures.add(pool.submit("a", api -> order.add(name)));
+        }
+        futures.add(pool.submit("b", api -> order.add("b0")));
+        release.countDown();
+        for (ScaleFuture<Object> future : futures) {
+            future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(Arrays.asList("b0", "a0", "a1", "a2"), order);
+    }
+
+    @Test
+    public void pendingLimit_rejects() throws Exception {
+        pool = new ScalePool(1, 1);
+        pool.add("a", null);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        pool.submit("a", api -> {
+            started.countDown();
+            return release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        });
+        started.await();
+        // fills the only pending slot
+        pool.submit("a", api -> null);
+        try {
+            pool.submit("a", api -> null);
+            fail("Pending queue is full");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(1, pool.getRejectedCount());
+        release.countDown();
+    }
+
+    @Test
+    public void simulatedScales_shareWorkers() throws Exception {
+        final int scales = 8;
+        pool = new ScalePool(2, 64);
+        for (int i = 0; i < scales; i++) {
+            final SimulatedScaleConnectionFactory factory = new SimulatedScaleConnectionFactory(new SimulatedScale().setGross(i))
+                    .setChunkLatency(100, TimeUnit.MICROSECONDS);
+            pool.add("scale" + i, new BleScaleApi(new ScaleApiConfig()
+                    .with(ScaleApiConfig.CONNECTION_FACTORY, factory)));
+        }
+        for (ScaleFuture<Void> future : pool.connectAll().values()) {
+            future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        final List<ScaleFuture<Long>> futures = new ArrayList<>();
+        int threadsBefore = 0;
+        for (int round = 0; round < 20; round++) {
+            if (round == 1) {
+                // the simulated links start their threads on first use
+                for (ScaleFuture<Long> future : futures) {
+                    future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+                }
+                threadsBefore = Thread.activeCount();
+            }
+            for (int i = 0; i < scales; i++) {
+                futures.add(pool.submit("scale" + i, api -> {
+                    final WeightReading reading = new WeightReading();
+                    api.readWeight(reading);
+                    return reading.getGross();
+                }));
+            }
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals((i % scales) * 1000L, (long) futures.get(i).get(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+        assertEquals(scales * 20 + scales, pool.getCompletedCount());
+        assertTrue(pool.getThroughput() > 0);
+        assertTrue("Threads grew with scales", Thread.activeCount() <= threadsBefore + 2);
+    }
+
+    @Test
+    public void remove_cancelsPendingCommands() throws Exception {
+        pool = new ScalePool(1, 16);
+        pool.add("a", null);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        pool.submit("a", api -> {
+            started.countDown();
+            release.await();
+            return null;
+        });
+        started.await();
+        final ScaleFuture<Object> pending = pool.submit("a", api -> null);
+        pool.remove("a");
+        release.countDown();
+        try {
+            pending.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("Pending command of a removed scale");
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void taskError_keepsWorkerAlive() throws Exception {
+        pool = new ScalePool(1, 16);
+        pool.add("a", null);
+        final ScaleFuture<Object> broken = pool.submit("a", api -> {
+            throw new AssertionError("broken task");
+        });
+        try {
+            broken.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("Task threw an Error");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AssertionError);
+        }
+        assertEquals("ok", pool.submit("a", api -> "ok").get(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(1, pool.getFailedCount());
+    }
+
+    @Test
+    public void asyncTasks_doNotHoldWorkers() throws Exception {
+        final int scales = 8;
+        pool = new ScalePool(1, 16);
+        final List<ScaleFuture<Integer>> started = Collections.synchronizedList(new ArrayList<>());
+        final List<ScaleFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < scales; i++) {
+            pool.add("scale" + i, null, null);
+            results.add(pool.submitAsync("scale" + i, api -> {
+                final ScaleFuture<Integer> response = new ScaleFuture<>();
+                started.add(response);
+                return response;
+            }));
+        }
+        // one worker, yet every scale has a command in flight
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (started.size() < scales) {
+            assertTrue("Commands in flight: " + started.size(), System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        // the next command of a scale waits until the previous one completes
+        final ScaleFuture<Integer> second = pool.submitAsync("scale0", api -> {
+            final ScaleFuture<Integer> response = new ScaleFuture<>();
+            response.complete(-1);
+            return response;
+        });
+        Thread.sleep(20);
+        assertFalse(second.isDone());
+        for (int i = 0; i < scales; i++) {
+            started.get(i).complete(i);
+        }
+        for (int i = 0; i < scales; i++) {
+            assertEquals(i, (int) results.get(i).get(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+        assertEquals(-1, (int) second.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(scales + 1, pool.getCompletedCount());
+    }
+
+    @Test
+    public void simulatedAsyncScales_readConcurrently() throws Exception {
+        final int scales = 8;
+        pool = new ScalePool(1, 64);
+        for (int i = 0; i < scales; i++) {
+            final SimulatedScaleConnectionFactory factory = new SimulatedScaleConnectionFactory(new SimulatedScale().setGross(i))
+                    .setChunkLatency(100, TimeUnit.MICROSECONDS);
+            final AsyncBleScaleApi api = new AsyncBleScaleApi(new ScaleApiConfig()
+                    .with(ScaleApiConfig.CONNECTION_FACTORY, factory));
+            pool.add("scale" + i, api.getScaleApi(), api);
+        }
+        for (ScaleFuture<Void> future : pool.connectAll().values()) {
+            future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        final List<ScaleFuture<WeightReading>> futures = new ArrayList<>();
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < scales; i++) {
+                futures.add(pool.submitAsync("scale" + i, api -> api.readWeight(new WeightReading())));
+            }
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals((i % scales) * 1000L, futures.get(i).get(TIMEOUT, TimeUnit.MILLISECONDS).getGross());
+        }
+        assertEquals(scales * 20 + scales, pool.getCompletedCount());
+    }
+}
@@ -0,0 +1,134 @@
+package com.berrontech.weight.scale.recorder;
+
+import com.berrontech.weight.scale.WeightReading;
+import com.berrontech.weight.scale.WeightStream;
+import com.berrontech.weight.scale.WeightUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Create by levent8421 2021/2/18 17:00
+ * ReadingRecorderTest
+ *
+ * @author levent8421
+ */
+public class ReadingRecorderTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static WeightReading reading(long time, long gross, long tare, boolean stable) {
+        final WeightReading reading = new WeightReading();
+        reading.setTimestamp(time);
+        reading.setGross(gross);
+        reading.setTare(tare);
+        reading.setNet(gross - tare);
+        reading.setDecimals(3);
+        reading.setUnit(WeightUnit.KG);
+        reading.setStable(stable);
+        return reading;
+    }
+
+    @Test
+    public void roundTrip_twoDevices() throws Exception {
+        final File dir = folder.newFolder();
+        final long now = System.currentTimeMillis();
+        try (ReadingRecorder recorder = new ReadingRecorder(dir).setSyncInterval(10).open()) {
+            final WeightStream.WeightListener a = recorder.listener("AA:BB:CC:00:00:01");
+            final int b = recorder.deviceId("AA:BB:CC:00:00:02");
+            a.onWeight(reading(now, 1500, 0, true));
+            recorder.record(b, reading(now - 5, -20, 100, false));
+            final WeightReading gram = reading(now + 40, 123456789012L, 0, true);
+            gram.setUnit(WeightUnit.G);
+            gram.setDecimals(0);
+            a.onWeight(gram);
+            assertEquals(3, recorder.getRecords());
+        }
+
+        final File[] segments = ReadingRecorder.listSegments(dir);
+        assertEquals(1, segments.length);
+        final WeightReading out = new WeightReading();
+        try (SegmentReader reader = new SegmentReader(segments[0])) {
+            assertTrue(reader.next(out));
+            assertEquals("AA:BB:CC:00:00:01", reader.getDevice());
+            assertEquals(now, out.getTimestamp());
+            assertEquals(1500, out.getGross());
+            assertEquals(1500, out.getNet());
+            assertEquals(3, out.getDecimals());
+            assertTrue(out.isStable());
+
+            assertTrue(reader.next(out));
+            assertEquals("AA:BB:CC:00:00:02", reader.getDevice());
+            assertEquals(now - 5, out.getTimestamp());
+            assertEquals(-20, out.getGross());
+            assertEquals(100, out.getTare());
+            assertEquals(-120, out.getNet());
+            assertFalse(out.isStable());
+
+            assertTrue(reader.next(out));
+            assertEquals(123456789012L, out.getGross());
+            assertEquals(WeightUnit.G, out.getUnit());
+            assertEquals(0, out.getDecimals());
+            assertFalse(reader.next(out));
+        }
+    }
+
+    @Test
+    public void rollover_eachSegmentReadableAlone() throws Exception {
+        final File dir = folder.newFolder();
+        final int count = 500;
+        try (ReadingRecorder recorder = new ReadingRecorder(dir).setSegmentSize(1024).setSyncInterval(0).open()) {
+            final int[] ids = {recorder.deviceId("scale-1"), recorder.deviceId("scale-2")};
+            for (int i = 0; i < count; i++) {
+                recorder.record(ids[i % 2], reading(1000 + i * 10, i, 0, true));
+            }
+        }
+        final File[] segments = ReadingRecorder.listSegments(dir);
+        assertTrue(segments.length > 1);
+        final WeightReading out = new WeightReading();
+        int read = 0;
+        long total = 0;
+        for (File segment : segments) {
+            assertTrue(segment.length() <= 1024);
+            total += segment.length();
+            try (SegmentReader reader = new SegmentReader(segment)) {
+                while (reader.next(out)) {
+                    assertEquals(read, out.getGross());
+                    assertEquals(1000 + read * 10, out.getTimestamp());
+                    assertEquals(read % 2 == 0 ? "scale-1" : "scale-2", reader.getDevice());
+                    read++;
+                }
+            }
+        }
+        assertEquals(count, read);
+        // rolled segments are truncated too, only the unused tail of each one is dropped
+        assertTrue("Total " + total, total < segments.length * 1024L);
+    }
+
+    @Test
+    public void reopen_appendsNewSegment() throws Exception {
+        final File dir = folder.newFolder();
+        for (int run = 0; run < 2; run++) {
+            try (ReadingRecorder recorder = new ReadingRecorder(dir).setSyncInterval(0).open()) {
+                recorder.record(recorder.deviceId("scale"), reading(run, run, 0, true));
+            }
+        }
+        final File[] segments = ReadingRecorder.listSegments(dir);
+        assertEquals(2, segments.length);
+        final WeightReading out = new WeightReading();
+        for (int run = 0; run < 2; run++) {
+            // truncated to the written records on close, not left at the preallocated size
+            assertTrue("Segment length " + segments[run].length(), segments[run].length() < 128);
+            try (SegmentReader reader = new SegmentReader(segments[run])) {
+                assertTrue(reader.next(out));
+                assertEquals(run, out.getGross());
+                assertFalse(reader.next(out));
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.berrontech.weight.scale.scan;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Create by levent8421 2021/2/17 11:30
+ * DeviceTableTest
+ *
+ * @author levent8421
+ */
+public class DeviceTableTest {
+    @Test
+    public void dedupeAndSortByRssi() {
+        final DeviceTable table = new DeviceTable();
+        table.putCached(new ScannedDevice("00:00:00:00:00:03", "cached", ScannedDevice.RSSI_UNKNOWN, 100));
+        table.update("00:00:00:00:00:01", "A", -80, 1000);
+        table.update("00:00:00:00:00:02", "B", -60, 1000);
+        table.update("00:00:00:00:00:01", null, -81, 1100);
+        assertTrue(table.takeChanged());
+        assertEquals(3, table.size());
+
+        List<ScannedDevice> devices = table.snapshot();
+        assertEquals("B", devices.get(0).getName());
+        assertEquals("A", devices.get(1).getName());
+        assertEquals(-80, devices.get(1).getRssi());
+        assertEquals(1100, devices.get(1).getLastSeen());
+        assertFalse(devices.get(2).isInRange());
+
+        // small RSSI changes are not reported
+        table.update("00:00:00:00:00:01", "A", -78, 1200);
+        assertFalse(table.takeChanged());
+        table.update("00:00:00:00:00:01", "A", -50, 1300);
+        assertTrue(table.takeChanged());
+        assertEquals("A", table.snapshot().get(0).getName());
+
+        // cached device comes into range
+        table.update("00:00:00:00:00:03", "cached", -70, 1400);
+        assertTrue(table.takeChanged());
+        assertTrue(table.snapshot().get(2).isInRange());
+    }
+
+    @Test
+    public void silentDevices_goOutOfRange() {
+        final DeviceTable table = new DeviceTable();
+        table.update("00:00:00:00:00:01", "A", -60, 1000);
+        table.update("00:00:00:00:00:02", "B", -80, 1000);
+        table.takeChanged();
+
+        table.update("00:00:00:00:00:02", "B", -80, 5000);
+        assertFalse(table.expire(5000, 5000));
+        assertFalse(table.takeChanged());
+
+        assertTrue(table.expire(6500, 5000));
+        assertTrue(table.takeChanged());
+        final List<ScannedDevice> devices = table.snapshot();
+        assertEquals("B", devices.get(0).getName());
+        assertTrue(devices.get(0).isInRange());
+        assertEquals("A", devices.get(1).getName());
+        assertFalse(devices.get(1).isInRange());
+        assertEquals(1000, devices.get(1).getLastSeen());
+
+        // already out of range, nothing to report
+        assertFalse(table.expire(7000, 5000));
+        // advertising again
+        table.update("00:00:00:00:00:01", "A", -60, 7000);
+        assertTrue(table.takeChanged());
+        assertTrue(table.snapshot().get(0).isInRange());
+    }
+
+    @Test
+    public void cacheEncoding() {
+        final List<ScannedDevice> devices = Arrays.asList(
+                new ScannedDevice("00:00:00:00:00:01", "Scale\t1", -60, 100),
+                new ScannedDevice("00:00:00:00:00:02", null, -70, 200));
+        final List<ScannedDevice> decoded = DeviceCache.decode(DeviceCache.encode(devices));
+        assertEquals(2, decoded.size());
+        assertEquals("00:00:00:00:00:02", decoded.get(0).getAddress());
+        assertNull(decoded.get(0).getName());
+        assertEquals("Scale 1", decoded.get(1).getName());
+        assertEquals(100, decoded.get(1).getLastSeen());
+        assertFalse(decoded.get(1).isInRange());
+        assertTrue(DeviceCache.decode("garbage\n").isEmpty());
+    }
+}
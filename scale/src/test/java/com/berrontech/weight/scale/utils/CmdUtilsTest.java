@@ -0,0 +1,32 @@
+package com.berrontech.weight.scale.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Create by levent8421 2021/2/4 9:30
+ * CmdUtilsTest
+ * CmdUtils unit test
+ *
+ * @author levent8421
+ */
+public class CmdUtilsTest {
+    @Test
+    public void isResponseOf_matchesCommandName() {
+        assertTrue(CmdUtils.isResponseOf("W".getBytes(), "W A = S 1.000 0.000 1.000 kg".getBytes()));
+        assertTrue(CmdUtils.isResponseOf("T".getBytes(), "T A".getBytes()));
+        assertTrue(CmdUtils.isResponseOf("DECIMAL 3".getBytes(), "DECIMAL A".getBytes()));
+        assertTrue(CmdUtils.isResponseOf("SEND 0 12 1000".getBytes(), "SEND B".getBytes()));
+        assertTrue(CmdUtils.isResponseOf("Z".getBytes(), "Z".getBytes()));
+    }
+
+    @Test
+    public void isResponseOf_rejectsOtherLines() {
+        assertFalse(CmdUtils.isResponseOf("W".getBytes(), "T A".getBytes()));
+        assertFalse(CmdUtils.isResponseOf("W".getBytes(), "xxW A = S".getBytes()));
+        assertFalse(CmdUtils.isResponseOf("T".getBytes(), "TARE A".getBytes()));
+        assertFalse(CmdUtils.isResponseOf("CAPACITY".getBytes(), "CAP".getBytes()));
+        assertFalse(CmdUtils.isResponseOf("Z".getBytes(), new byte[0]));
+    }
+}